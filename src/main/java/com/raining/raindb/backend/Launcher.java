@@ -24,11 +24,14 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("blocking", false, "-blocking: one thread per connection instead of NIO");
+        options.addOption("virtual", false, "-virtual: one virtual thread per connection, needs JDK 21");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         if (cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            String mode = cmd.hasOption("virtual") ? "virtual" : cmd.hasOption("blocking") ? "blocking" : "nio";
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), mode);
             return;
         }
         if(cmd.hasOption("create")) {
@@ -47,12 +50,24 @@ public class Launcher {
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, String mode) {
         TransactionManager tm = TransactionManager.open(path);
         DataManager dm = DataManager.open(path, mem, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
-        new Server(port, tbm).start();
+        Server server = new Server(port, tbm);
+        switch(mode) {
+            case "virtual":
+                if(!server.startVirtual()) {
+                    Panic.panic(Error.VirtualThreadUnsupportedException);
+                }
+                break;
+            case "blocking":
+                server.startBlocking();
+                break;
+            default:
+                server.start();
+        }
     }
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
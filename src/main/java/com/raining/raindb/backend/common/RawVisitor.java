@@ -0,0 +1,9 @@
+package com.raining.raindb.backend.common;
+
+/**
+ * 顺序扫描的回调，data 指向页面拷贝中一条记录的数据部分，可以直接读取而不需要加锁
+ */
+public interface RawVisitor {
+    // 返回 false 时停止扫描
+    boolean visit(long uid, SubArray data) throws Exception;
+}
@@ -1,5 +1,6 @@
 package com.raining.raindb.backend.dm;
 
+import com.raining.raindb.backend.common.RawVisitor;
 import com.raining.raindb.backend.dm.dataItem.DataItem;
 import com.raining.raindb.backend.dm.logger.Logger;
 import com.raining.raindb.backend.dm.page.PageOne;
@@ -17,8 +18,30 @@ public interface DataManager {
 
     DataItem read(long uid) throws Exception;
 
+    // 插入到公共段（索引、表结构等）的页中
     long insert(long xid, byte[] data) throws Exception;
 
+    // 插入到 segment 段的页中，一张表的数据以表的 uid 为段，见 PageX
+    long insert(long xid, long segment, byte[] data) throws Exception;
+
+    // 批量插入到 segment 段，按 data 的顺序返回 uid。每一页放进尽可能多的数据，这一页的日志一起写入
+    long[] insert(long xid, long segment, byte[][] data) throws Exception;
+
+    // uid 所在的页属于哪个段
+    long segmentOf(long uid) throws Exception;
+
+    // 按页号顺序遍历 segment 段中所有合法的 DataItem，visitor 拿到的是页面的拷贝
+    void scan(long segment, RawVisitor visitor) throws Exception;
+
+    // segment 段当前所有的页号，按页号递增
+    int[] segmentPages(long segment);
+
+    // 只扫描 pages[from, to) 这些页，多个线程可以同时扫描同一个段的不同部分
+    void scan(int[] pages, int from, int to, RawVisitor visitor) throws Exception;
+
+    // 将uid对应的DataItem标记为非法，之后的read都会返回null
+    void free(long uid) throws Exception;
+
     void close();
 
     //入口！！！
@@ -2,6 +2,8 @@ package com.raining.raindb.backend.dm;
 
 
 import com.raining.raindb.backend.common.AbstractCache;
+import com.raining.raindb.backend.common.RawVisitor;
+import com.raining.raindb.backend.common.SubArray;
 import com.raining.raindb.backend.dm.dataItem.DataItem;
 import com.raining.raindb.backend.dm.dataItem.DataItemImpl;
 import com.raining.raindb.backend.dm.logger.Logger;
@@ -12,24 +14,45 @@ import com.raining.raindb.backend.dm.pageCache.PageCache;
 import com.raining.raindb.backend.dm.pageIndex.PageIndex;
 import com.raining.raindb.backend.dm.pageIndex.PageInfo;
 import com.raining.raindb.backend.tm.TransactionManager;
+import com.raining.raindb.backend.tm.TransactionManagerImpl;
 import com.raining.raindb.backend.util.Panic;
+import com.raining.raindb.backend.util.Parser;
 import com.raining.raindb.backend.util.Types;
 import com.raining.raindb.common.Error;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
+    //公共段，B+树节点和表结构等元数据都放在这里
+    public static final long SEGMENT_SHARED = 0;
+    //顺序扫描时每次预读的页数
+    private static final int READ_AHEAD_PAGES = 16;
+
     TransactionManager tm;
     PageCache pc;
     Logger logger;
-    PageIndex pIndex;
     Page pageOne;
 
+    //每个段各自的空闲空间索引，以及段中的页号（按页号递增）
+    Map<Long, PageIndex> pIndexes;
+    Map<Long, List<Integer>> segmentPages;
+    Lock segmentLock;
+
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.pIndexes = new HashMap<>();
+        this.segmentPages = new HashMap<>();
+        this.segmentLock = new ReentrantLock();
     }
 
     @Override
@@ -44,25 +67,18 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, SEGMENT_SHARED, data);
+    }
+
+    @Override
+    public long insert(long xid, long segment, byte[] data) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);
         if(raw.length > PageX.MAX_FREE_SPACE) {
             throw Error.DataTooLargeException;
         }
 
-        PageInfo pi = null;
-        //尝试五次，如果不成功，就增加一页
-        for(int i = 0; i < 5; i ++) {
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
-                break;
-            } else {
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
-            }
-        }
-        if(pi == null) {
-            throw Error.DatabaseBusyException;
-        }
+        PageIndex pIndex = pageIndex(segment);
+        PageInfo pi = selectPage(pIndex, segment, raw.length);
 
         Page pg = null;
         int freeSpace = 0;
@@ -88,6 +104,201 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
     }
 
+    /**
+     * 批量插入：每次取出一页，按顺序放进这一页能容纳的数据，先把这些插入日志一起写入、只 force 一次，再写入页面。
+     * 取出的页不在 pIndex 中，其他插入不会同时修改这一页的 FSO，所以可以预先算出每一条的偏移
+     */
+    @Override
+    public long[] insert(long xid, long segment, byte[][] data) throws Exception {
+        byte[][] raws = new byte[data.length][];
+        for (int i = 0; i < data.length; i++) {
+            raws[i] = DataItem.wrapDataItemRaw(data[i]);
+            if(raws[i].length > PageX.MAX_FREE_SPACE) {
+                throw Error.DataTooLargeException;
+            }
+        }
+        long[] uids = new long[raws.length];
+        PageIndex pIndex = pageIndex(segment);
+        int next = 0;
+        while(next < raws.length) {
+            PageInfo pi = selectPage(pIndex, segment, raws[next].length);
+            Page pg = null;
+            int freeSpace = pi.freeSpace;
+            try {
+                pg = pc.getPage(pi.pgno);
+                int free = PageX.getFreeSpace(pg);
+                short offset = PageX.getFSO(pg);
+                List<byte[]> logs = new ArrayList<>();
+                int end = next;
+                while(end < raws.length && raws[end].length <= free) {
+                    logs.add(Recover.insertLog(xid, pi.pgno, offset, raws[end]));
+                    offset += raws[end].length;
+                    free -= raws[end].length;
+                    end ++;
+                }
+                if(end == next) {
+                    throw Error.DatabaseBusyException;
+                }
+                logger.log(logs);
+                for (int i = next; i < end; i++) {
+                    uids[i] = Types.addressToUid(pi.pgno, PageX.insert(pg, raws[i]));
+                }
+                next = end;
+            } finally {
+                if(pg != null) {
+                    pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
+                    pg.release();
+                } else {
+                    pIndex.add(pi.pgno, freeSpace);
+                }
+            }
+        }
+        return uids;
+    }
+
+    // 从 pIndex 中取出一页至少有 size 的空闲空间的页，尝试五次，如果不成功，就增加一页
+    private PageInfo selectPage(PageIndex pIndex, long segment, int size) throws Exception {
+        for(int i = 0; i < 5; i ++) {
+            PageInfo pi = pIndex.select(size);
+            if (pi != null) {
+                return pi;
+            }
+            int newPgno = pc.newPage(PageX.initRaw(segment));
+            addPage(segment, newPgno);
+            pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+        }
+        throw Error.DatabaseBusyException;
+    }
+
+    @Override
+    public long segmentOf(long uid) throws Exception {
+        Page pg = pc.getPage((int)(uid >>> 32));
+        try {
+            return PageX.getSegment(pg);
+        } finally {
+            pg.release();
+        }
+    }
+
+    /**
+     * 顺序扫描：每次先把接下来的一批页预读进来，再逐页处理。
+     * 每一页在页锁下整页拷贝，之后在拷贝上解析，不持有任何锁，也不经过 DataItem 的缓存
+     */
+    @Override
+    public void scan(long segment, RawVisitor visitor) throws Exception {
+        int[] pages = segmentPages(segment);
+        scan(pages, 0, pages.length, visitor);
+    }
+
+    @Override
+    public void scan(int[] pages, int from, int to, RawVisitor visitor) throws Exception {
+        for(int i = from; i < to; i += READ_AHEAD_PAGES) {
+            int end = Math.min(to, i+READ_AHEAD_PAGES);
+            pc.prefetch(pages, i, end);
+            for(int j = i; j < end; j ++) {
+                if(!scanPage(pages[j], visitor)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean scanPage(int pgno, RawVisitor visitor) throws Exception {
+        Page pg = pc.getPage(pgno);
+        byte[] raw;
+        pg.lock();
+        try {
+            raw = Arrays.copyOf(pg.getData(), PageX.getFSO(pg.getData()));
+        } finally {
+            pg.unlock();
+            pg.release();
+        }
+        int offset = PageX.OF_DATA;
+        while(offset < raw.length) {
+            int size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
+            int end = offset+DataItemImpl.OF_DATA+size;
+            if(raw[offset+DataItemImpl.OF_VALID] == (byte)0) {
+                SubArray data = new SubArray(raw, offset+DataItemImpl.OF_DATA, end);
+                if(!visitor.visit(Types.addressToUid(pgno, (short)offset), data)) {
+                    return false;
+                }
+            }
+            offset = end;
+        }
+        return true;
+    }
+
+    private PageIndex pageIndex(long segment) {
+        segmentLock.lock();
+        try {
+            PageIndex pIndex = pIndexes.get(segment);
+            if(pIndex == null) {
+                pIndex = new PageIndex();
+                pIndexes.put(segment, pIndex);
+            }
+            return pIndex;
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    private void addPage(long segment, int pgno) {
+        segmentLock.lock();
+        try {
+            List<Integer> pages = segmentPages.get(segment);
+            if(pages == null) {
+                pages = new ArrayList<>();
+                segmentPages.put(segment, pages);
+            }
+            pages.add(pgno);
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    @Override
+    public int[] segmentPages(long segment) {
+        segmentLock.lock();
+        try {
+            List<Integer> pages = segmentPages.get(segment);
+            if(pages == null) {
+                return new int[0];
+            }
+            int[] res = new int[pages.size()];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = pages.get(i);
+            }
+            return res;
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    /**
+     * 页内的数据是追加写入的，uid又直接对应页内偏移，所以这里不会挪动数据，
+     * 只是把 ValidFlag 置为非法，这次修改和普通的 update 一样记录日志
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        DataItemImpl di = (DataItemImpl)super.get(uid);
+        try {
+            if(!di.isValid()) {
+                return;
+            }
+            di.before();
+            //数据页可能正在被顺序扫描拷贝
+            di.page().lock();
+            try {
+                di.setInvalid();
+            } finally {
+                di.page().unlock();
+            }
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+    }
+
     @Override
     public void close() {
         super.close();
@@ -155,7 +366,9 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             } catch (Exception e) {
                 Panic.panic(e);
             }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            long segment = PageX.getSegment(pg);
+            addPage(segment, pg.getPageNumber());
+            pageIndex(segment).add(pg.getPageNumber(), PageX.getFreeSpace(pg));
             pg.release();
         }
     }
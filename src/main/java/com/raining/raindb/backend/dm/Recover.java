@@ -239,10 +239,15 @@ public class Recover {
      * @return
      */
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+        return insertLog(xid, pg.getPageNumber(), PageX.getFSO(pg), raw);
+    }
+
+    // 批量插入时同一页的多条日志在插入之前一起写入，offset 由调用方按顺序算出
+    public static byte[] insertLog(long xid, int pgno, short offset, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
+        byte[] pgnoRaw = Parser.int2Byte(pgno);
+        byte[] offsetRaw = Parser.short2Byte(offset);
         return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
     }
 
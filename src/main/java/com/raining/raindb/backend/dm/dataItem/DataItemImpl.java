@@ -16,9 +16,9 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class DataItemImpl implements DataItem{
 
-    static final int OF_VALID = 0;
-    static final int OF_SIZE = 1;
-    static final int OF_DATA = 3;
+    public static final int OF_VALID = 0;
+    public static final int OF_SIZE = 1;
+    public static final int OF_DATA = 3;
 
     private SubArray raw;
     private byte[] oldRaw;
@@ -44,6 +44,11 @@ public class DataItemImpl implements DataItem{
     }
 
     //共享数组，用于修改
+    // 需要在 before() 和 after() 之间调用
+    public void setInvalid() {
+        raw.raw[raw.start+OF_VALID] = (byte)1;
+    }
+
     @Override
     public SubArray data() {
         return new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
@@ -10,9 +10,12 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.List;
 
 public interface Logger {
     void log(byte[] data);
+    // 依次写入多条日志，只 force 一次
+    void log(List<byte[]> data);
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
@@ -10,6 +10,8 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -180,22 +182,34 @@ public class LoggerImpl implements Logger{
 
     @Override
     public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+        log(Collections.singletonList(data));
+    }
+
+    @Override
+    public void log(List<byte[]> data) {
+        byte[][] logs = new byte[data.size()][];
+        for (int i = 0; i < logs.length; i++) {
+            logs[i] = wrapLog(data.get(i));
+        }
+        ByteBuffer buf = ByteBuffer.wrap(Bytes.concat(logs));
         lock.lock();
         try {
             fc.position(fc.size());
-            fc.write(buf);
+            while(buf.hasRemaining()) {
+                fc.write(buf);
+            }
         } catch(IOException e) {
             Panic.panic(e);
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);
+        updateXChecksum(logs);
     }
 
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    private void updateXChecksum(byte[][] logs) {
+        for (byte[] log : logs) {
+            this.xChecksum = calChecksum(this.xChecksum, log);
+        }
         try {
             fc.position(0);
             fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
@@ -8,24 +8,33 @@ import java.util.Arrays;
 /**
  * PageX管理普通页
  * 普通页结构
- * [FreeSpaceOffset] [Data]
+ * [FreeSpaceOffset] [Segment] [Data]
  * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * Segment: 8字节 这一页属于哪个段，表的数据页为表的uid，索引和元数据所在的公共页为0。
+ *          一页只存放同一个段的数据，这样顺序扫描一张表时只需要读这张表自己的页。
  */
 public class PageX {
 
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
+    private static final short OF_SEGMENT = OF_FREE + 2;
+    public static final short OF_DATA = OF_SEGMENT + 8;
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
 
-    public static byte[] initRaw() {
+    public static byte[] initRaw(long segment) {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
         setFSO(raw, OF_DATA);
+        System.arraycopy(Parser.long2Byte(segment), 0, raw, OF_SEGMENT, 8);
         return raw;
     }
 
-    //初始的FSO就是2
+    //初始的FSO就是OF_DATA
     private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, 2);
+    }
+
+    // 页面创建之后段就不会再变化
+    public static long getSegment(Page pg) {
+        return Parser.parseLong(Arrays.copyOfRange(pg.getData(), OF_SEGMENT, OF_DATA));
     }
 
     // 获取pg的FSO
@@ -33,18 +42,24 @@ public class PageX {
         return getFSO(pg.getData());
     }
 
-    private static short getFSO(byte[] raw) {
+    public static short getFSO(byte[] raw) {
         return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
     }
 
     //将raw插入pg中，返回插入位置
+    //顺序扫描会在页锁下拷贝整页，所以这里也持有页锁，保证扫描看到的FSO和数据是一致的
     public static short insert(Page pg, byte[] raw) {
-        pg.setDirty(true);
-        short offset = getFSO(pg.getData());
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        //important 向pg中插入数据的时候，记得维护FSO
-        setFSO(pg.getData(), (short)(offset + raw.length));
-        return offset;
+        pg.lock();
+        try {
+            pg.setDirty(true);
+            short offset = getFSO(pg.getData());
+            System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+            //important 向pg中插入数据的时候，记得维护FSO
+            setFSO(pg.getData(), (short)(offset + raw.length));
+            return offset;
+        } finally {
+            pg.unlock();
+        }
     }
 
     // 获取页面的空闲空间大小
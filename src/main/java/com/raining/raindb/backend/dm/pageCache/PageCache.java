@@ -22,6 +22,8 @@ public interface PageCache {
     void truncateByBgno(int maxPgno);
     int getPageNumber();
     void flushPage(Page pg);
+    // 预读 pgnos[from, to) 这些页，页号连续的部分合并成一次大块的顺序读
+    void prefetch(int[] pgnos, int from, int to);
 
     public static PageCacheImpl create(String path, long memory) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
@@ -10,6 +10,9 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -17,6 +20,8 @@ import java.util.concurrent.locks.ReentrantLock;
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
 
     private static final int MEM_MIN_LIM = 10;
+    //预读区最多保存的页数
+    private static final int READ_AHEAD_LIM = 256;
     public static final String DB_SUFFIX = ".db";
 
     private RandomAccessFile file;
@@ -25,6 +30,10 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
 
     private AtomicInteger pageNumbers;
 
+    //预读进来但还没有被 getPage 取走的页，由 fileLock 保护。
+    //页面写回磁盘时会把预读区中对应的页删掉，所以这里的内容总是和文件一致
+    private Map<Integer, byte[]> readAhead;
+
     public PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
         super(maxResource);//父类构造方法：初始化缓存
         //如果指定扽缓存容量太小，则直接报错
@@ -41,6 +50,12 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         this.fc = fileChannel;
         this.fileLock = new ReentrantLock();
         this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.readAhead = new LinkedHashMap<Integer, byte[]>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > READ_AHEAD_LIM;
+            }
+        };
     }
 
     /**
@@ -87,17 +102,56 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         //操作文件先加锁
         fileLock.lock();
         try {
+            //已经被预读进来了，直接使用
+            byte[] data = readAhead.remove(pgno);
+            if(data != null) {
+                return new PageImpl(pgno, data, this);
+            }
             fc.position(offset);
             fc.read(buf);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            //文件操作完，记得解锁
+            fileLock.unlock();
         }
-        //文件操作完，记得解锁
-        fileLock.unlock();
         //将字节数组包裹成Page对象
         return new PageImpl(pgno, buf.array(), this);
     }
 
+    /**
+     * 顺序扫描时使用：把页号连续的一段页用一次 read 读进预读区，
+     * 之后对这些页的 getPage 就不需要再逐页读文件了。
+     * 已经在缓存中的页也可能被读进来，它们被写回时会从预读区删除，不会被误用
+     */
+    @Override
+    public void prefetch(int[] pgnos, int from, int to) {
+        int i = from;
+        while(i < to) {
+            int j = i+1;
+            while(j < to && pgnos[j] == pgnos[j-1]+1) {
+                j ++;
+            }
+            int first = pgnos[i], count = j-i;
+            ByteBuffer buf = ByteBuffer.allocate(count*PAGE_SIZE);
+            fileLock.lock();
+            try {
+                fc.position(pageOffset(first));
+                fc.read(buf);
+                byte[] all = buf.array();
+                for(int k = 0; k < count; k ++) {
+                    if(first+k > pageNumbers.get()) break;
+                    readAhead.put(first+k, Arrays.copyOfRange(all, k*PAGE_SIZE, (k+1)*PAGE_SIZE));
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            } finally {
+                fileLock.unlock();
+            }
+            i = j;
+        }
+    }
+
     @Override
     protected void releaseForCache(Page pg) {
         if (pg.isDirty()) {
@@ -120,10 +174,14 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
     @Override
     public void truncateByBgno(int maxPgno) {
         long size = pageOffset(maxPgno + 1);
+        fileLock.lock();
         try {
+            readAhead.clear();
             file.setLength(size);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.unlock();
         }
         pageNumbers.set(maxPgno);
     }
@@ -151,6 +209,7 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache{
         //操作文件的时候，加文件锁
         fileLock.lock();
         try {
+            readAhead.remove(pgno);
             // 创建一个ByteBuffer对象，将Page对象中的数据包装进去。
             // ByteBuffer是Java NIO中用于高效处理字节数据的缓冲区，
             // 支持直接对内存进行读写，也能够与通道交互，实现数据的高效传输。
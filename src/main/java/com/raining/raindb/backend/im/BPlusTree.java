@@ -6,17 +6,26 @@ import com.raining.raindb.backend.dm.dataItem.DataItem;
 import com.raining.raindb.backend.tm.TransactionManagerImpl;
 import com.raining.raindb.backend.util.Parser;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * 查找和插入都沿着兄弟指针进行，节点之间不需要加锁（B-link 树）。
+ * 删除之后的合并会同时修改多个节点，为了不让并发的范围查找看到重复或者遗漏的项，
+ * 查找、插入和普通的删除持有 structLock 的读锁，合并与重新分配持有写锁。
+ * scan 的 visitor 不在锁中调用，见 scan
+ */
 public class BPlusTree {
     DataManager dm;
     long bootUid;
     DataItem bootDataItem;
     Lock bootLock;
+    ReadWriteLock structLock;
+    //合并与重新分配的次数，持有 structLock 时读写
+    long structVersion;
 
     public static long create(DataManager dm) throws Exception {
         byte[] rawRoot = Node.newNilRootRaw();
@@ -34,6 +43,7 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        t.structLock = new ReentrantReadWriteLock();
         return t;
     }
 
@@ -61,6 +71,19 @@ public class BPlusTree {
         }
     }
 
+    // 根节点只剩一个儿子时，直接让这个儿子成为新的根
+    private void setRootUid(long rootUid) {
+        bootLock.lock();
+        try {
+            bootDataItem.before();
+            SubArray diRaw = bootDataItem.data();
+            System.arraycopy(Parser.long2Byte(rootUid), 0, diRaw.raw, diRaw.start, 8);
+            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            bootLock.unlock();
+        }
+    }
+
     //一直向下找，直到找到叶子节点，一定能找到吗？一定能找到，因为最右边的是INF，肯定大于key
     private long searchLeaf(long nodeUid, long key) throws Exception {
         Node node = Node.loadNode(this, nodeUid);
@@ -98,12 +121,26 @@ public class BPlusTree {
     }
 
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
+        return searchRange(leftKey, rightKey, null);
+    }
+
+    // keys 不为 null 时，同时按顺序返回每个 uid 对应的 key
+    public List<Long> searchRange(long leftKey, long rightKey, List<Long> keys) throws Exception {
+        structLock.readLock().lock();
+        try {
+            return internSearchRange(leftKey, rightKey, keys);
+        } finally {
+            structLock.readLock().unlock();
+        }
+    }
+
+    private List<Long> internSearchRange(long leftKey, long rightKey, List<Long> keys) throws Exception {
         long rootUid = rootUid();
         long leafUid = searchLeaf(rootUid, leftKey);
         List<Long> uids = new ArrayList<>();
         while(true) {
             Node leaf = Node.loadNode(this, leafUid);
-            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
+            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey, keys);
             leaf.release();
             uids.addAll(res.uids);
             if(res.siblingUid == 0) {
@@ -115,6 +152,161 @@ public class BPlusTree {
         return uids;
     }
 
+    public interface Visitor {
+        // 返回 false 时停止遍历
+        boolean visit(long key, long uid) throws Exception;
+    }
+
+    /**
+     * 按 key 从小到大依次访问 [leftKey, rightKey] 中的索引项，不需要先把结果全部收集起来，
+     * 调用方只要前几项时可以提前停止。
+     * 每次在 structLock 的读锁下读出一个叶子中的项，放开锁之后才调用 visitor，
+     * 所以 visitor 中可以读取数据、访问其他的 B+ 树，不会和合并互相等待。
+     * 两批之间树被合并或者重新分配过时，从根重新找到上一次访问的 key 所在的叶子，
+     * 跳过 key 更小的项，以及 key 相同、uid 已经访问过的项
+     */
+    public void scan(long leftKey, long rightKey, Visitor visitor) throws Exception {
+        long leafUid = 0;
+        long version = 0;
+        //下一批从 from 开始，seen 是已经访问过的 key 等于 from 的项
+        long from = leftKey;
+        Set<Long> seen = new HashSet<>();
+        List<Long> keys = new ArrayList<>();
+        while(true) {
+            Node.LeafSearchRangeRes res;
+            keys.clear();
+            structLock.readLock().lock();
+            try {
+                if(leafUid == 0 || version != structVersion) {
+                    version = structVersion;
+                    leafUid = searchLeaf(rootUid(), from);
+                }
+                Node leaf = Node.loadNode(this, leafUid);
+                res = leaf.leafSearchRange(from, rightKey, keys);
+                leaf.release();
+            } finally {
+                structLock.readLock().unlock();
+            }
+            for(int i = 0; i < keys.size(); i ++) {
+                long key = keys.get(i), uid = res.uids.get(i);
+                if(key != from) {
+                    from = key;
+                    seen.clear();
+                } else if(seen.contains(uid)) {
+                    continue;
+                }
+                seen.add(uid);
+                if(!visitor.visit(key, uid)) {
+                    return;
+                }
+            }
+            if(res.siblingUid == 0) {
+                return;
+            }
+            leafUid = res.siblingUid;
+        }
+    }
+
+    /**
+     * 和 scan 相同，但按 key 从大到小访问，沿着叶子的左指针向左走。
+     * 左指针只在分裂和合并时维护，分裂到一半时可能还指向分裂前的节点，
+     * 所以每次向左走之后，再沿兄弟指针向右找到兄弟指针指向当前叶子的那个节点，
+     * 这样不会漏掉分裂出来、还没有被左指针指到的节点
+     */
+    public void scanDesc(long leftKey, long rightKey, Visitor visitor) throws Exception {
+        long leafUid = 0, left = 0;
+        long version = 0;
+        //下一批到 to 为止，seen 是已经访问过的 key 等于 to 的项
+        long to = rightKey;
+        Set<Long> seen = new HashSet<>();
+        List<Long> keys = new ArrayList<>();
+        while(true) {
+            Node.LeafSearchRangeRes res;
+            int noKeys;
+            long first;
+            keys.clear();
+            structLock.readLock().lock();
+            try {
+                if(leafUid == 0 || version != structVersion) {
+                    version = structVersion;
+                    leafUid = lastLeaf(to);
+                } else {
+                    while(true) {
+                        long sibling = siblingOf(left);
+                        if(sibling == leafUid) break;
+                        if(sibling == 0) return;
+                        left = sibling;
+                    }
+                    leafUid = left;
+                }
+                Node leaf = Node.loadNode(this, leafUid);
+                res = leaf.leafSearchRange(leftKey, to, keys);
+                noKeys = leaf.getNoKeys();
+                first = noKeys > 0 ? leaf.getKthKey(0) : 0;
+                left = leaf.getLeftSibling();
+                leaf.release();
+            } finally {
+                structLock.readLock().unlock();
+            }
+            for(int i = keys.size()-1; i >= 0; i --) {
+                long key = keys.get(i), uid = res.uids.get(i);
+                if(key != to) {
+                    to = key;
+                    seen.clear();
+                } else if(seen.contains(uid)) {
+                    continue;
+                }
+                seen.add(uid);
+                if(!visitor.visit(key, uid)) {
+                    return;
+                }
+            }
+            if(left == 0 || (noKeys > 0 && first < leftKey)) {
+                return;
+            }
+        }
+    }
+
+    // 最右边的可能含有不大于 key 的项的叶子
+    private long lastLeaf(long key) throws Exception {
+        //内部节点最右边的 key 是 INF，等于 INF 的 key 找不到儿子，只能沿最右边的儿子下去
+        long leafUid = key == Long.MAX_VALUE ? rightmostLeaf() : searchLeaf(rootUid(), key);
+        //等于 key 的项可能延续到右边的叶子
+        while(true) {
+            long sibling = siblingOf(leafUid);
+            if(sibling == 0) break;
+            Node next = Node.loadNode(this, sibling);
+            int n = next.getNoKeys();
+            long first = n > 0 ? next.getKthKey(0) : 0;
+            next.release();
+            if(n > 0 && first > key) break;
+            leafUid = sibling;
+        }
+        return leafUid;
+    }
+
+    private long siblingOf(long nodeUid) throws Exception {
+        Node node = Node.loadNode(this, nodeUid);
+        long sibling = node.getSibling();
+        node.release();
+        return sibling;
+    }
+
+    private long rightmostLeaf() throws Exception {
+        long nodeUid = rootUid();
+        while(true) {
+            Node node = Node.loadNode(this, nodeUid);
+            try {
+                if(node.isLeaf()) {
+                    return nodeUid;
+                }
+                nodeUid = node.getKthSon(node.getNoKeys()-1);
+            } finally {
+                node.release();
+            }
+        }
+    }
+
     /**
      * 在B+树的节点中插入一个键值对
      * @param key
@@ -122,12 +314,181 @@ public class BPlusTree {
      * @throws Exception
      */
     public void insert(long key, long uid) throws Exception {
-        long rootUid = rootUid();
-        //insert是递归的
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if(res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+        structLock.readLock().lock();
+        try {
+            long rootUid = rootUid();
+            //insert是递归的
+            InsertRes res = insert(rootUid, uid, key);
+            assert res != null;
+            if(res.newNode != 0) {
+                updateRootUid(rootUid, res.newNode, res.newKey);
+            }
+        } finally {
+            structLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 删除 (key, uid) 这一个索引项，返回是否找到并删除。
+     * 删除后叶子节点的 key 少于 MIN_KEYS 时，持有写锁沿着 key 的路径自底向上合并或重新分配。
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        boolean underflow = false;
+        structLock.readLock().lock();
+        try {
+            long rootUid = rootUid();
+            long leafUid = searchLeaf(rootUid, key);
+            while(true) {
+                Node leaf = Node.loadNode(this, leafUid);
+                Node.LeafDeleteRes res = leaf.leafDelete(key, uid);
+                leaf.release();
+                if(res.deleted) {
+                    underflow = leafUid != rootUid && res.noKeys < Node.MIN_KEYS;
+                    break;
+                }
+                if(res.siblingUid == 0) {
+                    return false;
+                }
+                leafUid = res.siblingUid;
+            }
+        } finally {
+            structLock.readLock().unlock();
+        }
+        if(underflow) {
+            structLock.writeLock().lock();
+            try {
+                structVersion ++;
+                rebalance(key);
+            } finally {
+                structLock.writeLock().unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 记录从根到 key 所在叶子的路径，然后自底向上处理 key 太少的节点，
+     * 父节点因为合并少了一个儿子时，继续检查父节点。
+     */
+    private void rebalance(long key) throws Exception {
+        List<Long> path = new ArrayList<>();
+        // path.get(i+1) 是 path.get(i) 的第 kths.get(i) 个儿子
+        List<Integer> kths = new ArrayList<>();
+        long nodeUid = rootUid();
+        while(true) {
+            Node node = Node.loadNode(this, nodeUid);
+            try {
+                if(node.isLeaf()) {
+                    path.add(nodeUid);
+                    break;
+                }
+                int kth = node.searchNextKth(key);
+                if(kth < 0) {
+                    nodeUid = node.getSibling();
+                    continue;
+                }
+                path.add(nodeUid);
+                kths.add(kth);
+                nodeUid = node.getKthSon(kth);
+            } finally {
+                node.release();
+            }
+        }
+
+        for(int level = path.size()-1; level > 0; level --) {
+            Node node = Node.loadNode(this, path.get(level));
+            int noKeys = node.getNoKeys();
+            node.release();
+            if(noKeys >= Node.MIN_KEYS) {
+                break;
+            }
+            if(!fix(path.get(level-1), kths.get(level-1))) {
+                break;
+            }
+        }
+
+        while(true) {
+            Node root = Node.loadNode(this, rootUid());
+            boolean collapse = !root.isLeaf() && root.getNoKeys() == 1;
+            long son = root.getKthSon(0);
+            root.release();
+            if(!collapse) {
+                break;
+            }
+            setRootUid(son);
+        }
+    }
+
+    /**
+     * 处理父节点 parentUid 的第 kth 个儿子，取它和一个相邻的兄弟：
+     * 两者放得进一个节点就把左边的并入右边，并从父节点删除左边的项，返回 true；
+     * 否则在两者之间平分，并修改父节点中左边儿子的 key，返回 false。
+     * 合并总是把左边清空，这样旧的兄弟指针始终指向仍然有效的数据。
+     */
+    private boolean fix(long parentUid, int kth) throws Exception {
+        Node parent = Node.loadNode(this, parentUid);
+        try {
+            if(parent.getNoKeys() < 2) {
+                return false;
+            }
+            int l = kth > 0 ? kth-1 : kth;
+            Node left = Node.loadNode(this, parent.getKthSon(l));
+            Node right = Node.loadNode(this, parent.getKthSon(l+1));
+            try {
+                int ln = left.getNoKeys(), rn = right.getNoKeys();
+                if(ln + rn < Node.BALANCE_NUMBER*2) {
+                    right.absorbLeft(left);
+                    parent.removeKth(l);
+                    if(l > 0) {
+                        Node prev = Node.loadNode(this, parent.getKthSon(l-1));
+                        prev.setSibling(right.uid);
+                        prev.release();
+                    }
+                    return true;
+                }
+                if(ln > rn) {
+                    left.moveTailTo(right, (ln-rn)/2);
+                } else {
+                    right.moveHeadTo(left, (rn-ln)/2);
+                }
+                //和 split 的约定一致：叶子以右边第一个 key 为界，内部节点的 key 是儿子的上界
+                long newKey = left.isLeaf() ? right.getKthKey(0) : left.getKthKey(left.getNoKeys()-1);
+                parent.setKthKey(l, newKey);
+                return false;
+            } finally {
+                left.release();
+                right.release();
+            }
+        } finally {
+            parent.release();
+        }
+    }
+
+    /**
+     * 批量插入已经按 key 从小到大排好序的索引项。相邻的 key 大多落在同一个叶子中，
+     * 每次找到一个叶子后用 Node.leafInsertRun 插入一段，这一段只记录一次日志；
+     * 需要分裂或者应该插在兄弟节点中时退回到逐项插入
+     */
+    public void insert(long[] keys, long[] uids) throws Exception {
+        int i = 0;
+        while(i < keys.length) {
+            int n;
+            structLock.readLock().lock();
+            try {
+                Node leaf = Node.loadNode(this, searchLeaf(rootUid(), keys[i]));
+                try {
+                    n = leaf.leafInsertRun(keys, uids, i, keys.length);
+                } finally {
+                    leaf.release();
+                }
+            } finally {
+                structLock.readLock().unlock();
+            }
+            if(n == 0) {
+                insert(keys[i], uids[i]);
+                n = 1;
+            }
+            i += n;
         }
     }
 
@@ -11,16 +11,21 @@ import java.util.List;
 
 /**
  * Node结构如下：
- * [LeafFlag][KeyNumber][SiblingUid]
+ * [LeafFlag][KeyNumber][SiblingUid][LeftSiblingUid]
  * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
+ * LeftSiblingUid 指向同一层左边的节点，用于倒序遍历。它只在分裂和合并时维护，
+ * 分裂进行到一半时可能还指向分裂前的节点，所以倒序遍历时要再沿着 SiblingUid 向右确认，见 BPlusTree.scanDesc
  */
 public class Node {
     static final int IS_LEAF_OFFSET = 0;
     static final int NO_KEYS_OFFSET = IS_LEAF_OFFSET+1;
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET+2;
-    static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;
+    static final int LEFT_SIBLING_OFFSET = SIBLING_OFFSET+8;
+    static final int NODE_HEADER_SIZE = LEFT_SIBLING_OFFSET+8;
 
     static final int BALANCE_NUMBER = 32;
+    //非根节点的 key 少于这个数时，删除后需要和兄弟节点合并或者从兄弟节点借
+    static final int MIN_KEYS = BALANCE_NUMBER / 2;
     //2*8*(32*2+2)，乘以2，是因为填充因子为0.5,+2是空余1个，方便分裂
     static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);
 
@@ -57,6 +62,14 @@ public class Node {
         return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
     }
 
+    static void setRawLeftSibling(SubArray raw, long left) {
+        System.arraycopy(Parser.long2Byte(left), 0, raw.raw, raw.start+LEFT_SIBLING_OFFSET, 8);
+    }
+
+    static long getRawLeftSibling(SubArray raw) {
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+LEFT_SIBLING_OFFSET, raw.start+LEFT_SIBLING_OFFSET+8));
+    }
+
     static void setRawKthSon(SubArray raw, long uid, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
         System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
@@ -92,6 +105,13 @@ public class Node {
         }
     }
 
+    //将 kth 之后的元素向左移动一位，覆盖掉第 kth 个元素
+    static void shiftRawKthLeft(SubArray raw, int kth, int noKeys) {
+        int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+        int end = raw.start+NODE_HEADER_SIZE+noKeys*(8*2);
+        System.arraycopy(raw.raw, begin+(8*2), raw.raw, begin, end-begin-(8*2));
+    }
+
     /**
      * [LeafFlag: 0]  是否为叶子节点
      * [KeyNumber: 2]
@@ -123,6 +143,7 @@ public class Node {
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
         setRawSibling(raw, 0);
+        setRawLeftSibling(raw, 0);
         setRawKthSon(raw, left, 0);
         setRawKthKey(raw, key, 0);
         setRawKthSon(raw, right, 1);
@@ -140,6 +161,7 @@ public class Node {
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
         setRawSibling(raw, 0);
+        setRawLeftSibling(raw, 0);
 
         return raw.raw;
     }
@@ -168,6 +190,51 @@ public class Node {
         }
     }
 
+    public int getNoKeys() {
+        dataItem.rLock();
+        try {
+            return getRawNoKeys(raw);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public long getSibling() {
+        dataItem.rLock();
+        try {
+            return getRawSibling(raw);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public long getLeftSibling() {
+        dataItem.rLock();
+        try {
+            return getRawLeftSibling(raw);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public long getKthSon(int kth) {
+        dataItem.rLock();
+        try {
+            return getRawKthSon(raw, kth);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public long getKthKey(int kth) {
+        dataItem.rLock();
+        try {
+            return getRawKthKey(raw, kth);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
     //接下来要实现两个辅助搜索，在BPlusTree里面调用
     class  SearchNextRes {
         long uid;
@@ -201,6 +268,24 @@ public class Node {
         }
     }
 
+    /**
+     * 和 searchNext 相同，但返回的是儿子在本节点中的位置，找不到时返回 -1（需要去兄弟节点）
+     */
+    public int searchNextKth(long key) {
+        dataItem.rLock();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            for (int i = 0; i < noKeys; i++) {
+                if (key < getRawKthKey(raw, i)) {
+                    return i;
+                }
+            }
+            return -1;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
     class LeafSearchRangeRes {
         List<Long> uids;
         long siblingUid;
@@ -213,6 +298,11 @@ public class Node {
      * 则还同时返回兄弟节点的 UID，方便继续搜索下一个节点。
      */
     public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
+        return leafSearchRange(leftKey, rightKey, null);
+    }
+
+    // keys 不为 null 时，同时按顺序收集每个 uid 对应的 key
+    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey, List<Long> keys) {
         dataItem.rLock();
         try {
             int noKeys = getRawNoKeys(raw);
@@ -229,6 +319,9 @@ public class Node {
                 long ik = getRawKthKey(raw, kth);
                 if(ik <= rightKey) {
                     uids.add(getRawKthSon(raw, kth));
+                    if(keys != null) {
+                        keys.add(ik);
+                    }
                     kth ++;
                 } else {
                     break;
@@ -251,6 +344,198 @@ public class Node {
     }
 
 
+    class LeafDeleteRes {
+        boolean deleted;
+        long siblingUid;
+        int noKeys;
+    }
+
+    /**
+     * 在叶子节点中删除 (key, uid) 这一项，不做合并。
+     * 和 leafSearchRange 一样，如果 key 大于等于该节点所有的 key 仍没有找到，
+     * 则返回兄弟节点的 UID，继续在兄弟节点中查找。
+     */
+    public LeafDeleteRes leafDelete(long key, long uid) {
+        LeafDeleteRes res = new LeafDeleteRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = 0;
+            while(kth < noKeys) {
+                long ik = getRawKthKey(raw, kth);
+                if(ik > key) {
+                    break;
+                }
+                if(ik == key && getRawKthSon(raw, kth) == uid) {
+                    shiftRawKthLeft(raw, kth, noKeys);
+                    setRawNoKeys(raw, noKeys-1);
+                    res.deleted = true;
+                    res.noKeys = noKeys-1;
+                    return res;
+                }
+                kth ++;
+            }
+            if(kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
+        } finally {
+            if(res.deleted) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    /*
+     * 下面几个方法用于删除之后的合并与重新分配，调用时 BPlusTree 已经持有整棵树的写锁，
+     * before/after 只是为了记录日志。
+     */
+
+    /**
+     * 把左兄弟 left 的所有项并到本节点的前面，left 变成空节点。
+     * 空节点的兄弟指针仍然指向右边，通过旧的兄弟指针到达 left 的查找会继续走到本节点；
+     * 本节点的左指针改为 left 的左指针，跳过空节点。
+     * 先写本节点再清空 left，中间崩溃最多留下重复项，而不会丢失索引项。
+     */
+    public void absorbLeft(Node left) {
+        dataItem.before();
+        try {
+            int ln = getRawNoKeys(left.raw);
+            int n = getRawNoKeys(raw);
+            int base = raw.start+NODE_HEADER_SIZE;
+            System.arraycopy(raw.raw, base, raw.raw, base+ln*(8*2), n*(8*2));
+            System.arraycopy(left.raw.raw, left.raw.start+NODE_HEADER_SIZE, raw.raw, base, ln*(8*2));
+            setRawNoKeys(raw, ln+n);
+            setRawLeftSibling(raw, getRawLeftSibling(left.raw));
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+        left.dataItem.before();
+        try {
+            setRawNoKeys(left.raw, 0);
+        } finally {
+            left.dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+    }
+
+    /**
+     * 把本节点最后的 m 项移到右兄弟 right 的前面
+     */
+    public void moveTailTo(Node right, int m) {
+        int n = getNoKeys();
+        right.dataItem.before();
+        try {
+            int rn = getRawNoKeys(right.raw);
+            int base = right.raw.start+NODE_HEADER_SIZE;
+            System.arraycopy(right.raw.raw, base, right.raw.raw, base+m*(8*2), rn*(8*2));
+            System.arraycopy(raw.raw, raw.start+NODE_HEADER_SIZE+(n-m)*(8*2), right.raw.raw, base, m*(8*2));
+            setRawNoKeys(right.raw, rn+m);
+        } finally {
+            right.dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+        dataItem.before();
+        try {
+            setRawNoKeys(raw, n-m);
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+    }
+
+    /**
+     * 把本节点最前面的 m 项移到左兄弟 left 的末尾
+     */
+    public void moveHeadTo(Node left, int m) {
+        int n = getNoKeys();
+        left.dataItem.before();
+        try {
+            int ln = getRawNoKeys(left.raw);
+            System.arraycopy(raw.raw, raw.start+NODE_HEADER_SIZE, left.raw.raw, left.raw.start+NODE_HEADER_SIZE+ln*(8*2), m*(8*2));
+            setRawNoKeys(left.raw, ln+m);
+        } finally {
+            left.dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+        dataItem.before();
+        try {
+            int base = raw.start+NODE_HEADER_SIZE;
+            System.arraycopy(raw.raw, base+m*(8*2), raw.raw, base, (n-m)*(8*2));
+            setRawNoKeys(raw, n-m);
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+    }
+
+    // 删除第 kth 个儿子及其 key，用于合并之后的父节点
+    public void removeKth(int kth) {
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            shiftRawKthLeft(raw, kth, noKeys);
+            setRawNoKeys(raw, noKeys-1);
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+    }
+
+    public void setKthKey(int kth, long key) {
+        dataItem.before();
+        try {
+            setRawKthKey(raw, key, kth);
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+    }
+
+    public void setSibling(long sibling) {
+        dataItem.before();
+        try {
+            setRawSibling(raw, sibling);
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+    }
+
+    /**
+     * 批量插入：keys 已经按从小到大排好序，从 from 开始把属于本叶子的项依次插入，只记录一次日志。
+     * 遇到应该插在兄弟节点中的 key，或者再插入一项就需要分裂时停止，剩下的由 insertAndSplit 处理
+     * @return 插入的项数
+     */
+    public int leafInsertRun(long[] keys, long[] uids, int from, int to) {
+        int count = 0;
+        dataItem.before();
+        try {
+            if(!getRawIfLeaf(raw)) {
+                return 0;
+            }
+            int noKeys = getRawNoKeys(raw);
+            long sibling = getRawSibling(raw);
+            int kth = 0;
+            for(int i = from; i < to && noKeys+1 < BALANCE_NUMBER*2; i ++) {
+                //和 insert 相同，插在第一个大于等于 key 的位置；后面的 key 更大，从这个位置继续找
+                while(kth < noKeys && getRawKthKey(raw, kth) < keys[i]) {
+                    kth ++;
+                }
+                if(kth == noKeys && sibling != 0) {
+                    break;
+                }
+                shiftRawKth(raw, kth);
+                setRawKthKey(raw, keys[i], kth);
+                setRawKthSon(raw, uids[i], kth);
+                noKeys ++;
+                setRawNoKeys(raw, noKeys);
+                count ++;
+            }
+            return count;
+        } finally {
+            if(count > 0) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
     class InsertAndSplitRes {
         long siblingUid, newSon, newKey;
     }
@@ -380,7 +665,10 @@ public class Node {
         // 设置新节点的键的数量为BALANCE_NUMBER
         setRawNoKeys(nodeRaw, BALANCE_NUMBER);
         // 设置新节点的兄弟节点的UID，与原节点的兄弟节点的UID相同
-        setRawSibling(nodeRaw, getRawSibling(raw));
+        long right = getRawSibling(raw);
+        setRawSibling(nodeRaw, right);
+        // 新节点在原节点的右边
+        setRawLeftSibling(nodeRaw, uid);
         // 从原节点的原始字节数组中复制一部分数据到新节点的原始字节数组中
         copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
         // 在数据管理器中插入新节点的原始数据，并获取新节点的UID
@@ -389,6 +677,17 @@ public class Node {
         setRawNoKeys(raw, BALANCE_NUMBER);
         // 更新原节点的兄弟节点的UID为新节点的UID
         setRawSibling(raw, son);
+        // 原来的右兄弟的左指针改为新节点。这时仍持有本节点的写锁，加锁的顺序总是从左到右
+        if(right != 0) {
+            Node r = loadNode(tree, right);
+            r.dataItem.before();
+            try {
+                setRawLeftSibling(r.raw, son);
+            } finally {
+                r.dataItem.after(TransactionManagerImpl.SUPER_XID);
+                r.release();
+            }
+        }
 
         // 创建一个SplitRes对象，用于存储分裂结果
         SplitRes res = new SplitRes();
@@ -408,6 +707,7 @@ public class Node {
         int KeyNumber = getRawNoKeys(raw);
         sb.append("KeyNumber: ").append(KeyNumber).append("\n");
         sb.append("sibling: ").append(getRawSibling(raw)).append("\n");
+        sb.append("left sibling: ").append(getRawLeftSibling(raw)).append("\n");
         for(int i = 0; i < KeyNumber; i ++) {
             sb.append("son: ").append(getRawKthSon(raw, i)).append(", key: ").append(getRawKthKey(raw, i)).append("\n");
         }
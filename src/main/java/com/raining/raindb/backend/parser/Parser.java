@@ -12,6 +12,12 @@ import java.util.List;
  * - 解析过程相对简单，仅根据第一个Token来区分语句类型，并分别处理。
  */
 public class Parser {
+    /**
+     * 预编译语句中的占位符 ?。解析出的语句中，值的位置上是这个对象本身（不是内容相同的字符串），
+     * 这样和用引号写的 '?' 区分开，绑定参数时用 == 判断
+     */
+    public static final String PARAM = new String("?");
+
     public static Object Parse(byte[] statement) throws Exception {
         Tokenizer tokenizer = new Tokenizer(statement);
         String token = tokenizer.peek();
@@ -54,6 +60,30 @@ public class Parser {
                 case "show":
                     stat = parseShow(tokenizer);
                     break;
+                case "vacuum":
+                    stat = parseVacuum(tokenizer);
+                    break;
+                case "analyze":
+                    stat = parseAnalyze(tokenizer);
+                    break;
+                case "prepare":
+                    stat = parsePrepare(tokenizer);
+                    break;
+                case "execute":
+                    stat = parseExecute(tokenizer);
+                    break;
+                case "deallocate":
+                    stat = parseDeallocate(tokenizer);
+                    break;
+                case "declare":
+                    stat = parseDeclare(tokenizer);
+                    break;
+                case "fetch":
+                    stat = parseFetch(tokenizer);
+                    break;
+                case "copy":
+                    stat = parseCopy(tokenizer);
+                    break;
                 default:
                     throw Error.InvalidCommandException;
             }
@@ -77,6 +107,122 @@ public class Parser {
         return stat;
     }
 
+    // prepare 名字 as 语句，语句只能是 select、insert、update、delete
+    private static Prepare parsePrepare(Tokenizer tokenizer) throws Exception {
+        Prepare prepare = new Prepare();
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        prepare.name = name;
+        tokenizer.pop();
+        if(!"as".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        String token = tokenizer.peek();
+        tokenizer.pop();
+        switch(token) {
+            case "select":
+                prepare.statement = parseSelect(tokenizer);
+                break;
+            case "insert":
+                prepare.statement = parseInsert(tokenizer);
+                break;
+            case "delete":
+                prepare.statement = parseDelete(tokenizer);
+                break;
+            case "update":
+                prepare.statement = parseUpdate(tokenizer);
+                break;
+            default:
+                throw Error.InvalidCommandException;
+        }
+        return prepare;
+    }
+
+    // execute 名字 参数1 参数2 ...
+    private static Execute parseExecute(Tokenizer tokenizer) throws Exception {
+        Execute execute = new Execute();
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        execute.name = name;
+        List<String> args = new ArrayList<>();
+        while(true) {
+            tokenizer.pop();
+            String arg = tokenizer.peek();
+            if("".equals(arg)) {
+                break;
+            }
+            args.add(arg);
+        }
+        execute.args = args.toArray(new String[args.size()]);
+        return execute;
+    }
+
+    private static Deallocate parseDeallocate(Tokenizer tokenizer) throws Exception {
+        Deallocate deallocate = new Deallocate();
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        deallocate.name = name;
+        tokenizer.pop();
+        return deallocate;
+    }
+
+    // declare 名字 cursor for select ...
+    private static Declare parseDeclare(Tokenizer tokenizer) throws Exception {
+        Declare declare = new Declare();
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        declare.name = name;
+        tokenizer.pop();
+        if(!"cursor".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"for".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"select".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        declare.select = parseSelect(tokenizer);
+        return declare;
+    }
+
+    // fetch 名字，或者 fetch 行数 from 名字
+    private static Fetch parseFetch(Tokenizer tokenizer) throws Exception {
+        Fetch fetch = new Fetch();
+        String tmp = tokenizer.peek();
+        tokenizer.pop();
+        if("from".equals(tokenizer.peek())) {
+            try {
+                fetch.count = Integer.parseInt(tmp);
+            } catch(NumberFormatException e) {
+                throw Error.InvalidCommandException;
+            }
+            if(fetch.count <= 0) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            tmp = tokenizer.peek();
+            tokenizer.pop();
+        }
+        if("".equals(tmp) || !isName(tmp)) {
+            throw Error.InvalidCommandException;
+        }
+        fetch.name = tmp;
+        return fetch;
+    }
+
     private static Show parseShow(Tokenizer tokenizer) throws Exception {
         String tmp = tokenizer.peek();
         if("".equals(tmp)) {
@@ -85,12 +231,53 @@ public class Parser {
         throw Error.InvalidCommandException;
     }
 
+    private static Vacuum parseVacuum(Tokenizer tokenizer) throws Exception {
+        Vacuum vacuum = new Vacuum();
+        String tableName = tokenizer.peek();
+        if("".equals(tableName)) {
+            return vacuum;
+        }
+        if(!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        vacuum.tableName = tableName;
+        tokenizer.pop();
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return vacuum;
+    }
+
+    private static Analyze parseAnalyze(Tokenizer tokenizer) throws Exception {
+        Analyze analyze = new Analyze();
+        String tableName = tokenizer.peek();
+        if("".equals(tableName)) {
+            return analyze;
+        }
+        if(!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        analyze.tableName = tableName;
+        tokenizer.pop();
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return analyze;
+    }
+
+    // close 关闭数据库，close 名字 关闭游标
     private static Close parseClose(Tokenizer tokenizer) throws Exception {
         String tmp = tokenizer.peek();
         if("".equals(tmp)) {
             return new Close();
         }
-        throw Error.InvalidCommandException;
+        if(!isName(tmp)) {
+            throw Error.InvalidCommandException;
+        }
+        Close close = new Close();
+        close.name = tmp;
+        tokenizer.pop();
+        return close;
     }
 
 
@@ -112,8 +299,7 @@ public class Parser {
         }
         tokenizer.pop();
 
-        update.value = tokenizer.peek();
-        tokenizer.pop();
+        update.value = parseValue(tokenizer);
 
         String tmp = tokenizer.peek();
         if("".equals(tmp)) {
@@ -164,13 +350,47 @@ public class Parser {
         }
 
         List<String> values = new ArrayList<>();
-        while(true) {
-            tokenizer.pop();
-            String value = tokenizer.peek();
-            if("".equals(value)) {
-                break;
-            } else {
-                values.add(value);
+        tokenizer.pop();
+        if("(".equals(tokenizer.peek()) && !tokenizer.isQuoted()) {
+            //多行：values (v1, v2), (v1, v2) ...，每行的值个数必须相同
+            int rows = 0;
+            int width = -1;
+            while(true) {
+                if(!"(".equals(tokenizer.peek())) {
+                    throw Error.InvalidCommandException;
+                }
+                tokenizer.pop();
+                int n = 0;
+                while(true) {
+                    values.add(parseValue(tokenizer));
+                    n ++;
+                    String next = tokenizer.peek();
+                    tokenizer.pop();
+                    if(")".equals(next)) {
+                        break;
+                    } else if(!",".equals(next)) {
+                        throw Error.InvalidCommandException;
+                    }
+                }
+                if(width != -1 && n != width) {
+                    throw Error.InvalidValuesException;
+                }
+                width = n;
+                rows ++;
+                if(!",".equals(tokenizer.peek())) {
+                    break;
+                }
+                tokenizer.pop();
+            }
+            insert.rows = rows;
+        } else {
+            while(true) {
+                String value = tokenizer.peek();
+                if("".equals(value)) {
+                    break;
+                }
+                values.add("?".equals(value) && !tokenizer.isQuoted() ? PARAM : value);
+                tokenizer.pop();
             }
         }
         insert.values = values.toArray(new String[values.size()]);
@@ -178,22 +398,64 @@ public class Parser {
         return insert;
     }
 
+    // copy 表名 from '文件'
+    private static Copy parseCopy(Tokenizer tokenizer) throws Exception {
+        Copy copy = new Copy();
+        String tableName = tokenizer.peek();
+        if(!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        copy.tableName = tableName;
+        tokenizer.pop();
+        if(!"from".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        String path = tokenizer.peek();
+        if("".equals(path)) {
+            throw Error.InvalidCommandException;
+        }
+        copy.path = path;
+        tokenizer.pop();
+        return copy;
+    }
+
     private static Select parseSelect(Tokenizer tokenizer) throws Exception {
         Select read = new Select();
 
         List<String> fields = new ArrayList<>();
+        List<String> aggregates = new ArrayList<>();
         String asterisk = tokenizer.peek();
         if("*".equals(asterisk)) {
             fields.add(asterisk);
+            aggregates.add(null);
             tokenizer.pop();
         } else {
             while(true) {
-                String field = tokenizer.peek();
-                if(!isName(field)) {
-                    throw Error.InvalidCommandException;
+                String field = parseColumn(tokenizer);
+                if("(".equals(tokenizer.peek())) {
+                    //聚合函数：count(*)、count(f)、sum(f)、min(f)、max(f)
+                    if(!isAggregate(field)) {
+                        throw Error.InvalidCommandException;
+                    }
+                    tokenizer.pop();
+                    String arg;
+                    if("*".equals(tokenizer.peek()) && "count".equals(field)) {
+                        arg = "*";
+                        tokenizer.pop();
+                    } else {
+                        arg = parseColumn(tokenizer);
+                    }
+                    if(!")".equals(tokenizer.peek())) {
+                        throw Error.InvalidCommandException;
+                    }
+                    tokenizer.pop();
+                    aggregates.add(field);
+                    fields.add(arg);
+                } else {
+                    aggregates.add(null);
+                    fields.add(field);
                 }
-                fields.add(field);
-                tokenizer.pop();
                 if(",".equals(tokenizer.peek())) {
                     tokenizer.pop();
                 } else {
@@ -202,6 +464,7 @@ public class Parser {
             }
         }
         read.fields = fields.toArray(new String[fields.size()]);
+        read.aggregates = aggregates.toArray(new String[aggregates.size()]);
 
         if(!"from".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
@@ -215,16 +478,107 @@ public class Parser {
         read.tableName = tableName;
         tokenizer.pop();
 
-        String tmp = tokenizer.peek();
-        if("".equals(tmp)) {
-            read.where = null;
-            return read;
+        if("join".equals(tokenizer.peek())) {
+            read.join = parseJoin(tokenizer);
+        }
+        if("where".equals(tokenizer.peek())) {
+            read.where = parseWhere(tokenizer);
+        }
+        if("group".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"by".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            read.groupBy = parseColumn(tokenizer);
+        }
+        if("order".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if(!"by".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            read.orderBy = parseColumn(tokenizer);
+            String dir = tokenizer.peek();
+            if("asc".equals(dir) || "desc".equals(dir)) {
+                read.desc = "desc".equals(dir);
+                tokenizer.pop();
+            }
+        }
+        if("limit".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            read.limit = parseCount(tokenizer);
+        }
+        if("offset".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            read.offset = parseCount(tokenizer);
         }
-
-        read.where = parseWhere(tokenizer);
         return read;
     }
 
+    // join 表名 on 字段 = 字段
+    private static Join parseJoin(Tokenizer tokenizer) throws Exception {
+        Join join = new Join();
+        tokenizer.pop();
+        String tableName = tokenizer.peek();
+        if(!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        join.tableName = tableName;
+        tokenizer.pop();
+        if(!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        join.leftField = parseColumn(tokenizer);
+        if(!"=".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        join.rightField = parseColumn(tokenizer);
+        return join;
+    }
+
+    // 字段名，可以写成 表名.字段名
+    private static String parseColumn(Tokenizer tokenizer) throws Exception {
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        if(!".".equals(tokenizer.peek())) {
+            return name;
+        }
+        tokenizer.pop();
+        String field = tokenizer.peek();
+        if(!isName(field)) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return name + "." + field;
+    }
+
+    // limit 和 offset 后面的非负整数
+    private static long parseCount(Tokenizer tokenizer) throws Exception {
+        String num = tokenizer.peek();
+        try {
+            long n = Long.parseLong(num);
+            if(n < 0) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            return n;
+        } catch(NumberFormatException e) {
+            throw Error.InvalidCommandException;
+        }
+    }
+
+    // where 后面可以跟着的子句
+    private static boolean isClause(String token) {
+        return "group".equals(token) || "order".equals(token) ||
+                "limit".equals(token) || "offset".equals(token);
+    }
+
     private static Where parseWhere(Tokenizer tokenizer) throws Exception {
         Where where = new Where();
 
@@ -237,8 +591,8 @@ public class Parser {
         where.singleExp1 = exp1;
 
         String logicOp = tokenizer.peek();
-        if("".equals(logicOp)) {
-            where.logicOp = logicOp;
+        if("".equals(logicOp) || isClause(logicOp)) {
+            where.logicOp = "";
             return where;
         }
         if(!isLogicOp(logicOp)) {
@@ -250,7 +604,8 @@ public class Parser {
         SingleExpression exp2 = parseSingleExp(tokenizer);
         where.singleExp2 = exp2;
 
-        if(!"".equals(tokenizer.peek())) {
+        String next = tokenizer.peek();
+        if(!"".equals(next) && !isClause(next)) {
             throw Error.InvalidCommandException;
         }
         return where;
@@ -259,12 +614,7 @@ public class Parser {
     private static SingleExpression parseSingleExp(Tokenizer tokenizer) throws Exception {
         SingleExpression exp = new SingleExpression();
 
-        String field = tokenizer.peek();
-        if(!isName(field)) {
-            throw Error.InvalidCommandException;
-        }
-        exp.field = field;
-        tokenizer.pop();
+        exp.field = parseColumn(tokenizer);
 
         String op = tokenizer.peek();
         if(!isCmpOp(op)) {
@@ -273,15 +623,29 @@ public class Parser {
         exp.compareOp = op;
         tokenizer.pop();
 
-        exp.value = tokenizer.peek();
-        tokenizer.pop();
+        exp.value = parseValue(tokenizer);
         return exp;
     }
 
+    // 一个值，没有引号的 ? 是占位符
+    private static String parseValue(Tokenizer tokenizer) throws Exception {
+        String value = tokenizer.peek();
+        if("?".equals(value) && !tokenizer.isQuoted()) {
+            value = PARAM;
+        }
+        tokenizer.pop();
+        return value;
+    }
+
     private static boolean isCmpOp(String op) {
         return ("=".equals(op) || ">".equals(op) || "<".equals(op));
     }
 
+    private static boolean isAggregate(String func) {
+        return ("count".equals(func) || "sum".equals(func) ||
+                "min".equals(func) || "max".equals(func));
+    }
+
     private static boolean isLogicOp(String op) {
         return ("and".equals(op) || "or".equals(op));
     }
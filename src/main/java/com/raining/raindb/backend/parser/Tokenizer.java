@@ -18,6 +18,8 @@ public class Tokenizer {
     private boolean flushToken;
     //用于存储解析过程中遇到的异常
     private Exception err;
+    //当前的token是否是用引号括起来的
+    private boolean quoted;
 
     public Tokenizer(byte[] stat) {
         this.stat = stat;
@@ -48,6 +50,10 @@ public class Tokenizer {
         flushToken = true;
     }
 
+    public boolean isQuoted() {
+        return quoted;
+    }
+
     private String next() throws Exception {
         if (err != null) {
             throw err;
@@ -56,6 +62,7 @@ public class Tokenizer {
     }
 
     private String nextMetaState() throws Exception {
+        quoted = false;
         while (true) {
             Byte b = peekByte();
             if (b == null) {
@@ -71,6 +78,7 @@ public class Tokenizer {
             popByte();
             return new String(new byte[]{b});
         } else if(b == '"' || b == '\'') {
+            quoted = true;
             return nextQuoteState();
         } else if(isAlphaBeta(b) || isDigit(b)) {
             return nextTokenState();
@@ -100,7 +108,7 @@ public class Tokenizer {
 
     static boolean isSymbol(byte b) {
         return (b == '>' || b == '<' || b == '=' || b == '*' ||
-                b == ',' || b == '(' || b == ')');
+                b == ',' || b == '(' || b == ')' || b == '.' || b == '?');
     }
 
     static boolean isDigit(byte b) {
@@ -0,0 +1,6 @@
+package com.raining.raindb.backend.parser.statement;
+
+public class Analyze {
+    // 为 null 时统计所有的表
+    public String tableName;
+}
@@ -1,4 +1,6 @@
 package com.raining.raindb.backend.parser.statement;
 
 public class Close {
+    // 要关闭的游标，为 null 时关闭数据库
+    public String name;
 }
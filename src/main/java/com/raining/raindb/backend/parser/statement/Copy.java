@@ -0,0 +1,7 @@
+package com.raining.raindb.backend.parser.statement;
+
+// copy 表名 from '文件'，文件是服务端导入目录（raindb.importDir）中的 csv 文件，每行按字段顺序
+public class Copy {
+    public String tableName;
+    public String path;
+}
@@ -0,0 +1,5 @@
+package com.raining.raindb.backend.parser.statement;
+
+public class Deallocate {
+    public String name;
+}
@@ -0,0 +1,7 @@
+package com.raining.raindb.backend.parser.statement;
+
+public class Execute {
+    public String name;
+    // 按顺序代替语句中的占位符
+    public String[] args;
+}
@@ -0,0 +1,7 @@
+package com.raining.raindb.backend.parser.statement;
+
+public class Fetch {
+    public String name;
+    // 取出的行数，没有写时为 -1，使用默认的 fetch size
+    public int count = -1;
+}
@@ -2,5 +2,7 @@ package com.raining.raindb.backend.parser.statement;
 
 public class Insert {
     public String tableName;
+    // 多行时按行依次排列，每行的值个数等于字段数
     public String[] values;
+    public int rows = 1;
 }
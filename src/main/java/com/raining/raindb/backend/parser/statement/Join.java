@@ -0,0 +1,9 @@
+package com.raining.raindb.backend.parser.statement;
+
+public class Join {
+    // join 的表
+    public String tableName;
+    // on 两边的字段，可以写成 表名.字段名
+    public String leftField;
+    public String rightField;
+}
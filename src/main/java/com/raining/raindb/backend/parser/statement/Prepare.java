@@ -0,0 +1,7 @@
+package com.raining.raindb.backend.parser.statement;
+
+public class Prepare {
+    public String name;
+    // select、insert、update 或 delete，值的位置上可以是占位符 Parser.PARAM
+    public Object statement;
+}
@@ -3,5 +3,22 @@ package com.raining.raindb.backend.parser.statement;
 public class Select {
     public String tableName;
     public String[] fields;
+    // 和 fields 一一对应：count、sum、min、max，不是聚合函数的为 null；count(*) 的 field 为 *
+    public String[] aggregates;
+    // from 的表和 join 的表等值连接，没有时为 null；连接时字段名可以写成 表名.字段名
+    public Join join;
     public Where where;
+    // group by 的字段，没有时为 null
+    public String groupBy;
+    // order by 的字段，没有时为 null
+    public String orderBy;
+    public boolean desc;
+    // 没有 limit 时为 -1
+    public long limit = -1;
+    public long offset;
+    // 结果的格式，见 tbm.RowWriter，由执行语句的会话设置
+    public static final int TEXT = 0;
+    public static final int TYPED = 1;
+    public static final int OBJECTS = 2;
+    public int format;
 }
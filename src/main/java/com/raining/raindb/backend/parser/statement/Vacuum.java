@@ -0,0 +1,6 @@
+package com.raining.raindb.backend.parser.statement;
+
+public class Vacuum {
+    // 为 null 时清理所有的表
+    public String tableName;
+}
@@ -3,14 +3,49 @@ package com.raining.raindb.backend.server;
 import com.raining.raindb.backend.parser.Parser;
 import com.raining.raindb.backend.parser.statement.*;
 import com.raining.raindb.backend.tbm.BeginRes;
+import com.raining.raindb.backend.tbm.Cursor;
+import com.raining.raindb.backend.tbm.Table;
 import com.raining.raindb.backend.tbm.TableManager;
 import com.raining.raindb.common.Error;
+import com.raining.raindb.transport.BatchRequest;
+import com.raining.raindb.transport.KvRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static com.raining.raindb.backend.util.Parser.string2Byte;
 
 public class Executor {
+    //fetch 没有指定行数时一次取出的行数
+    static final int FETCH_SIZE = Integer.getInteger("raindb.fetchSize", 1000);
+    //一个会话中还没有取完的游标数的上限，没有虚拟线程时每个这样的游标占用一个线程
+    static final int MAX_CURSORS = Integer.getInteger("raindb.maxCursors", 16);
+
     private long xid;//当前会话的事务id
     TableManager tbm;
+    //当前会话的预编译语句，按名字查找
+    private Map<String, Prepared> prepared = new HashMap<>();
+    //会话使用二进制协议时，select 输出带类型的结果集
+    private boolean typed;
+    //上一条语句的结果是否是带类型的结果集
+    private boolean resultTyped;
+    //当前会话定义的过程，按名字查找，见 BatchRequest
+    private Map<String, List<Prepared>> procedures = new HashMap<>();
+    //当前会话打开的游标，按名字查找
+    private Map<String, OpenCursor> cursors = new HashMap<>();
+
+    /**
+     * 游标使用 declare 时的事务，会话的事务结束时关闭。
+     * 在事务之外 declare 时游标有自己的事务（own），取完或者关闭时提交
+     */
+    private static class OpenCursor {
+        Cursor cursor;
+        long xid;
+        boolean own;
+    }
 
     public Executor(TableManager tbm) {
         this.tbm = tbm;
@@ -18,19 +53,45 @@ public class Executor {
     }
 
     public void close() {
+        for (OpenCursor c : cursors.values()) {
+            closeCursor(c);
+        }
+        cursors.clear();
         if (xid != 0) {
             System.out.println("Abnormal Abort: " + xid);
             tbm.abort(xid);
         }
     }
 
+    public void setTyped(boolean typed) {
+        this.typed = typed;
+    }
+
+    public boolean isResultTyped() {
+        return resultTyped;
+    }
+
     public byte[] execute(byte[] sql) throws Exception {
+        resultTyped = false;
+        if (KvRequest.isKv(sql)) {
+            return kv(KvRequest.decode(sql));
+        }
+        if (BatchRequest.isBatch(sql)) {
+            return batch(BatchRequest.decode(sql));
+        }
         System.out.println("Execute: " + new String(sql));
 
         Object stat = Parser.Parse(sql);
 
         //fixme: 在这里加一个close，如果发现close命令，就关闭数据库，目前不太规范
-        if (Close.class.isInstance(stat)) {
+        if (Close.class.isInstance(stat) && ((Close)stat).name != null) {
+            OpenCursor c = cursors.remove(((Close)stat).name);
+            if(c == null) {
+                throw Error.CursorNotFoundException;
+            }
+            closeCursor(c);
+            return ("close " + ((Close)stat).name).getBytes();
+        } else if (Close.class.isInstance(stat)) {
             tbm.close();
             System.exit(0);
             return ("db is closed successfully.").getBytes();
@@ -46,6 +107,7 @@ public class Executor {
             if(xid == 0) {
                 throw Error.NoTransactionException;
             }
+            closeCursors(xid);
             byte[] res = tbm.commit(xid);
             xid = 0;
             return res;
@@ -53,14 +115,214 @@ public class Executor {
             if(xid == 0) {
                 throw Error.NoTransactionException;
             }
+            closeCursors(xid);
             byte[] res = tbm.abort(xid);
             xid = 0;
             return res;
+        } else if(Vacuum.class.isInstance(stat)) {
+            //vacuum 不属于任何事务
+            return tbm.vacuum((Vacuum)stat);
+        } else if(Analyze.class.isInstance(stat)) {
+            return tbm.analyze((Analyze)stat);
+        } else if(Prepare.class.isInstance(stat)) {
+            return prepare((Prepare)stat);
+        } else if(Execute.class.isInstance(stat)) {
+            return executePrepared((Execute)stat);
+        } else if(Declare.class.isInstance(stat)) {
+            return declare((Declare)stat);
+        } else if(Fetch.class.isInstance(stat)) {
+            return fetch((Fetch)stat);
+        } else if(Deallocate.class.isInstance(stat)) {
+            if(prepared.remove(((Deallocate)stat).name) == null) {
+                throw Error.PreparedNotFoundException;
+            }
+            return ("deallocate " + ((Deallocate)stat).name).getBytes();
         } else {
-            return execute2(stat);
+            return execute2(stat, null);
+        }
+    }
+
+    // kv 命令，见 KvRequest。不在事务中时读不需要开启事务，put 使用临时的事务
+    private byte[] kv(KvRequest req) throws Exception {
+        Table table = tbm.table(req.table);
+        if(req.op != KvRequest.PUT) {
+            if(!typed) {
+                throw Error.TypedResultUnsupportedException;
+            }
+            byte[] res = req.op == KvRequest.GET ? tbm.get(xid, table, req.args[0]) : tbm.multiGet(xid, table, req.args);
+            resultTyped = true;
+            return res;
         }
+        if(xid != 0) {
+            return tbm.put(xid, table, req.args);
+        }
+        long tmp = tbm.begin(new Begin()).xid;
+        byte[] res;
+        try {
+            res = tbm.put(tmp, table, req.args);
+        } catch(Exception e) {
+            tbm.abort(tmp);
+            throw e;
+        }
+        tbm.commit(tmp);
+        return res;
     }
-    private byte[] execute2(Object stat) throws Exception {
+
+    /**
+     * 批量执行，见 BatchRequest。所有语句在执行之前解析、绑定好，然后在同一个事务中依次执行，
+     * 不在事务中时使用临时的事务，全部成功才提交，任何一条出错时回滚并返回这条语句的错误。
+     * 会话已经在事务中时使用当前事务，出错后由客户端决定提交还是回滚
+     */
+    private byte[] batch(BatchRequest req) throws Exception {
+        if(req.op == BatchRequest.DEFINE) {
+            List<Prepared> proc = new ArrayList<>();
+            for (String s : req.args) {
+                Object stat = Parser.Parse(s.getBytes());
+                if(!(stat instanceof Select || stat instanceof Insert || stat instanceof Update || stat instanceof Delete)) {
+                    throw Error.InvalidBatchException;
+                }
+                proc.add(new Prepared(tbm, stat));
+            }
+            procedures.put(req.name, proc);
+            return ("define " + req.name).getBytes();
+        }
+        List<Object> stats = new ArrayList<>();
+        List<Table> tables = new ArrayList<>();
+        if(req.op == BatchRequest.BATCH) {
+            for (String s : req.args) {
+                Object stat = Parser.Parse(s.getBytes());
+                if(!(stat instanceof Show || stat instanceof Create || stat instanceof Select
+                        || stat instanceof Insert || stat instanceof Update || stat instanceof Delete)) {
+                    throw Error.InvalidBatchException;
+                }
+                stats.add(stat);
+                tables.add(null);
+            }
+        } else {
+            List<Prepared> proc = procedures.get(req.name);
+            if(proc == null) {
+                throw Error.ProcedureNotFoundException;
+            }
+            //参数按顺序分给每条语句
+            int next = 0;
+            for (Prepared p : proc) {
+                if(next + p.params() > req.args.length) {
+                    throw Error.InvalidValuesException;
+                }
+                stats.add(p.bind(Arrays.copyOfRange(req.args, next, next + p.params())));
+                tables.add(p.table(tbm));
+                next += p.params();
+            }
+            if(next != req.args.length) {
+                throw Error.InvalidValuesException;
+            }
+        }
+        boolean own = xid == 0;
+        if(own) {
+            xid = tbm.begin(new Begin()).xid;
+        }
+        List<byte[]> results = new ArrayList<>();
+        List<Boolean> typed = new ArrayList<>();
+        try {
+            for (int i = 0; i < stats.size(); i++) {
+                results.add(execute2(stats.get(i), tables.get(i)));
+                typed.add(resultTyped);
+                resultTyped = false;
+            }
+        } catch(Exception e) {
+            if(own) {
+                tbm.abort(xid);
+                xid = 0;
+            }
+            throw e;
+        }
+        if(own) {
+            long x = xid;
+            xid = 0;
+            tbm.commit(x);
+        }
+        return BatchRequest.encodeResults(results, typed);
+    }
+
+    private byte[] declare(Declare declare) throws Exception {
+        if(cursors.containsKey(declare.name)) {
+            throw Error.DuplicatedCursorException;
+        }
+        if(cursors.values().stream().filter(c -> !c.cursor.isDone()).count() >= MAX_CURSORS) {
+            throw Error.TooManyCursorsException;
+        }
+        Select select = declare.select;
+        select.format = typed ? Select.TYPED : Select.TEXT;
+        Table table = tbm.table(select.tableName);
+        OpenCursor c = new OpenCursor();
+        c.own = xid == 0;
+        c.xid = c.own ? tbm.begin(new Begin()).xid : xid;
+        try {
+            c.cursor = tbm.cursor(c.xid, table, select);
+        } catch(Exception e) {
+            if(c.own) tbm.abort(c.xid);
+            throw e;
+        }
+        cursors.put(declare.name, c);
+        return ("declare " + declare.name).getBytes();
+    }
+
+    // 返回的行数少于要求的行数时游标已经取完，之后的 fetch 返回空的结果
+    private byte[] fetch(Fetch fetch) throws Exception {
+        OpenCursor c = cursors.get(fetch.name);
+        if(c == null) {
+            throw Error.CursorNotFoundException;
+        }
+        byte[] res;
+        try {
+            res = c.cursor.fetch(fetch.count < 0 ? FETCH_SIZE : fetch.count);
+        } finally {
+            if(c.cursor.isDone() && c.own) {
+                tbm.commit(c.xid);
+                c.own = false;
+            }
+        }
+        resultTyped = typed;
+        return res;
+    }
+
+    // 关闭事务 xid 中的游标
+    private void closeCursors(long xid) {
+        cursors.values().removeIf(c -> {
+            if(c.xid != xid || c.own) return false;
+            closeCursor(c);
+            return true;
+        });
+    }
+
+    private void closeCursor(OpenCursor c) {
+        try {
+            c.cursor.close();
+        } catch(InterruptedException ignored) {
+        }
+        if(c.own) {
+            tbm.abort(c.xid);
+            c.own = false;
+        }
+    }
+
+    private byte[] prepare(Prepare prepare) throws Exception {
+        Prepared p = new Prepared(tbm, prepare.statement);
+        prepared.put(prepare.name, p);
+        return ("prepare " + prepare.name).getBytes();
+    }
+
+    // 执行预编译语句，不再解析语句、按名字查找表
+    private byte[] executePrepared(Execute execute) throws Exception {
+        Prepared p = prepared.get(execute.name);
+        if(p == null) {
+            throw Error.PreparedNotFoundException;
+        }
+        return execute2(p.bind(execute.args), p.table(tbm));
+    }
+
+    // table 不为 null 时是已经找到的表
+    private byte[] execute2(Object stat, Table table) throws Exception {
         boolean tmpTransaction = false;
         Exception e = null;
         if(xid == 0) {
@@ -75,13 +337,17 @@ public class Executor {
             } else if(Create.class.isInstance(stat)) {
                 res = tbm.create(xid, (Create)stat);
             } else if(Select.class.isInstance(stat)) {
-                res = tbm.read(xid, (Select)stat);
+                ((Select)stat).format = typed ? Select.TYPED : Select.TEXT;
+                res = table == null ? tbm.read(xid, (Select)stat) : tbm.read(xid, table, (Select)stat);
+                resultTyped = typed;
             } else if(Insert.class.isInstance(stat)) {
-                res = tbm.insert(xid, (Insert)stat);
+                res = table == null ? tbm.insert(xid, (Insert)stat) : tbm.insert(xid, table, (Insert)stat);
             } else if(Delete.class.isInstance(stat)) {
-                res = tbm.delete(xid, (Delete)stat);
+                res = table == null ? tbm.delete(xid, (Delete)stat) : tbm.delete(xid, table, (Delete)stat);
             } else if(Update.class.isInstance(stat)) {
-                res = tbm.update(xid, (Update)stat);
+                res = table == null ? tbm.update(xid, (Update)stat) : tbm.update(xid, table, (Update)stat);
+            } else if(Copy.class.isInstance(stat)) {
+                res = tbm.copy(xid, (Copy)stat);
             }
             return res;
         } catch(Exception e1) {
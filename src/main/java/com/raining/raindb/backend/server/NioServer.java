@@ -0,0 +1,398 @@
+package com.raining.raindb.backend.server;
+
+import com.raining.raindb.backend.tbm.TableManager;
+import com.raining.raindb.transport.Encoder;
+import com.raining.raindb.transport.Package;
+import com.raining.raindb.transport.Transporter;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * 基于 Selector 的服务端：一个线程负责 accept 和所有连接的读写，空闲的连接不占用线程。
+ * 协议和 Transporter 相同：第一个字节是 0 时先完成握手，之后每个请求和响应都是 [长度 int][Package]，
+ * 版本 3 时 Package 前还有请求号，响应使用请求的请求号；否则是旧的客户端，每个请求和响应都是一行十六进制编码的 Package。
+ * 读到完整的请求后交给有界的工作线程池执行。同一个连接上的语句按到达的顺序一条一条执行，
+ * 因为 Executor 保存着会话的事务，不能并发使用，响应也就按请求的顺序发送，客户端可以不等响应连续发送请求。执行结果放进连接的发送队列，由 selector 线程在可写时发送。
+ * 线程池满时连接进入 backlog，有语句执行完时再提交，selector 线程自己从不执行语句。
+ * 语句可能在 LockTable 中等待行锁：所有工作线程都在等同一个事务的锁，而这个事务的 commit 还在队列中时，
+ * 线程池就永远不会再有进展。所以队列中有语句、但 STALL_MILLIS 内没有语句执行完时，线程池再增加 WORKERS 个线程，队列空了再缩回去。
+ * 对方关闭连接后，已经收到的请求仍然执行，响应全部发送后才关闭；只有发送出错时才丢弃没有执行的请求和没有发送的响应
+ */
+public class NioServer {
+    // 工作线程数
+    static final int WORKERS = Integer.getInteger("raindb.workers", Runtime.getRuntime().availableProcessors() * 2);
+    // 线程池中等待执行的语句数上限
+    static final int QUEUE_SIZE = 1024;
+    // 一个连接上还没有执行的语句达到这个数时，暂停从这个连接读取
+    static final int MAX_PENDING = 64;
+    // 线程池多长时间（毫秒）没有进展时扩大
+    static final long STALL_MILLIS = 200;
+
+    private int port;
+    private TableManager tbm;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private ThreadPoolExecutor workers;
+    private Encoder encoder = new Encoder();
+    // 需要 selector 线程处理的连接：有响应要发送，或者可以继续读取、关闭
+    private Queue<Session> pending = new ConcurrentLinkedQueue<>();
+    // 线程池满时等待提交的连接
+    private Queue<Session> backlog = new ConcurrentLinkedQueue<>();
+    private ByteBuffer readBuf = ByteBuffer.allocateDirect(64 * 1024);
+    private volatile boolean closed;
+    // 上次检查时线程池执行完的语句数，以及最后一次有进展的时间，只在 selector 线程中使用
+    private long lastCompleted, lastProgress;
+
+    public NioServer(int port, TableManager tbm) {
+        this.port = port;
+        this.tbm = tbm;
+    }
+
+    public void run() throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        workers = new ThreadPoolExecutor(WORKERS, WORKERS, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+            Thread t = new Thread(r, "raindb-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        System.out.println("Server listen to port: " + port);
+        try {
+            while (!closed) {
+                selector.select(STALL_MILLIS);
+                checkStall();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Session s = (Session) key.attachment();
+                    if (key.isReadable()) {
+                        s.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        s.update();
+                    }
+                }
+                Session s;
+                while ((s = pending.poll()) != null) {
+                    s.update();
+                }
+                for (int n = backlog.size(); n > 0 && (s = backlog.poll()) != null; n--) {
+                    s.schedule();
+                }
+            }
+        } catch (ClosedSelectorException ignored) {
+        } finally {
+            workers.shutdown();
+            server.close();
+        }
+    }
+
+    // 队列中有语句，但一段时间内没有语句执行完时，所有工作线程都阻塞了，扩大线程池
+    private void checkStall() {
+        long now = System.currentTimeMillis();
+        long done = workers.getCompletedTaskCount();
+        boolean idle = workers.getQueue().isEmpty();
+        if (done != lastCompleted || idle) {
+            lastCompleted = done;
+            lastProgress = now;
+            if (idle && workers.getMaximumPoolSize() > WORKERS) {
+                //多出来的线程空闲后退出
+                workers.setCorePoolSize(WORKERS);
+                workers.setMaximumPoolSize(WORKERS);
+            }
+            return;
+        }
+        if (now - lastProgress >= STALL_MILLIS) {
+            int n = workers.getMaximumPoolSize() + WORKERS;
+            workers.setMaximumPoolSize(n);
+            workers.setCorePoolSize(n);
+            lastProgress = now;
+        }
+    }
+
+    // 已经执行完的语句数
+    long completedStatements() {
+        return workers.getCompletedTaskCount();
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) {
+            return;
+        }
+        ch.configureBlocking(false);
+        InetSocketAddress address = (InetSocketAddress) ch.getRemoteAddress();
+        System.out.println("Establish connection: " + address.getAddress().getHostAddress()+":"+address.getPort());
+        Session s = new Session(ch);
+        s.key = ch.register(selector, SelectionKey.OP_READ, s);
+    }
+
+    // 让 selector 线程处理 s
+    private void notify(Session s) {
+        pending.add(s);
+        selector.wakeup();
+    }
+
+    /**
+     * 一个连接。key、line、hello、header、body 只在 selector 线程中使用，其余的状态由 this 保护
+     */
+    class Session {
+        SocketChannel ch;
+        SelectionKey key;
+        Executor exe;
+        // 协议版本，0 表示还没有收到第一个字节
+        int version;
+        // 正在读取的一行
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        // 正在读取的握手
+        ByteBuffer hello;
+        // 正在读取的请求的长度和内容，body 为 null 时在读长度
+        ByteBuffer header = ByteBuffer.allocate(4);
+        ByteBuffer body;
+        // 读到的还没有执行的请求
+        Queue<byte[]> requests = new ArrayDeque<>();
+        // 待发送的响应
+        Queue<ByteBuffer> out = new ArrayDeque<>();
+        // 是否有一条语句正在执行或者已经提交到线程池
+        boolean running;
+        // 不再读取：对方已经关闭了连接，或者读到了错误的数据。已经读到的请求仍然执行，响应发送完后再关闭
+        boolean eof;
+        // 连接已经不能发送，直接关闭，丢弃没有执行的请求
+        boolean broken;
+        boolean closed;
+
+        Session(SocketChannel ch) {
+            this.ch = ch;
+            this.exe = new Executor(tbm);
+        }
+
+        void read() {
+            int n;
+            try {
+                readBuf.clear();
+                n = ch.read(readBuf);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                synchronized (this) {
+                    eof = true;
+                }
+                update();
+                return;
+            }
+            readBuf.flip();
+            synchronized (this) {
+                while (readBuf.hasRemaining() && !eof) {
+                    if (version == 0) {
+                        if (readBuf.get(readBuf.position()) == 0) {
+                            hello = ByteBuffer.allocate(Transporter.HELLO.length + 1);
+                        }
+                        version = Transporter.HEX;
+                    }
+                    if (hello != null) {
+                        readHello();
+                    } else if (version == Transporter.HEX) {
+                        byte b = readBuf.get();
+                        if (b == '\n') {
+                            requests.add(line.toByteArray());
+                            line.reset();
+                        } else if (line.size() >= Transporter.MAX_FRAME) {
+                            //和过长的帧一样断开连接
+                            line = new ByteArrayOutputStream();
+                            eof = true;
+                        } else {
+                            line.write(b);
+                        }
+                    } else {
+                        readFrame();
+                    }
+                }
+            }
+            schedule();
+            update();
+        }
+
+        // 读完握手后回复双方都支持的版本
+        private void readHello() {
+            copy(readBuf, hello);
+            if (hello.hasRemaining()) {
+                return;
+            }
+            byte[] h = hello.array();
+            int v = h[h.length - 1];
+            hello = null;
+            if (!Arrays.equals(Arrays.copyOf(h, h.length - 1), Transporter.HELLO) || v < Transporter.HEX) {
+                eof = true;
+                return;
+            }
+            version = Math.min(v, Transporter.VERSION);
+            exe.setTyped(version >= Transporter.BINARY);
+            ByteBuffer res = ByteBuffer.allocate(h.length);
+            res.put(Transporter.HELLO).put((byte) version).flip();
+            out.add(res);
+        }
+
+        private void readFrame() {
+            if (body == null) {
+                copy(readBuf, header);
+                if (header.hasRemaining()) {
+                    return;
+                }
+                int n = header.getInt(0);
+                header.clear();
+                if (n < 0 || n > Transporter.MAX_FRAME) {
+                    eof = true;
+                    return;
+                }
+                body = ByteBuffer.allocate(n);
+            }
+            copy(readBuf, body);
+            if (!body.hasRemaining()) {
+                requests.add(body.array());
+                body = null;
+            }
+        }
+
+        private void copy(ByteBuffer from, ByteBuffer to) {
+            int n = Math.min(from.remaining(), to.remaining());
+            ByteBuffer part = from.duplicate();
+            part.limit(part.position() + n);
+            to.put(part);
+            from.position(from.position() + n);
+        }
+
+        // 没有语句在执行时，提交下一条
+        synchronized void schedule() {
+            if (running || closed || requests.isEmpty()) {
+                return;
+            }
+            running = true;
+            try {
+                workers.execute(this::execute);
+            } catch (RejectedExecutionException e) {
+                running = false;
+                backlog.add(this);
+            }
+        }
+
+        // 在工作线程中执行一条语句，和 HandleSocket 一样，出错时把异常返回给客户端
+        void execute() {
+            byte[] req;
+            boolean hex, pipeline;
+            synchronized (this) {
+                req = requests.poll();
+                hex = version == Transporter.HEX;
+                pipeline = version >= Transporter.PIPELINE;
+            }
+            ByteBuffer res = null;
+            try {
+                int id = 0;
+                if (pipeline) {
+                    id = ByteBuffer.wrap(req).getInt();
+                    req = Arrays.copyOfRange(req, 4, req.length);
+                }
+                Package pkg = encoder.decode(hex ? Hex.decodeHex(new String(req)) : req);
+                byte[] result = null;
+                Exception e = null;
+                try {
+                    result = exe.execute(pkg.getData());
+                } catch (Exception e1) {
+                    e = e1;
+                    e1.printStackTrace();
+                }
+                byte[] data = encoder.encode(new Package(result, e, exe.isResultTyped()));
+                if (hex) {
+                    res = ByteBuffer.wrap((Hex.encodeHexString(data, true) + "\n").getBytes());
+                } else {
+                    int n = pipeline ? 4 + data.length : data.length;
+                    res = ByteBuffer.allocate(4 + n);
+                    res.putInt(n);
+                    if (pipeline) res.putInt(id);
+                    res.put(data).flip();
+                }
+            } catch (Exception e) {
+                //无法解析的请求，和 HandleSocket 一样断开连接
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                running = false;
+                if (res != null) {
+                    out.add(res);
+                } else {
+                    //之后的请求不再执行，已有的响应仍然发送
+                    requests.clear();
+                    eof = true;
+                }
+            }
+            schedule();
+            NioServer.this.notify(this);
+        }
+
+        // 在 selector 线程中发送待发送的响应，根据当前的状态调整关注的事件，或者关闭连接
+        void update() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    ByteBuffer buf;
+                    while ((buf = out.peek()) != null) {
+                        ch.write(buf);
+                        if (buf.hasRemaining()) break;
+                        out.poll();
+                    }
+                } catch (IOException e) {
+                    eof = true;
+                    broken = true;
+                    out.clear();
+                }
+                if (eof && !running && (broken || requests.isEmpty() && out.isEmpty())) {
+                    //等正在执行的语句结束、响应发送完后再关闭，Executor.close 会回滚没有提交的事务
+                    close();
+                    return;
+                }
+                int ops = 0;
+                if (!eof && requests.size() < MAX_PENDING) ops |= SelectionKey.OP_READ;
+                if (!out.isEmpty()) ops |= SelectionKey.OP_WRITE;
+                key.interestOps(ops);
+            }
+        }
+
+        private void close() {
+            closed = true;
+            requests.clear();
+            exe.close();
+            key.cancel();
+            try {
+                ch.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.raining.raindb.backend.server;
+
+import com.raining.raindb.backend.parser.Parser;
+import com.raining.raindb.backend.parser.statement.*;
+import com.raining.raindb.backend.tbm.Table;
+import com.raining.raindb.backend.tbm.TableManager;
+import com.raining.raindb.common.Error;
+
+/**
+ * 会话中的一条预编译语句：解析好的语句模板，以及它用到的表。
+ * 模板中值的位置上可以是占位符 Parser.PARAM，执行时按出现的顺序换成参数，得到一条新的语句，模板本身不变。
+ * table 在 prepare 时找到，version 是当时的 schemaVersion，表结构变化之后重新查找。
+ * 会话和嵌入式的 PreparedStatement 都使用这个类
+ */
+public class Prepared {
+    Object stat;
+    String tableName;
+    int params;
+    Table table;
+    long version;
+    // 绑定时下一个参数的位置
+    private int next;
+
+    public Prepared(TableManager tbm, Object stat) throws Exception {
+        this(stat);
+        this.version = tbm.schemaVersion();
+        this.table = tbm.table(tableName);
+    }
+
+    private Prepared(Object stat) {
+        this.stat = stat;
+        if (stat instanceof Select) {
+            Select s = (Select) stat;
+            tableName = s.tableName;
+            params = count(s.where);
+        } else if (stat instanceof Insert) {
+            Insert s = (Insert) stat;
+            tableName = s.tableName;
+            for (String v : s.values) {
+                if (v == Parser.PARAM) params ++;
+            }
+        } else if (stat instanceof Update) {
+            Update s = (Update) stat;
+            tableName = s.tableName;
+            params = (s.value == Parser.PARAM ? 1 : 0) + count(s.where);
+        } else {
+            Delete s = (Delete) stat;
+            tableName = s.tableName;
+            params = count(s.where);
+        }
+    }
+
+    private static int count(Where where) {
+        if (where == null) {
+            return 0;
+        }
+        int n = where.singleExp1.value == Parser.PARAM ? 1 : 0;
+        if (where.singleExp2 != null && where.singleExp2.value == Parser.PARAM) {
+            n ++;
+        }
+        return n;
+    }
+
+    public int params() {
+        return params;
+    }
+
+    // 语句用到的表，表结构变化之后重新查找
+    public synchronized Table table(TableManager tbm) throws Exception {
+        long v = tbm.schemaVersion();
+        if (version != v) {
+            table = tbm.table(tableName);
+            version = v;
+        }
+        return table;
+    }
+
+    // 用 args 代替占位符，返回一条新的语句
+    public synchronized Object bind(String[] args) throws Exception {
+        if (args.length != params) {
+            throw Error.InvalidValuesException;
+        }
+        next = 0;
+        if (stat instanceof Select) {
+            Select s = (Select) stat;
+            Select r = new Select();
+            r.tableName = s.tableName;
+            r.fields = s.fields;
+            r.aggregates = s.aggregates;
+            r.join = s.join;
+            r.where = bind(s.where, args);
+            r.groupBy = s.groupBy;
+            r.orderBy = s.orderBy;
+            r.desc = s.desc;
+            r.limit = s.limit;
+            r.offset = s.offset;
+            return r;
+        } else if (stat instanceof Insert) {
+            Insert s = (Insert) stat;
+            Insert r = new Insert();
+            r.tableName = s.tableName;
+            r.rows = s.rows;
+            r.values = new String[s.values.length];
+            for (int i = 0; i < r.values.length; i++) {
+                r.values[i] = bind(s.values[i], args);
+            }
+            return r;
+        } else if (stat instanceof Update) {
+            Update s = (Update) stat;
+            Update r = new Update();
+            r.tableName = s.tableName;
+            r.fieldName = s.fieldName;
+            r.value = bind(s.value, args);
+            r.where = bind(s.where, args);
+            return r;
+        } else {
+            Delete s = (Delete) stat;
+            Delete r = new Delete();
+            r.tableName = s.tableName;
+            r.where = bind(s.where, args);
+            return r;
+        }
+    }
+
+    private String bind(String value, String[] args) {
+        return value == Parser.PARAM ? args[next ++] : value;
+    }
+
+    private Where bind(Where where, String[] args) {
+        if (where == null) {
+            return null;
+        }
+        Where r = new Where();
+        r.singleExp1 = bind(where.singleExp1, args);
+        r.logicOp = where.logicOp;
+        r.singleExp2 = where.singleExp2 == null ? null : bind(where.singleExp2, args);
+        return r;
+    }
+
+    private SingleExpression bind(SingleExpression exp, String[] args) {
+        SingleExpression r = new SingleExpression();
+        r.field = exp.field;
+        r.compareOp = exp.compareOp;
+        r.value = bind(exp.value, args);
+        return r;
+    }
+}
@@ -1,6 +1,7 @@
 package com.raining.raindb.backend.server;
 
 import com.raining.raindb.backend.tbm.TableManager;
+import com.raining.raindb.backend.util.VirtualThreads;
 import com.raining.raindb.transport.Encoder;
 import com.raining.raindb.transport.Package;
 import com.raining.raindb.transport.Packager;
@@ -11,41 +12,78 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class Server {
     private int port;
     TableManager tbm;
+    // startBlocking、startVirtual 监听的 socket，close 时关闭
+    private volatile ServerSocket ss;
 
     public Server(int port, TableManager tbm) {
         this.port = port;
         this.tbm = tbm;
     }
 
+    // 默认使用 NioServer，连接数不受线程数限制
     public void start() {
-        ServerSocket ss = null;
+        try {
+            new NioServer(port, tbm).run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 每个连接一个 HandleSocket 线程，同时服务的连接数受线程池大小限制
+    public void startBlocking() {
+        //线程池
+        serve(new ThreadPoolExecutor(10, 20, 1L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(100), new ThreadPoolExecutor.CallerRunsPolicy()));
+    }
+
+    // 每个连接的 HandleSocket 运行在一个虚拟线程上，没有连接数的上限。需要 JDK 21，不支持时返回 false
+    public boolean startVirtual() {
+        ExecutorService vts = VirtualThreads.newExecutor();
+        if (vts == null) {
+            return false;
+        }
+        serve(vts);
+        return true;
+    }
+
+    // 不再接受新的连接，startBlocking、startVirtual 随之返回。已经建立的连接继续执行，客户端关闭时结束
+    public void close() throws IOException {
+        if (ss != null) {
+            ss.close();
+        }
+    }
+
+    private void serve(ExecutorService workers) {
+        ServerSocket ss;
         try {
             ss = new ServerSocket(port);
         } catch (IOException e) {
             e.printStackTrace();
             return;
         }
+        this.ss = ss;
         System.out.println("Server listen to port: " + port);
-        //线程池
-        ThreadPoolExecutor tpe = new ThreadPoolExecutor(10, 20, 1L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(100), new ThreadPoolExecutor.CallerRunsPolicy());
         try {
             while (true) {
                 Socket socket = ss.accept();
                 Runnable worker = new HandleSocket(socket, tbm);
-                tpe.execute(worker);
+                workers.execute(worker);
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!ss.isClosed()) {
+                e.printStackTrace();
+            }
         } finally {
             try {
                 ss.close();
             } catch (IOException ignored) {}
+            workers.shutdown();
         }
     }
 }
@@ -64,8 +102,9 @@ class HandleSocket implements Runnable {
         InetSocketAddress address = (InetSocketAddress)socket.getRemoteSocketAddress();
         System.out.println("Establish connection: " + address.getAddress().getHostAddress()+":"+address.getPort());
         Packager packager = null;
+        Transporter t = null;
         try {
-            Transporter t = new Transporter(socket);
+            t = Transporter.accept(socket);
             Encoder e = new Encoder();
             packager = new Packager(t, e);
         } catch (IOException e) {
@@ -78,6 +117,7 @@ class HandleSocket implements Runnable {
             return;
         }
         Executor exe = new Executor(tbm);
+        exe.setTyped(t.getVersion() >= Transporter.BINARY);
         //下面一直用的同一个executor：exe
         //一个exe对应着一次会话，
         while (true) {
@@ -87,6 +127,7 @@ class HandleSocket implements Runnable {
             } catch (Exception e) {
                 break;
             }
+            int id = pkg.getId();
             byte[] sql = pkg.getData();
             byte[] result = null;
             Exception e = null;
@@ -96,7 +137,8 @@ class HandleSocket implements Runnable {
                 e = e1;
                 e1.printStackTrace();
             }
-            pkg = new Package(result, e);
+            pkg = new Package(result, e, exe.isResultTyped());
+            pkg.setId(id);
             try {
                 packager.send(pkg);
             } catch (Exception e1) {
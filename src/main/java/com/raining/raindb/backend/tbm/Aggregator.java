@@ -0,0 +1,322 @@
+package com.raining.raindb.backend.tbm;
+
+import com.raining.raindb.backend.common.LongIntHashMap;
+import com.raining.raindb.backend.parser.statement.Select;
+import com.raining.raindb.common.Error;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 流式聚合：每一行到来时只更新累加值，不保存行。
+ * count 统计行数，sum 只能用于 int32 和 int64，min、max 对 string 按字典序比较。
+ * 有 group by 时做哈希聚合：int32、int64 的 key 放在 LongIntHashMap 中，string 的 key 放在 HashMap 中，
+ * 得到的分组编号就是下面这些数组的下标，每个分组的累加值按列存放，不需要为每个分组创建对象。
+ * 分组占用的内存超出 GroupSpill 的预算时写到临时文件，result 时再按分区重新聚合。
+ * 没有 group by 时只有一个分组，没有任何行时除 count 外的结果为 null。
+ * 每一行输出一个分组，offset 和 limit 直接作用在输出的行上；count、sum 和整数的 min、max 都按 int64 输出
+ */
+class Aggregator implements RowSink {
+    //每个分组除 string 以外大约占用的字节数，用于估计内存
+    static final int GROUP_BYTES = 64;
+
+    RowLayout layout;
+    //聚合函数，null 表示直接输出 group by 的列
+    String[] funcs;
+    //对应的字段下标，count(*) 为 -1
+    int[] cols;
+    //group by 的字段下标，-1 表示不分组
+    int keyCol;
+    boolean strKey;
+    int last;
+    GroupSpill spill;
+    int format;
+    long skip, remaining;
+    //结果写到 out 中，为 null 时新建，见 RowWriter.of
+    RowWriter out;
+
+    private LongIntHashMap longGroups;
+    private Map<String, Integer> strGroups;
+    long[] longKeys;
+    String[] strKeys;
+    int noGroups;
+    long[] rows;
+    long[][] acc;
+    String[][] strAcc;
+    private long memory;
+
+    Aggregator(RowLayout layout, String[] funcs, int[] cols, int keyCol, GroupSpill spill, Select read, RowWriter out) {
+        this.layout = layout;
+        this.out = out;
+        this.format = read.format;
+        this.skip = read.offset;
+        this.remaining = read.limit < 0 ? Long.MAX_VALUE : read.limit;
+        this.funcs = funcs;
+        this.cols = cols;
+        this.keyCol = keyCol;
+        this.spill = spill;
+        strKey = keyCol >= 0 && layout.fields[keyCol].fixedSize() < 0;
+        last = keyCol;
+        for (int c : cols) last = Math.max(last, c);
+        clear();
+        if (keyCol < 0) {
+            newGroup();
+        }
+    }
+
+    private void clear() {
+        longGroups = new LongIntHashMap();
+        strGroups = new HashMap<>();
+        int n = 16;
+        longKeys = new long[n];
+        strKeys = new String[n];
+        rows = new long[n];
+        acc = new long[funcs.length][n];
+        strAcc = new String[funcs.length][n];
+        noGroups = 0;
+        memory = 0;
+    }
+
+    // 检查聚合函数能否用在对应的字段上，不是聚合函数的只能是 group by 的列
+    static void check(RowLayout layout, String[] funcs, int[] cols, int keyCol) throws Exception {
+        for (int i = 0; i < funcs.length; i++) {
+            if (funcs[i] == null && (keyCol < 0 || cols[i] != keyCol)) {
+                throw Error.InvalidAggregateException;
+            }
+            if ("sum".equals(funcs[i]) && layout.fields[cols[i]].fixedSize() < 0) {
+                throw Error.InvalidAggregateException;
+            }
+        }
+    }
+
+    private boolean isString(int i) {
+        return cols[i] >= 0 && layout.fields[cols[i]].fixedSize() < 0;
+    }
+
+    private int newGroup() {
+        int g = noGroups ++;
+        if (g == rows.length) {
+            int n = rows.length * 2;
+            longKeys = Arrays.copyOf(longKeys, n);
+            strKeys = Arrays.copyOf(strKeys, n);
+            rows = Arrays.copyOf(rows, n);
+            for (int i = 0; i < funcs.length; i++) {
+                acc[i] = Arrays.copyOf(acc[i], n);
+                strAcc[i] = Arrays.copyOf(strAcc[i], n);
+            }
+        }
+        rows[g] = 0;
+        for (int i = 0; i < funcs.length; i++) {
+            acc[i][g] = "min".equals(funcs[i]) ? Long.MAX_VALUE : "max".equals(funcs[i]) ? Long.MIN_VALUE : 0;
+            strAcc[i][g] = null;
+        }
+        return g;
+    }
+
+    private int group(long key) {
+        int g = longGroups.get(key);
+        if (g < 0) {
+            g = newGroup();
+            longKeys[g] = key;
+            longGroups.put(key, g);
+            memory += GROUP_BYTES;
+        }
+        return g;
+    }
+
+    private int group(String key) {
+        Integer g = strGroups.get(key);
+        if (g == null) {
+            g = newGroup();
+            strKeys[g] = key;
+            strGroups.put(key, g);
+            memory += GROUP_BYTES + 2L * key.length();
+        }
+        return g;
+    }
+
+    int hashOf(int g) {
+        return strKey ? strKeys[g].hashCode() : Long.hashCode(longKeys[g]);
+    }
+
+    @Override
+    public void add(byte[] raw, int start) throws Exception {
+        int[] offs = last >= 0 ? layout.offsets(raw, start, last) : null;
+        int g = 0;
+        long before = memory;
+        if (keyCol >= 0) {
+            Field kf = layout.fields[keyCol];
+            int pos = start + offs[keyCol];
+            g = strKey ? group(kf.rawString(raw, pos)) : group(kf.rawValue2Uid(raw, pos));
+        }
+        rows[g] ++;
+        for (int i = 0; i < funcs.length; i++) {
+            if (funcs[i] == null || "count".equals(funcs[i])) continue;
+            Field f = layout.fields[cols[i]];
+            int pos = start + offs[cols[i]];
+            if (f.fixedSize() < 0) {
+                accumulate(i, g, f.rawString(raw, pos));
+            } else {
+                accumulate(i, g, f.rawValue2Uid(raw, pos));
+            }
+        }
+        if (spill != null && memory > before && spill.used.addAndGet(memory - before) > spill.budget) {
+            spillOut();
+        }
+    }
+
+    private void spillOut() throws IOException {
+        spill.write(this);
+        spill.used.addAndGet(-memory);
+        clear();
+    }
+
+    private void accumulate(int i, int g, long v) {
+        switch (funcs[i]) {
+            case "sum":
+                acc[i][g] += v;
+                break;
+            case "min":
+                acc[i][g] = Math.min(acc[i][g], v);
+                break;
+            case "max":
+                acc[i][g] = Math.max(acc[i][g], v);
+                break;
+        }
+    }
+
+    private void accumulate(int i, int g, String s) {
+        if (strAcc[i][g] == null || ("min".equals(funcs[i]) == s.compareTo(strAcc[i][g]) < 0)) {
+            strAcc[i][g] = s;
+        }
+    }
+
+    // 把另一个 Aggregator 中第 h 个分组的部分结果合并到第 g 个分组
+    private void combine(int g, Aggregator o, int h) {
+        if (o.rows[h] == 0) {
+            return;
+        }
+        rows[g] += o.rows[h];
+        for (int i = 0; i < funcs.length; i++) {
+            if (funcs[i] == null || "count".equals(funcs[i])) continue;
+            if (isString(i)) {
+                accumulate(i, g, o.strAcc[i][h]);
+            } else {
+                accumulate(i, g, o.acc[i][h]);
+            }
+        }
+    }
+
+    @Override
+    public void merge(RowSink right) {
+        Aggregator r = (Aggregator) right;
+        long before = memory;
+        for (int h = 0; h < r.noGroups; h++) {
+            int g = keyCol < 0 ? 0 : strKey ? group(r.strKeys[h]) : group(r.longKeys[h]);
+            combine(g, r, h);
+        }
+        //r 的分组已经并入这里，预算中只需要加上新出现的分组
+        if (spill != null) {
+            spill.used.addAndGet(memory - before - r.memory);
+        }
+    }
+
+    void writeGroup(int g, DataOutputStream out) throws IOException {
+        if (strKey) {
+            out.writeUTF(strKeys[g]);
+        } else {
+            out.writeLong(longKeys[g]);
+        }
+        out.writeLong(rows[g]);
+        for (int i = 0; i < funcs.length; i++) {
+            if (funcs[i] == null || "count".equals(funcs[i])) continue;
+            if (isString(i)) {
+                out.writeUTF(strAcc[i][g]);
+            } else {
+                out.writeLong(acc[i][g]);
+            }
+        }
+    }
+
+    // 读回一个分区中所有分组的部分结果，并入这里
+    private void readGroups(DataInputStream in) throws IOException {
+        while (true) {
+            int g;
+            try {
+                g = strKey ? group(in.readUTF()) : group(in.readLong());
+            } catch (EOFException e) {
+                return;
+            }
+            rows[g] += in.readLong();
+            for (int i = 0; i < funcs.length; i++) {
+                if (funcs[i] == null || "count".equals(funcs[i])) continue;
+                if (isString(i)) {
+                    accumulate(i, g, in.readUTF());
+                } else {
+                    accumulate(i, g, in.readLong());
+                }
+            }
+        }
+    }
+
+    /**
+     * 输出所有分组。发生过溢出时先把内存中剩下的分组也写出去，
+     * 然后逐个分区读回来聚合；一个分区只包含约 1/PARTITIONS 的分组，假定可以放进内存
+     */
+    @Override
+    public RowWriter result() {
+        RowWriter out = RowWriter.of(this.out, format);
+        if (spill == null || !spill.spilled) {
+            print(out);
+            return out;
+        }
+        try {
+            spill.write(this);
+            clear();
+            for (int p = 0; p < GroupSpill.PARTITIONS; p++) {
+                DataInputStream in = spill.open(p);
+                if (in == null) continue;
+                try {
+                    readGroups(in);
+                } finally {
+                    in.close();
+                }
+                print(out);
+                clear();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return out;
+    }
+
+    private void print(RowWriter out) {
+        for (int g = 0; g < noGroups && remaining > 0; g++) {
+            if (skip > 0) {
+                skip --;
+                continue;
+            }
+            out.begin(funcs.length);
+            for (int i = 0; i < funcs.length; i++) {
+                if (funcs[i] == null) {
+                    if (strKey) out.value(strKeys[g]); else out.value(longKeys[g]);
+                } else if ("count".equals(funcs[i])) {
+                    out.value(rows[g]);
+                } else if (rows[g] == 0) {
+                    out.nil();
+                } else if (isString(i)) {
+                    out.value(strAcc[i][g]);
+                } else {
+                    out.value(acc[i][g]);
+                }
+            }
+            out.end();
+            remaining --;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.raining.raindb.backend.tbm;
+
+import com.raining.raindb.backend.util.VirtualThreads;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 游标：分批取出一条 select 的结果。
+ * select 在游标自己的线程中执行，输出的行写到 ChunkWriter，每写满 fetch 要求的行数就交给 fetch，
+ * 然后停下来等待下一次 fetch。这个线程只在 fetch 期间运行，内存中最多只有一批结果，
+ * 也不会和会话中的其他语句同时使用同一个事务。排序和聚合在输出第一行之前仍然要读完所有的行，
+ * 它们自己的内存由溢出到磁盘控制。
+ * 游标的线程大部分时间停在两次 fetch 之间：JDK 21 上使用虚拟线程，停下来时不占用系统线程；
+ * 否则每个打开的游标占用一个线程，由会话能打开的游标个数限制（见 Executor.MAX_CURSORS）。
+ * fetch 阻塞等待这个线程时持有的是 ReentrantLock 而不是 synchronized，会话在虚拟线程中时不会占住载体线程
+ */
+public class Cursor {
+    // select 的执行，行都写到 out 中
+    interface Producer {
+        void run(RowWriter out) throws Exception;
+    }
+
+    // 最后一批结果
+    private static class Last {
+        byte[] data;
+
+        Last(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    // close 时交给等待中的线程，让 select 中止
+    private static final RuntimeException CANCELLED = new RuntimeException("Cursor closed");
+
+    // 支持虚拟线程时，游标的 select 都在虚拟线程中执行
+    private static final ExecutorService VIRTUAL = VirtualThreads.newExecutor();
+
+    private SynchronousQueue<Integer> demand = new SynchronousQueue<>();
+    private SynchronousQueue<Object> chunks = new SynchronousQueue<>();
+    // 游标的线程退出时减为 0
+    private CountDownLatch exited = new CountDownLatch(1);
+    private ReentrantLock lock = new ReentrantLock();
+    private boolean done;
+
+    Cursor(int format, Producer body) {
+        Runnable task = () -> {
+            try {
+                produce(format, body);
+            } finally {
+                exited.countDown();
+            }
+        };
+        if (VIRTUAL != null) {
+            VIRTUAL.execute(task);
+        } else {
+            Thread producer = new Thread(task, "raindb-cursor");
+            producer.setDaemon(true);
+            producer.start();
+        }
+    }
+
+    private void produce(int format, Producer body) {
+        Object last;
+        try {
+            int n = demand.take();
+            if (n < 0) {
+                return;
+            }
+            ChunkWriter out = new ChunkWriter(format, n);
+            body.run(out);
+            last = new Last(out.rest());
+        } catch (Exception e) {
+            if (e == CANCELLED) {
+                return;
+            }
+            last = e;
+        }
+        try {
+            chunks.put(last);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * 取出之后的 n 行。返回的行数少于 n 时已经没有更多的行，之后的 fetch 返回空的结果。
+     * 执行出错时抛出异常，游标同样结束
+     */
+    public byte[] fetch(int n) throws Exception {
+        lock.lock();
+        try {
+            if (done) {
+                return new byte[0];
+            }
+            demand.put(Math.max(n, 1));
+            Object r = chunks.take();
+            if (r instanceof byte[]) {
+                return (byte[]) r;
+            }
+            done = true;
+            exited.await();
+            if (r instanceof Last) {
+                return ((Last) r).data;
+            }
+            throw (Exception) r;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isDone() {
+        lock.lock();
+        try {
+            return done;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 中止还没有结束的 select，返回时游标的线程已经退出
+    public void close() throws InterruptedException {
+        lock.lock();
+        try {
+            if (done) {
+                return;
+            }
+            done = true;
+            demand.put(-1);
+            exited.await();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 写满 limit 行时把这一批交给 fetch，然后等待下一次 fetch 要求的行数。
+     * 只在游标的线程中使用；rest 返回还没有交出去的行
+     */
+    private class ChunkWriter extends RowWriter {
+        int format;
+        RowWriter.Encoded cur;
+        int rows, limit;
+
+        ChunkWriter(int format, int limit) {
+            this.format = format;
+            this.limit = limit;
+            this.cur = RowWriter.encoder(format);
+        }
+
+        @Override
+        void begin(int columns) {
+            cur.begin(columns);
+        }
+
+        @Override
+        void field(Field f, byte[] raw, int pos) {
+            cur.field(f, raw, pos);
+        }
+
+        @Override
+        void value(long v) {
+            cur.value(v);
+        }
+
+        @Override
+        void value(String s) {
+            cur.value(s);
+        }
+
+        @Override
+        void nil() {
+            cur.nil();
+        }
+
+        @Override
+        void end() {
+            cur.end();
+            if (++ rows < limit) {
+                return;
+            }
+            try {
+                chunks.put(cur.toBytes());
+                limit = demand.take();
+            } catch (InterruptedException e) {
+                throw CANCELLED;
+            }
+            if (limit < 0) {
+                throw CANCELLED;
+            }
+            cur = RowWriter.encoder(format);
+            rows = 0;
+        }
+
+        byte[] rest() {
+            return cur.toBytes();
+        }
+    }
+}
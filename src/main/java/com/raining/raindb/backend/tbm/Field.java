@@ -24,8 +24,12 @@ public class Field {
     private Table tb;
     String fieldName;
     String fieldType;
+    //编码后的字节数：int32 为 4，int64 为 8，string 不定长为 -1，读写一行时用它代替比较类型名
+    private int size;
     private long index;
     private BPlusTree bt;
+    //索引上 key 的分布，只有有索引的字段才有，analyze 时整个替换
+    volatile KeyHistogram histogram;
 
     public static Field loadField(Table tb, long uid) {
         byte[] raw = null;
@@ -47,9 +51,25 @@ public class Field {
         this.tb = tb;
         this.fieldName = fieldName;
         this.fieldType = fieldType;
+        this.size = sizeOf(fieldType);
         this.index = index;
     }
 
+    private static int sizeOf(String fieldType) {
+        switch(fieldType) {
+            case "int32":
+                return 4;
+            case "int64":
+                return 8;
+            default:
+                return -1;
+        }
+    }
+
+    public int fixedSize() {
+        return size;
+    }
+
     private Field parseSelf(byte[] raw) {
         int position = 0;
         ParseStringRes res = Parser.parseString(raw);//不断向后解析
@@ -57,11 +77,13 @@ public class Field {
         position += res.next;
         res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
         fieldType = res.str;
+        size = sizeOf(fieldType);
         position += res.next;
         this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
         if(index != 0) {
             try {
                 bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
+                histogram = new KeyHistogram();
             } catch(Exception e) {
                 Panic.panic(e);
             }
@@ -77,6 +99,7 @@ public class Field {
             BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
             f.index = index;
             f.bt = bt;
+            f.histogram = new KeyHistogram();
         }
         f.persistSelf(xid);
         return f;
@@ -98,15 +121,40 @@ public class Field {
         return index != 0;
     }
 
-    public void insert(Object key, long uid) throws Exception {
-        long uKey = value2Uid(key);
-        bt.insert(uKey, uid);
+    public void insert(long key, long uid) throws Exception {
+        bt.insert(key, uid);
+        histogram.add(key);
+    }
+
+    // 批量插入，keys 已经按从小到大排好序
+    public void insert(long[] keys, long[] uids) throws Exception {
+        bt.insert(keys, uids);
+        for (long key : keys) {
+            histogram.add(key);
+        }
     }
 
     public List<Long> search(long left, long right) throws Exception {
         return bt.searchRange(left, right);
     }
 
+    // 同 search，keys 中按顺序返回每个 uid 对应的索引 key
+    public List<Long> search(long left, long right, List<Long> keys) throws Exception {
+        return bt.searchRange(left, right, keys);
+    }
+
+    public void scan(long left, long right, BPlusTree.Visitor visitor) throws Exception {
+        bt.scan(left, right, visitor);
+    }
+
+    public void scanDesc(long left, long right, BPlusTree.Visitor visitor) throws Exception {
+        bt.scanDesc(left, right, visitor);
+    }
+
+    public boolean delete(long key, long uid) throws Exception {
+        return bt.delete(key, uid);
+    }
+
     public Object string2Value(String str) {
         switch(fieldType) {
             case "int32":
@@ -135,61 +183,65 @@ public class Field {
         return uid;
     }
 
-    public byte[] value2Raw(Object v) {
-        byte[] raw = null;
-        switch(fieldType) {
-            case "int32":
-                raw = Parser.int2Byte((int)v);
+    // 把字符串形式的值直接编码成这个字段在一行中的字节
+    public byte[] value2Raw(String str) {
+        byte[] raw;
+        switch(size) {
+            case 4:
+                raw = new byte[4];
+                Parser.putInt(raw, 0, Integer.parseInt(str));
                 break;
-            case "int64":
-                raw = Parser.long2Byte((long)v);
-                break;
-            case "string":
-                raw = Parser.string2Byte((String)v);
+            case 8:
+                raw = new byte[8];
+                Parser.putLong(raw, 0, Long.parseLong(str));
                 break;
+            default:
+                byte[] bytes = str.getBytes();
+                raw = new byte[4 + bytes.length];
+                Parser.putInt(raw, 0, bytes.length);
+                System.arraycopy(bytes, 0, raw, 4, bytes.length);
         }
         return raw;
     }
 
-    class ParseValueRes {
-        Object v;
-        int shift;
+    /*
+     * 顺序扫描时直接在一行的编码上读取字段，不需要先解析成对象
+     */
+
+    // raw 的 pos 处这个字段的编码长度
+    public int rawShift(byte[] raw, int pos) {
+        return size >= 0 ? size : 4 + Parser.parseInt(raw, pos);
     }
 
-    public ParseValueRes parserValue(byte[] raw) {
-        ParseValueRes res = new ParseValueRes();
-        switch(fieldType) {
-            case "int32":
-                res.v = Parser.parseInt(Arrays.copyOf(raw, 4));
-                res.shift = 4;
-                break;
-            case "int64":
-                res.v = Parser.parseLong(Arrays.copyOf(raw, 8));
-                res.shift = 8;
-                break;
-            case "string":
-                ParseStringRes r = Parser.parseString(raw);
-                res.v = r.str;
-                res.shift = r.next;
-                break;
+    // raw 的 pos 处这个字段的值，和 value2Uid 的结果相同
+    public long rawValue2Uid(byte[] raw, int pos) {
+        switch(size) {
+            case 4:
+                return Parser.parseInt(raw, pos);
+            case 8:
+                return Parser.parseLong(raw, pos);
+            default:
+                return Parser.str2Uid(raw, pos+4, pos+4+Parser.parseInt(raw, pos));
         }
-        return res;
     }
 
-    public String printValue(Object v) {
-        String str = null;
-        switch(fieldType) {
-            case "int32":
-                str = String.valueOf((int)v);
-                break;
-            case "int64":
-                str = String.valueOf((long)v);
+    // raw 的 pos 处的 string
+    public String rawString(byte[] raw, int pos) {
+        return new String(raw, pos+4, Parser.parseInt(raw, pos));
+    }
+
+    // 把 raw 的 pos 处这个字段的值直接追加到 sb 中
+    public void printRaw(byte[] raw, int pos, StringBuilder sb) {
+        switch(size) {
+            case 4:
+                sb.append(Parser.parseInt(raw, pos));
                 break;
-            case "string":
-                str = (String)v;
+            case 8:
+                sb.append(Parser.parseLong(raw, pos));
                 break;
+            default:
+                sb.append(rawString(raw, pos));
         }
-        return str;
     }
 
     @Override
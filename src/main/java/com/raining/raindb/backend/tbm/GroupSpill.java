@@ -0,0 +1,65 @@
+package com.raining.raindb.backend.tbm;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一次 group by 查询的内存预算和溢出文件。
+ * 所有子任务的分组共用一个预算，超出时由超出的那个子任务把自己的分组按 key 的哈希写到 PARTITIONS 个临时文件中，
+ * 同一个 key 的部分结果总是落在同一个分区，最后逐个分区读回来重新聚合即可。
+ * 预算可以用系统属性 raindb.groupMemory 设置，单位字节
+ */
+class GroupSpill {
+    static final int PARTITIONS = 16;
+    static final long DEFAULT_MEMORY = 32L << 20;
+
+    long budget;
+    AtomicLong used = new AtomicLong();
+    private File[] files = new File[PARTITIONS];
+    private DataOutputStream[] outs = new DataOutputStream[PARTITIONS];
+    volatile boolean spilled;
+
+    GroupSpill() {
+        budget = Long.getLong("raindb.groupMemory", DEFAULT_MEMORY);
+    }
+
+    static int partition(int hash) {
+        return ((hash ^ (hash >>> 16)) & 0x7fffffff) % PARTITIONS;
+    }
+
+    // 把 agg 中的所有分组写出去，agg 随后清空
+    synchronized void write(Aggregator agg) throws IOException {
+        for (int g = 0; g < agg.noGroups; g++) {
+            int p = partition(agg.hashOf(g));
+            if (outs[p] == null) {
+                files[p] = File.createTempFile("raindb-group-", ".tmp");
+                files[p].deleteOnExit();
+                outs[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[p])));
+            }
+            agg.writeGroup(g, outs[p]);
+        }
+        spilled = true;
+    }
+
+    // 第 p 个分区，没有数据时返回 null
+    synchronized DataInputStream open(int p) throws IOException {
+        if (outs[p] == null) {
+            return null;
+        }
+        outs[p].close();
+        outs[p] = null;
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(files[p])));
+    }
+
+    synchronized void close() {
+        for (int p = 0; p < PARTITIONS; p++) {
+            try {
+                if (outs[p] != null) outs[p].close();
+            } catch (IOException ignored) {
+            }
+            if (files[p] != null) files[p].delete();
+            outs[p] = null;
+            files[p] = null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.raining.raindb.backend.tbm;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 一个索引上 key 的分布。
+ * 用蓄水池抽样保存最多 SAMPLE_SIZE 个 key，排好序之后就是一个等深直方图（每个样本是一个桶的边界），
+ * 数据倾斜时常见的值占的桶多，所以能比较准确地估计任意区间的选择率。
+ * insert 时按蓄水池算法增量更新，analyze 时整个替换。
+ */
+public class KeyHistogram {
+
+    static final int SAMPLE_SIZE = 1024;
+
+    private long[] sample = new long[SAMPLE_SIZE];
+    private int size;
+    //蓄水池已经见过的 key 数
+    private long seen;
+    //排好序的样本，样本变化后置为 null，下次估计时重新排序
+    private long[] sorted;
+
+    public synchronized void add(long key) {
+        seen ++;
+        if(size < SAMPLE_SIZE) {
+            sample[size ++] = key;
+        } else {
+            long r = ThreadLocalRandom.current().nextLong(seen);
+            if(r >= SAMPLE_SIZE) {
+                return;
+            }
+            sample[(int)r] = key;
+        }
+        sorted = null;
+    }
+
+    // analyze 之后，样本代表的是 rows 行，之后的 add 以此为基数
+    public synchronized void setSeen(long rows) {
+        seen = Math.max(rows, size);
+    }
+
+    /**
+     * key 落在 [left, right] 中的比例，没有样本时返回 -1
+     * 样本中一个都没有的区间（例如等值查询一个少见的值）按半个样本估计，避免估计为 0
+     */
+    public synchronized double selectivity(long left, long right) {
+        if(size == 0) {
+            return -1;
+        }
+        if(sorted == null) {
+            sorted = Arrays.copyOf(sample, size);
+            Arrays.sort(sorted);
+        }
+        int lo = lowerBound(sorted, left);
+        int hi = right == Long.MAX_VALUE ? sorted.length : lowerBound(sorted, right+1);
+        return Math.max(hi - lo, 0.5) / size;
+    }
+
+    // 平均每个不同的 key 有多少行，按样本中不同 key 的个数估计，没有样本时返回 -1
+    public synchronized double rowsPerKey() {
+        if(size == 0) {
+            return -1;
+        }
+        if(sorted == null) {
+            sorted = Arrays.copyOf(sample, size);
+            Arrays.sort(sorted);
+        }
+        int distinct = 1;
+        for(int i = 1; i < size; i ++) {
+            if(sorted[i] != sorted[i-1]) distinct ++;
+        }
+        return (double)size / distinct;
+    }
+
+    // 第一个 >= key 的位置
+    private static int lowerBound(long[] arr, long key) {
+        int l = 0, r = arr.length;
+        while(l < r) {
+            int mid = (l + r) >>> 1;
+            if(arr[mid] < key) {
+                l = mid + 1;
+            } else {
+                r = mid;
+            }
+        }
+        return l;
+    }
+}
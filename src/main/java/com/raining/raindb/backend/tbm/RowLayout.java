@@ -0,0 +1,142 @@
+package com.raining.raindb.backend.tbm;
+
+import com.raining.raindb.backend.util.Parser;
+import com.raining.raindb.common.Error;
+
+import java.util.List;
+
+/**
+ * 一张表中一行数据的编码，分成定长和变长两部分：
+ * [定长部分][变长部分]
+ * 定长部分按表结构的顺序为每个字段留一个位置：int32 占 4 字节，int64 占 8 字节，直接存放值；
+ * string 占 2 字节，存放它在变长部分中的偏移（相对一行的开头）。
+ * 变长部分按表结构的顺序依次存放每个 string，编码为 [Length 4][Bytes]。
+ * 加载或创建表时编译一次，算好每个字段在定长部分中的位置，之后读任意一个字段都是常数时间，
+ * 不需要从前面的字段推算。所有方法都直接读写一行的字节，不经过 Map，也不装箱。
+ */
+class RowLayout {
+    // string 在定长部分中的偏移槽的大小
+    static final int SLOT_SIZE = 2;
+
+    Field[] fields;
+    //slot[i] 是第 i 个字段在定长部分中的位置
+    int[] slot;
+    //定长部分的长度，也是变长部分的开始
+    int fixedLength;
+    //最后一个 string 字段，没有 string 时为 -1，它的结束就是一行的结束
+    int lastString = -1;
+
+    RowLayout(List<Field> fields) {
+        this.fields = fields.toArray(new Field[0]);
+        slot = new int[this.fields.length];
+        for (int i = 0; i < this.fields.length; i++) {
+            slot[i] = fixedLength;
+            int size = this.fields[i].fixedSize();
+            if (size < 0) {
+                lastString = i;
+                fixedLength += SLOT_SIZE;
+            } else {
+                fixedLength += size;
+            }
+        }
+    }
+
+    // raw 中从 start 开始的一行里第 col 个字段的偏移（相对 start）
+    int offset(byte[] raw, int start, int col) {
+        if (fields[col].fixedSize() >= 0) {
+            return slot[col];
+        }
+        return Parser.parseShort(raw, start + slot[col]);
+    }
+
+    /**
+     * 计算 raw 中从 start 开始的一行里第 0 到 last 个字段的偏移（相对 start），
+     * 以及第 last 个字段结束的位置，一共 last+2 个
+     */
+    int[] offsets(byte[] raw, int start, int last) {
+        int[] offs = new int[last + 2];
+        for (int i = 0; i <= last; i++) {
+            offs[i] = offset(raw, start, i);
+        }
+        offs[last + 1] = offs[last] + fields[last].rawShift(raw, start + offs[last]);
+        return offs;
+    }
+
+    // raw 中从 start 开始的一行的长度
+    int length(byte[] raw, int start) {
+        if (lastString < 0) {
+            return fixedLength;
+        }
+        int off = offset(raw, start, lastString);
+        return off + fields[lastString].rawShift(raw, start + off);
+    }
+
+    // 把 insert 的一组值编码成一行，只分配一次
+    byte[] encode(String[] values) throws Exception {
+        if (values.length != fields.length) {
+            throw Error.InvalidValuesException;
+        }
+        byte[][] parts = new byte[fields.length][];
+        int size = fixedLength;
+        for (int i = 0; i < fields.length; i++) {
+            parts[i] = fields[i].value2Raw(values[i]);
+            if (fields[i].fixedSize() < 0) {
+                size += parts[i].length;
+            }
+        }
+        byte[] raw = new byte[size];
+        int pos = fixedLength;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].fixedSize() >= 0) {
+                System.arraycopy(parts[i], 0, raw, slot[i], parts[i].length);
+            } else {
+                Parser.putShort(raw, slot[i], (short) pos);
+                System.arraycopy(parts[i], 0, raw, pos, parts[i].length);
+                pos += parts[i].length;
+            }
+        }
+        return raw;
+    }
+
+    // 第 col 个字段换成已经编码好的 value 后的新的一行
+    byte[] replace(byte[] raw, int col, byte[] value) {
+        int begin = offset(raw, 0, col);
+        int end = begin + fields[col].rawShift(raw, begin);
+        byte[] res = new byte[raw.length - (end - begin) + value.length];
+        System.arraycopy(raw, 0, res, 0, begin);
+        System.arraycopy(value, 0, res, begin, value.length);
+        System.arraycopy(raw, end, res, begin + value.length, raw.length - end);
+        //后面的 string 跟着移动
+        int delta = value.length - (end - begin);
+        if (delta != 0) {
+            for (int i = col + 1; i < fields.length; i++) {
+                if (fields[i].fixedSize() < 0) {
+                    Parser.putShort(res, slot[i], (short) (offset(res, 0, i) + delta));
+                }
+            }
+        }
+        return res;
+    }
+
+    // 第 col 个字段的编码是否和已经编码好的 value 相同
+    boolean fieldEquals(byte[] raw, int col, byte[] value) {
+        return fieldEquals(raw, 0, col, value, 0, value.length);
+    }
+
+    // raw 中从 start 开始的一行的第 col 个字段，编码是否和 value[from, from+len) 相同
+    boolean fieldEquals(byte[] raw, int start, int col, byte[] value, int from, int len) {
+        int off = start + offset(raw, start, col);
+        if (off + len > raw.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (raw[off + i] != value[from + i]) return false;
+        }
+        return true;
+    }
+
+    // 第 col 个字段在索引中的 key
+    long key(byte[] raw, int col) {
+        return fields[col].rawValue2Uid(raw, offset(raw, 0, col));
+    }
+}
@@ -0,0 +1,20 @@
+package com.raining.raindb.backend.tbm;
+
+/**
+ * SELECT 的每个子任务把满足条件的行交给自己的 RowSink，
+ * 子任务结束后按行原来的顺序两两合并，最后由 result 得到输出的行
+ */
+interface RowSink {
+    // raw 中从 start 开始的一行
+    void add(byte[] raw, int start) throws Exception;
+
+    // right 中的行都排在这些行之后
+    void merge(RowSink right);
+
+    RowWriter result();
+
+    // 已经不再需要更多的行，扫描可以提前结束
+    default boolean done() {
+        return false;
+    }
+}
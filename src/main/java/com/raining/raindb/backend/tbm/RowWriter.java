@@ -0,0 +1,229 @@
+package com.raining.raindb.backend.tbm;
+
+import com.raining.raindb.backend.parser.statement.Select;
+import com.raining.raindb.backend.util.Parser;
+import com.raining.raindb.transport.ResultSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * select 输出的行，格式见 Select.format。TEXT 是原来的每行 [v1, v2]；
+ * TYPED 是二进制协议的结果集，编码见 transport.ResultSet，行中的字段直接从记录的编码中复制，不需要转成字符串；
+ * OBJECTS 给嵌入式使用，每行是一个 Object[]，不经过任何编码。
+ * RowWriter 只负责接收行；把行收集在内存中的是 Buffer，合并两个 Buffer 就是把后一个接在后面；
+ * 其中 Encoded 还能取出编码后的字节。游标的 ChunkWriter 只接收行，见 Cursor
+ */
+abstract class RowWriter {
+
+    static Buffer create(int format) {
+        return format == Select.OBJECTS ? new Objects() : encoder(format);
+    }
+
+    // 编码成字节的格式
+    static Encoded encoder(int format) {
+        return format == Select.TYPED ? new Typed() : new Text();
+    }
+
+    // out 不为 null 时所有的行都写到 out 中（游标，见 Cursor），否则新建一个
+    static RowWriter of(RowWriter out, int format) {
+        return out != null ? out : create(format);
+    }
+
+    // 开始一行，之后依次写入 columns 个值
+    abstract void begin(int columns);
+
+    // raw 的 pos 处字段 f 的值
+    abstract void field(Field f, byte[] raw, int pos);
+
+    abstract void value(long v);
+
+    abstract void value(String s);
+
+    abstract void nil();
+
+    abstract void end();
+
+    // 收集在内存中的行，并行执行的各个子任务各有一个，最后按顺序合并
+    abstract static class Buffer extends RowWriter {
+        // other 的行接在后面
+        abstract void append(Buffer other);
+    }
+
+    abstract static class Encoded extends Buffer {
+        abstract byte[] toBytes();
+    }
+
+    static class Text extends Encoded {
+        StringBuilder sb = new StringBuilder();
+        // 当前行已经写入的值的个数
+        int col;
+
+        @Override
+        void begin(int columns) {
+            sb.append("[");
+            col = 0;
+        }
+
+        private StringBuilder next() {
+            if (col ++ > 0) sb.append(", ");
+            return sb;
+        }
+
+        @Override
+        void field(Field f, byte[] raw, int pos) {
+            f.printRaw(raw, pos, next());
+        }
+
+        @Override
+        void value(long v) {
+            next().append(v);
+        }
+
+        @Override
+        void value(String s) {
+            next().append(s);
+        }
+
+        @Override
+        void nil() {
+            next().append("null");
+        }
+
+        @Override
+        void end() {
+            sb.append("]\n");
+        }
+
+        @Override
+        void append(Buffer other) {
+            sb.append(((Text)other).sb);
+        }
+
+        @Override
+        byte[] toBytes() {
+            return sb.toString().getBytes();
+        }
+    }
+
+    static class Typed extends Encoded {
+        byte[] buf = new byte[256];
+        int size;
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+
+        @Override
+        void begin(int columns) {
+            ensure(2);
+            buf[size ++] = (byte) (columns >> 8);
+            buf[size ++] = (byte) columns;
+        }
+
+        @Override
+        void field(Field f, byte[] raw, int pos) {
+            int n = f.rawShift(raw, pos);
+            ensure(1 + n);
+            buf[size ++] = f.fixedSize() == 4 ? ResultSet.INT32 : f.fixedSize() == 8 ? ResultSet.INT64 : ResultSet.STRING;
+            //记录中的编码和结果集相同
+            System.arraycopy(raw, pos, buf, size, n);
+            size += n;
+        }
+
+        @Override
+        void value(long v) {
+            ensure(9);
+            buf[size ++] = ResultSet.INT64;
+            Parser.putLong(buf, size, v);
+            size += 8;
+        }
+
+        @Override
+        void value(String s) {
+            byte[] bytes = s.getBytes();
+            ensure(5 + bytes.length);
+            buf[size ++] = ResultSet.STRING;
+            Parser.putInt(buf, size, bytes.length);
+            System.arraycopy(bytes, 0, buf, size + 4, bytes.length);
+            size += 4 + bytes.length;
+        }
+
+        @Override
+        void nil() {
+            ensure(1);
+            buf[size ++] = ResultSet.NULL;
+        }
+
+        @Override
+        void end() {
+        }
+
+        @Override
+        void append(Buffer other) {
+            Typed t = (Typed) other;
+            ensure(t.size);
+            System.arraycopy(t.buf, 0, buf, size, t.size);
+            size += t.size;
+        }
+
+        @Override
+        byte[] toBytes() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    static class Objects extends Buffer {
+        List<Object[]> rows = new ArrayList<>();
+        Object[] cur;
+        int col;
+
+        @Override
+        void begin(int columns) {
+            cur = new Object[columns];
+            col = 0;
+        }
+
+        @Override
+        void field(Field f, byte[] raw, int pos) {
+            switch (f.fixedSize()) {
+                case 4:
+                    cur[col ++] = Parser.parseInt(raw, pos);
+                    break;
+                case 8:
+                    cur[col ++] = Parser.parseLong(raw, pos);
+                    break;
+                default:
+                    cur[col ++] = f.rawString(raw, pos);
+            }
+        }
+
+        @Override
+        void value(long v) {
+            cur[col ++] = v;
+        }
+
+        @Override
+        void value(String s) {
+            cur[col ++] = s;
+        }
+
+        @Override
+        void nil() {
+            cur[col ++] = null;
+        }
+
+        @Override
+        void end() {
+            rows.add(cur);
+        }
+
+        @Override
+        void append(Buffer other) {
+            rows.addAll(((Objects)other).rows);
+        }
+    }
+}
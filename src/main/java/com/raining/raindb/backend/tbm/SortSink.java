@@ -0,0 +1,235 @@
+package com.raining.raindb.backend.tbm;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * order by 的排序。
+ * 有 limit 时只需要前 offset+limit 行：用一个大小固定的堆，堆顶是目前保留的行中排在最后的，
+ * 新的一行比堆顶还靠后时连行的内容都不需要复制。
+ * 没有 limit 时保留所有的行，一次查询的所有子任务共用 Context 中的内存预算，
+ * 超出时把当前的行排好序写到临时文件（一个有序段），最后把所有的段和内存中剩下的行多路归并。
+ * 预算可以用系统属性 raindb.sortMemory 设置，单位字节
+ */
+class SortSink implements RowSink {
+    static final long DEFAULT_MEMORY = 32L << 20;
+    //每一行除内容以外大约占用的字节数
+    static final int ROW_BYTES = 48;
+
+    // 一次查询的排序参数和溢出的有序段
+    static class Context {
+        RowLayout layout;
+        int col;
+        boolean desc;
+        long offset, limit;
+        Table.Projection proj;
+        long budget;
+        AtomicLong used = new AtomicLong();
+        private final List<File> runs = new ArrayList<>();
+
+        Context(RowLayout layout, int col, boolean desc, long offset, long limit, Table.Projection proj) {
+            this.layout = layout;
+            this.col = col;
+            this.desc = desc;
+            this.offset = offset;
+            this.limit = limit;
+            this.proj = proj;
+            budget = Long.getLong("raindb.sortMemory", DEFAULT_MEMORY);
+        }
+
+        synchronized void addRun(File run) {
+            runs.add(run);
+        }
+
+        synchronized List<File> runs() {
+            return new ArrayList<>(runs);
+        }
+
+        synchronized void close() {
+            for (File f : runs) {
+                f.delete();
+            }
+            runs.clear();
+        }
+    }
+
+    static class Row {
+        long key;
+        String str;
+        byte[] raw;
+    }
+
+    Context ctx;
+    //有 limit 时保留的行数，-1 表示全部保留
+    private long capacity;
+    private PriorityQueue<Row> heap;
+    private List<Row> rows = new ArrayList<>();
+    private long memory;
+
+    SortSink(Context ctx) {
+        this.ctx = ctx;
+        capacity = ctx.limit < 0 ? -1 : ctx.offset + ctx.limit;
+        if (capacity >= 0) {
+            heap = new PriorityQueue<>((a, b) -> compare(b, a));
+        }
+    }
+
+    int compare(Row a, Row b) {
+        int c = a.str != null ? a.str.compareTo(b.str) : Long.compare(a.key, b.key);
+        return ctx.desc ? -c : c;
+    }
+
+    private Row row(byte[] raw, int start) {
+        Field f = ctx.layout.fields[ctx.col];
+        int pos = start + ctx.layout.offset(raw, start, ctx.col);
+        Row r = new Row();
+        if (f.fixedSize() < 0) {
+            r.str = f.rawString(raw, pos);
+        } else {
+            r.key = f.rawValue2Uid(raw, pos);
+        }
+        return r;
+    }
+
+    @Override
+    public void add(byte[] raw, int start) throws Exception {
+        Row r = row(raw, start);
+        if (capacity >= 0) {
+            if (heap.size() >= capacity && (capacity == 0 || compare(r, heap.peek()) >= 0)) {
+                return;
+            }
+            r.raw = Arrays.copyOfRange(raw, start, start + ctx.layout.length(raw, start));
+            offer(r);
+            return;
+        }
+        r.raw = Arrays.copyOfRange(raw, start, start + ctx.layout.length(raw, start));
+        rows.add(r);
+        long size = r.raw.length + ROW_BYTES;
+        memory += size;
+        if (ctx.used.addAndGet(size) > ctx.budget) {
+            spillRun();
+        }
+    }
+
+    private void offer(Row r) {
+        if (heap.size() >= capacity) {
+            if (capacity == 0 || compare(r, heap.peek()) >= 0) {
+                return;
+            }
+            heap.poll();
+        }
+        heap.offer(r);
+    }
+
+    // 把内存中的行排好序写成一个有序段
+    private void spillRun() throws IOException {
+        rows.sort(this::compare);
+        File run = File.createTempFile("raindb-sort-", ".tmp");
+        run.deleteOnExit();
+        ctx.addRun(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+            for (Row r : rows) {
+                out.writeInt(r.raw.length);
+                out.write(r.raw);
+            }
+        }
+        ctx.used.addAndGet(-memory);
+        memory = 0;
+        rows = new ArrayList<>();
+    }
+
+    @Override
+    public void merge(RowSink right) {
+        SortSink r = (SortSink) right;
+        if (capacity >= 0) {
+            for (Row row : r.heap) {
+                offer(row);
+            }
+        } else {
+            rows.addAll(r.rows);
+            memory += r.memory;
+        }
+    }
+
+    // 一个有序的来源：内存中排好序的行，或者一个有序段
+    private class Source {
+        Iterator<Row> it;
+        DataInputStream in;
+        Row cur;
+
+        boolean next() throws IOException {
+            if (it != null) {
+                cur = it.hasNext() ? it.next() : null;
+            } else {
+                cur = null;
+                try {
+                    byte[] raw = new byte[in.readInt()];
+                    in.readFully(raw);
+                    cur = row(raw, 0);
+                    cur.raw = raw;
+                } catch (EOFException e) {
+                    in.close();
+                }
+            }
+            return cur != null;
+        }
+    }
+
+    @Override
+    public RowWriter result() {
+        RowWriter out = RowWriter.of(ctx.proj.out, ctx.proj.format);
+        long skip = ctx.offset;
+        long remaining = ctx.limit < 0 ? Long.MAX_VALUE : ctx.limit;
+        List<Row> sorted = new ArrayList<>(capacity >= 0 ? heap : rows);
+        sorted.sort(this::compare);
+        List<File> runs = ctx.runs();
+        if (runs.isEmpty()) {
+            for (Row r : sorted) {
+                if (remaining == 0) break;
+                if (skip > 0) {
+                    skip --;
+                    continue;
+                }
+                ctx.proj.print(r.raw, 0, out);
+                remaining --;
+            }
+            return out;
+        }
+        PriorityQueue<Source> sources = new PriorityQueue<>((a, b) -> compare(a.cur, b.cur));
+        List<Source> all = new ArrayList<>();
+        try {
+            Source mem = new Source();
+            mem.it = sorted.iterator();
+            all.add(mem);
+            for (File run : runs) {
+                Source s = new Source();
+                s.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+                all.add(s);
+            }
+            for (Source s : all) {
+                if (s.next()) sources.offer(s);
+            }
+            while (!sources.isEmpty() && remaining > 0) {
+                Source s = sources.poll();
+                if (skip > 0) {
+                    skip --;
+                } else {
+                    ctx.proj.print(s.cur.raw, 0, out);
+                    remaining --;
+                }
+                if (s.next()) sources.offer(s);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            for (Source s : all) {
+                try {
+                    if (s.in != null) s.in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return out;
+    }
+}
@@ -1,14 +1,30 @@
 package com.raining.raindb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
+import com.raining.raindb.backend.common.SubArray;
+import com.raining.raindb.backend.im.BPlusTree;
 import com.raining.raindb.backend.parser.statement.*;
 import com.raining.raindb.backend.tm.TransactionManagerImpl;
+import com.raining.raindb.backend.util.CsvReader;
 import com.raining.raindb.backend.util.Panic;
 import com.raining.raindb.backend.util.ParseStringRes;
 import com.raining.raindb.backend.util.Parser;
+import com.raining.raindb.backend.vm.VersionManager;
 import com.raining.raindb.common.Error;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 
 /**
  * Table 维护了表结构
@@ -24,6 +40,14 @@ public class Table {
     long nextUid;
     //这个Table中的字段
     List<Field> fields = new ArrayList<>();
+    //delete 和 update 留下的死亡版本数（估计值），autovacuum 据此决定是否清理这张表
+    AtomicInteger deadTuples = new AtomicInteger();
+    //行数等统计信息，用于选择where的执行方式
+    TableStats stats = new TableStats();
+    //一行数据的编码，字段确定之后编译一次
+    RowLayout layout;
+    //已提交的可见行数，-1 表示还没有统计过，由 TableManagerImpl.countLock 保护，见 TableManagerImpl.countRows
+    long liveRows = -1;
 
     //从uid位置处加载Table
     public static Table loadTable(TableManager tbm, long uid) {
@@ -61,6 +85,10 @@ public class Table {
             }
             tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed));
         }
+        tb.layout = new RowLayout(tb.fields);
+        tb.liveRows = 0;
+        //新建的表是空的，统计信息直接从 0 开始维护
+        tb.stats.reset(0);
         return tb.persistSelf(xid);
     }
 
@@ -88,6 +116,7 @@ public class Table {
             position += 8;
             fields.add(Field.loadField(this, uid));
         }
+        layout = new RowLayout(fields);
         return this;
     }
 
@@ -112,215 +141,1025 @@ public class Table {
      * @throws Exception
      */
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
+        List<Long> uids = parseWhere(xid, delete.where);
         int count = 0;
         for (Long uid : uids) {
             if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
                 count ++;
             }
         }
+        deadTuples.addAndGet(count);
+        stats.onDelete(count);
         return count;
     }
 
     public int update(long xid, Update update) throws Exception {
-        List<Long> uids = parseWhere(update.where);
-        Field fd = null;
-        for (Field f : fields) {
-            if (f.fieldName.equals(update.fieldName)) {
-                fd = f;
+        List<Long> uids = parseWhere(xid, update.where);
+        int col = -1;
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).fieldName.equals(update.fieldName)) {
+                col = i;
                 break;
             }
         }
-        if (fd == null) {
+        if (col < 0) {
             throw Error.FileNotExistsException;
         }
-        //现在找到field了，接下来进行更新
-        Object value = fd.string2Value(update.value);
+        Field fd = fields.get(col);
+        //现在找到field了，接下来进行更新，新值只编码一次
+        byte[] value = fd.value2Raw(update.value);
         int count = 0;//储存修改的行数
         for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
-            if (raw == null) continue;
+            //先锁住这一行再读，新的一行要在最新提交的版本上修改
+            byte[] old = ((TableManagerImpl) tbm).vm.readForUpdate(xid, uid);
+            if (old == null) continue;
+
+            byte[] raw = layout.replace(old, col, value);//修改
+
+            if (replace(xid, uid, raw, !fd.isIndexed() || layout.key(old, col) == layout.key(raw, col))) {
+                count++;
+            }
+        }
+        //无论是挂到版本链上还是重新插入，每修改一行都会留下一个旧版本
+        deadTuples.addAndGet(count);
+        stats.onUpdate(count);
+        return count;
+    }
+
+    /**
+     * 把 uid 这一行换成 raw，sameKeys 表示所有索引列的值都没有变化
+     * @return 是否修改了这一行
+     */
+    private boolean replace(long xid, long uid, byte[] raw, boolean sameKeys) throws Exception {
+        VersionManager vm = ((TableManagerImpl) tbm).vm;
+        if (sameKeys) {
+            //索引列没有变化：新版本直接挂到版本链上（类似 HOT），
+            //索引仍然指向链头 uid，不需要做任何索引维护
+            return vm.update(xid, uid, raw) != 0;
+        }
 
-            //注意我们修改的逻辑：是先标记旧的uid为无效，然后插入一个新的
-            //因为，我们的vm没有修改数据的功能
-            ((TableManagerImpl) tbm).vm.delete(xid, uid);
+        //索引列变化了：旧的索引项不能再指向这一行，
+        //所以仍然是先标记旧的uid为无效，再插入一个新的，并在B+树中插入新的索引项
+        if (!vm.delete(xid, uid)) return false;
+        long uuid = vm.insert(xid, this.uid, raw);
 
-            Map<String, Object> entry = parseEntry(raw);
-            entry.put(fd.fieldName, value);//修改
-            raw = entry2Raw(entry);
-            long uuid = ((TableManagerImpl) tbm).vm.insert(xid, raw);
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).isIndexed()) {
+                //B+树中：排序键就是该fielded的值（string(哈希值),int32,int64），value是uid
+                fields.get(i).insert(layout.key(raw, i), uuid);
+            }
+        }
+        return true;
+    }
 
-            count++;
+    /**
+     * 顺序扫描时按页划分，走索引时按命中的uid划分，数据量足够大时交给 ForkJoinPool 并行处理，
+     * 每个子任务各自做可见性判断、条件过滤和解码，最后按原来的顺序拼接结果
+     */
+    public byte[] read(long xid, Select read) throws Exception {
+        return ((RowWriter.Encoded) read(xid, read, null)).toBytes();
+    }
 
-            //记得还要在B+树的索引中插入
-            for (Field field : fields) {
-                if (field.isIndexed()) {
-                    //B+树中：排序键就是该fielded的值（string(哈希值),int32,int64），value是uid
-                    field.insert(entry.get(field.fieldName), uuid);
+    // out 不为 null 时结果依次写到 out 中，写入 out 的各个 sink 都在调用线程中顺序执行
+    RowWriter read(long xid, Select read, RowWriter out) throws Exception {
+        if (isAggregate(read)) {
+            int[] cols = new int[read.fields.length];
+            for (int i = 0; i < cols.length; i++) {
+                if ("*".equals(read.fields[i]) && read.aggregates[i] == null) {
+                    throw Error.InvalidAggregateException;
+                }
+                cols[i] = "*".equals(read.fields[i]) ? -1 : fieldNo(read.fields[i]);
+            }
+            int keyCol = read.groupBy == null ? -1 : fieldNo(read.groupBy);
+            Aggregator.check(layout, read.aggregates, cols, keyCol);
+            if (read.orderBy != null) {
+                throw Error.InvalidAggregateException;
+            }
+            if (read.where == null && keyCol < 0) {
+                RowWriter res = fastAggregate(xid, read.aggregates, cols, read, out);
+                if (res != null) {
+                    return res;
+                }
+            }
+            GroupSpill gs = keyCol < 0 ? null : new GroupSpill();
+            try {
+                return read(xid, planWhere(read.where), () -> new Aggregator(layout, read.aggregates, cols, keyCol, gs, read, out), false).result();
+            } finally {
+                if (gs != null) {
+                    gs.close();
                 }
             }
         }
-        return count;
+        Projection proj = new Projection(read.fields, read.format, out);
+        WherePlan plan = planWhere(read.where);
+        boolean limited = read.limit >= 0 || read.offset > 0;
+        boolean sequential = limited || out != null;
+        if (read.orderBy == null) {
+            if (limited && plan.index != null) {
+                //按索引的顺序读取，够了就停止
+                return readIndexed(xid, plan.index, plan.filter, false, new PrintSink(proj, read.offset, read.limit));
+            }
+            //有 limit 时需要保持行的顺序，不能并行
+            return read(xid, plan, () -> new PrintSink(proj, read.offset, read.limit), sequential).result();
+        }
+        int col = fieldNo(read.orderBy);
+        Field fd = fields.get(col);
+        if (fd.isIndexed() && fd.fixedSize() > 0) {
+            //整数类型索引的 key 就是值本身，索引的顺序（desc 时倒过来）就是 order by 的顺序
+            if (plan.index != null && plan.index.fd == fd) {
+                return readIndexed(xid, plan.index, plan.filter, read.desc, new PrintSink(proj, read.offset, read.limit));
+            }
+            if (plan.isScan() && read.limit >= 0) {
+                Term all = new Term(fd, col);
+                return readIndexed(xid, all, plan.all, read.desc, new PrintSink(proj, read.offset, read.limit));
+            }
+        }
+        SortSink.Context ctx = new SortSink.Context(layout, col, read.desc, read.offset, read.limit, proj);
+        try {
+            return read(xid, plan, () -> new SortSink(ctx), false).result();
+        } finally {
+            ctx.close();
+        }
     }
 
-    public String read(long xid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);
-        StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+    /**
+     * 按索引 term.fd 的顺序（desc 时从大到小）访问 term 范围内的行，读出可见的、满足 filter 的交给 sink，
+     * sink 不再需要更多的行时停止，不会取出范围内所有的 uid。
+     * 索引的 visitor 在 structLock 之外调用，写到游标时 sink.add 可以停下来等待下一次 fetch
+     */
+    private RowWriter readIndexed(long xid, Term term, RowFilter filter, boolean desc, RowSink sink) throws Exception {
+        BPlusTree.Visitor visitor = (key, u) -> {
+            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, u);
+            if (raw != null && filter.match(raw)) {
+                sink.add(raw, 0);
+            }
+            return !sink.done();
+        };
+        if (desc) {
+            term.fd.scanDesc(term.left, term.right, visitor);
+        } else {
+            term.fd.scan(term.left, term.right, visitor);
+        }
+        return sink.result();
+    }
+
+    private boolean isAggregate(Select read) {
+        if (read.groupBy != null) {
+            return true;
+        }
+        if (read.aggregates == null) {
+            return false;
+        }
+        for (String f : read.aggregates) {
+            if (f != null) return true;
+        }
+        return false;
+    }
+
+    // 把按 plan 找到的行交给 sinks 创建的 RowSink，返回合并后的结果
+    RowSink read(long xid, WherePlan plan, Supplier<RowSink> sinks, boolean sequential) throws Exception {
+        ForkJoinPool pool = ((TableManagerImpl)tbm).scanPool;
+        AtomicReference<Exception> err = new AtomicReference<>();
+        RecursiveTask<RowSink> task;
+        if (plan.isScan()) {
+            int[] pages = ((TableManagerImpl)tbm).dm.segmentPages(uid);
+            task = new ScanTask(xid, plan.filter, sinks, pages, 0, pages.length, err);
+            if (sequential || pages.length < PARALLEL_MIN_PAGES) {
+                return ((ScanTask)task).scanPart();
+            }
+        } else {
+            List<Long> uids = plan.uids();
+            task = new FetchTask(xid, uids, plan.filter, sinks, 0, uids.size(), err);
+            if (sequential || uids.size() < PARALLEL_MIN_ROWS) {
+                return ((FetchTask)task).fetchPart();
+            }
+        }
+        RowSink sink = pool.invoke(task);
+        if (err.get() != null) {
+            throw err.get();
+        }
+        return sink;
+    }
+
+    /**
+     * 没有 where 时不读取数据就能得到的聚合：
+     * count 使用 TableManagerImpl 维护的可见行数，min、max 在整数类型的索引上从最小（最大）的 key 开始，
+     * 找到第一个可见的行即可。有任何一个做不到时返回 null，按普通的方式扫描
+     */
+    private RowWriter fastAggregate(long xid, String[] funcs, int[] cols, Select read, RowWriter out) throws Exception {
+        //先得到所有的值，out 可能是游标，不能写入半行
+        Long[] vals = new Long[funcs.length];
+        for (int i = 0; i < funcs.length; i++) {
+            if ("count".equals(funcs[i])) {
+                long n = ((TableManagerImpl)tbm).countRows(xid, this);
+                if (n < 0) {
+                    return null;
+                }
+                vals[i] = n;
+                continue;
+            }
+            Field fd = fields.get(cols[i]);
+            if ("sum".equals(funcs[i]) || !fd.isIndexed() || fd.fixedSize() < 0) {
+                return null;
+            }
+            vals[i] = "min".equals(funcs[i]) ? indexMin(xid, fd) : indexMax(xid, fd);
+        }
+        RowWriter w = RowWriter.of(out, read.format);
+        //只有一行，offset 和 limit 决定是否输出这一行
+        if (read.offset == 0 && read.limit != 0) {
+            w.begin(vals.length);
+            for (Long v : vals) {
+                if (v == null) w.nil(); else w.value(v);
+            }
+            w.end();
+        }
+        return w;
+    }
+
+    // 索引列在版本链上不变，第一个可见的行的 key 就是最小值
+    private Long indexMin(long xid, Field fd) throws Exception {
+        Long[] res = new Long[1];
+        fd.scan(Long.MIN_VALUE, Long.MAX_VALUE, (key, u) -> {
+            if (((TableManagerImpl)tbm).vm.read(xid, u) == null) {
+                return true;
+            }
+            res[0] = key;
+            return false;
+        });
+        return res[0];
+    }
+
+    // 和 indexMin 对称，从最大的 key 倒着找
+    private Long indexMax(long xid, Field fd) throws Exception {
+        Long[] res = new Long[1];
+        fd.scanDesc(Long.MIN_VALUE, Long.MAX_VALUE, (key, u) -> {
+            if (((TableManagerImpl)tbm).vm.read(xid, u) == null) {
+                return true;
+            }
+            res[0] = key;
+            return false;
+        });
+        return res[0];
+    }
+
+    // 数一遍 xid 能看到的行
+    long countRows(long xid) throws Exception {
+        long[] n = new long[1];
+        ((TableManagerImpl)tbm).vm.scan(xid, uid, (u, raw) -> {
+            n[0] ++;
+            return true;
+        });
+        return n[0];
+    }
+
+    int fieldNo(String name) throws Exception {
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).fieldName.equals(name)) {
+                return i;
+            }
+        }
+        throw Error.FieldNotFoundException;
+    }
+
+    //表的页数达到这个值时，SELECT 并行扫描；每个子任务至少处理 SCAN_GRAIN 页
+    static final int PARALLEL_MIN_PAGES = 64;
+    static final int SCAN_GRAIN = 16;
+    //走索引命中的行数达到这个值时，并行按uid读取；每个子任务至少处理 FETCH_GRAIN 行
+    static final int PARALLEL_MIN_ROWS = 2048;
+    static final int FETCH_GRAIN = 256;
+    //copy 每读取这么多行批量插入一次
+    static final int COPY_BATCH = 4096;
+    //copy 只能读取这个目录中的文件，没有设置时不能 copy
+    static final String IMPORT_DIR = "raindb.importDir";
+
+    // 扫描 pages[from, to) 中满足条件的行。出错时记录到 err 中，其余的子任务随之放弃。
+    // ForkJoinTask 实现了 Serializable，这里的任务只在 ForkJoinPool 中执行，不会被序列化
+    @SuppressWarnings("serial")
+    class ScanTask extends RecursiveTask<RowSink> {
+        long xid;
+        RowFilter filter;
+        Supplier<RowSink> sinks;
+        int[] pages;
+        int from, to;
+        AtomicReference<Exception> err;
+
+        ScanTask(long xid, RowFilter filter, Supplier<RowSink> sinks, int[] pages, int from, int to, AtomicReference<Exception> err) {
+            this.xid = xid;
+            this.filter = filter;
+            this.sinks = sinks;
+            this.pages = pages;
+            this.from = from;
+            this.to = to;
+            this.err = err;
+        }
+
+        @Override
+        protected RowSink compute() {
+            if (to - from <= SCAN_GRAIN) {
+                try {
+                    return scanPart();
+                } catch (Exception e) {
+                    err.compareAndSet(null, e);
+                    return sinks.get();
+                }
+            }
+            int mid = (from + to) >>> 1;
+            ScanTask left = new ScanTask(xid, filter, sinks, pages, from, mid, err);
+            left.fork();
+            RowSink right = new ScanTask(xid, filter, sinks, pages, mid, to, err).compute();
+            RowSink res = left.join();
+            res.merge(right);
+            return res;
+        }
+
+        RowSink scanPart() throws Exception {
+            RowSink sink = sinks.get();
+            ((TableManagerImpl)tbm).vm.scan(xid, pages, from, to, (u, raw) -> {
+                if (filter.match(raw)) {
+                    sink.add(raw.raw, raw.start);
+                }
+                return err.get() == null && !sink.done();
+            });
+            return sink;
+        }
+    }
+
+    // 按uid读取 uids[from, to) 这些行，只保留满足残余条件 filter 的
+    @SuppressWarnings("serial")
+    class FetchTask extends RecursiveTask<RowSink> {
+        long xid;
+        List<Long> uids;
+        RowFilter filter;
+        Supplier<RowSink> sinks;
+        int from, to;
+        AtomicReference<Exception> err;
+
+        FetchTask(long xid, List<Long> uids, RowFilter filter, Supplier<RowSink> sinks, int from, int to, AtomicReference<Exception> err) {
+            this.xid = xid;
+            this.uids = uids;
+            this.filter = filter;
+            this.sinks = sinks;
+            this.from = from;
+            this.to = to;
+            this.err = err;
+        }
+
+        @Override
+        protected RowSink compute() {
+            if (to - from <= FETCH_GRAIN) {
+                try {
+                    return fetchPart();
+                } catch (Exception e) {
+                    err.compareAndSet(null, e);
+                    return sinks.get();
+                }
+            }
+            int mid = (from + to) >>> 1;
+            FetchTask left = new FetchTask(xid, uids, filter, sinks, from, mid, err);
+            left.fork();
+            RowSink right = new FetchTask(xid, uids, filter, sinks, mid, to, err).compute();
+            RowSink res = left.join();
+            res.merge(right);
+            return res;
+        }
+
+        RowSink fetchPart() throws Exception {
+            RowSink sink = sinks.get();
+            for (int i = from; i < to && err.get() == null && !sink.done(); i++) {
+                byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uids.get(i));
+                if(raw == null || !filter.match(raw)) continue;
+                sink.add(raw, 0);
+            }
+            return sink;
         }
-        return sb.toString();
     }
 
     public void insert(long xid, Insert insert) throws Exception {
-        Map<String, Object> entry = string2Entry(insert.values);
         //按照表中的字段顺序
-        byte[] raw = entry2Raw(entry);
-        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-        for (Field field : fields) {
-            if(field.isIndexed()) {
-                field.insert(entry.get(field.fieldName), uid);
-            }
+        if(insert.rows == 1) {
+            insert(xid, layout.encode(insert.values));
+            return;
+        }
+        int n = fields.size();
+        if(insert.values.length != insert.rows * n) {
+            throw Error.InvalidValuesException;
+        }
+        byte[][] raws = new byte[insert.rows][];
+        for (int i = 0; i < raws.length; i++) {
+            raws[i] = layout.encode(Arrays.copyOfRange(insert.values, i * n, (i + 1) * n));
         }
+        insert(xid, raws);
     }
 
+    /**
+     * 从服务端的 csv 文件导入，每行按字段顺序，返回导入的行数。
+     * 每 COPY_BATCH 行批量插入一次，文件不需要整个读进内存。
+     * 每插入一批就用这一批的行数调用 inserted：后面的行出错时，已经插入的行仍然留在事务中
+     */
+    public long copy(long xid, String path, LongConsumer inserted) throws Exception {
+        long count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(importPath(path))) {
+            CsvReader csv = new CsvReader(reader);
+            List<byte[]> batch = new ArrayList<>();
+            String[] values;
+            while((values = csv.next()) != null) {
+                batch.add(layout.encode(values));
+                if(batch.size() == COPY_BATCH) {
+                    insert(xid, batch.toArray(new byte[0][]));
+                    count += batch.size();
+                    inserted.accept(batch.size());
+                    batch.clear();
+                }
+            }
+            if(!batch.isEmpty()) {
+                insert(xid, batch.toArray(new byte[0][]));
+                count += batch.size();
+                inserted.accept(batch.size());
+            }
+        } catch (NoSuchFileException e) {
+            throw Error.FileNotExistsException;
+        }
+        return count;
+    }
 
     /**
-     * 根据表结构（字段列表）解析一行数据
-     * @param raw
-     * @return
+     * 客户端给出的路径必须在导入目录中，相对路径相对导入目录。
+     * 先检查规范化后的路径，文件存在时再检查解析了符号链接的真实路径
      */
-    private Map<String, Object> parseEntry(byte[] raw) {
-        int pos = 0;
-        Map<String, Object> entry = new HashMap<>();
-        for (Field field : fields) {
-            Field.ParseValueRes r = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length));
-            entry.put(field.fieldName, r.v);
-            pos += r.shift;
+    static Path importPath(String path) throws Exception {
+        String dir = System.getProperty(IMPORT_DIR);
+        if (dir == null) {
+            throw Error.ImportPathException;
+        }
+        Path root;
+        try {
+            root = Paths.get(dir).toRealPath();
+        } catch (IOException e) {
+            throw Error.ImportPathException;
+        }
+        Path file = root.resolve(path).normalize();
+        if (!file.startsWith(root)) {
+            throw Error.ImportPathException;
         }
-        return entry;
+        try {
+            file = file.toRealPath();
+        } catch (NoSuchFileException e) {
+            throw Error.FileNotExistsException;
+        }
+        if (!file.startsWith(root)) {
+            throw Error.ImportPathException;
+        }
+        return file;
     }
 
-    private String printEntry(Map<String, Object> entry) {
-        StringBuilder sb = new StringBuilder("[");
+    private void insert(long xid, byte[] raw) throws Exception {
+        //表的数据都放在以表uid为段的页中，这样才能顺序扫描
+        long uid = ((TableManagerImpl)tbm).vm.insert(xid, this.uid, raw);
+        int[] offs = layout.offsets(raw, 0, fields.size() - 1);
         for (int i = 0; i < fields.size(); i++) {
             Field field = fields.get(i);
-            sb.append(field.printValue(entry.get(field.fieldName)));
-            if(i == fields.size()-1) {
-                sb.append("]");
-            } else {
-                sb.append(", ");
+            if(field.isIndexed()) {
+                field.insert(field.rawValue2Uid(raw, offs[i]), uid);
             }
         }
-        return sb.toString();
+        stats.onInsert(1);
     }
 
-    private byte[] entry2Raw(Map<String, Object> entry) {
-        byte[] raw = new byte[0];
-        for (Field field : fields) {
-            raw = Bytes.concat(raw, field.value2Raw(entry.get(field.fieldName)));
+    /**
+     * 批量插入：数据按页批量写入，一页只记录一次日志；
+     * 每个索引的项按 key 排序之后批量插入 B+ 树，落在同一个叶子中的一段也只记录一次日志
+     */
+    private void insert(long xid, byte[][] raws) throws Exception {
+        long[] uids = ((TableManagerImpl)tbm).vm.insert(xid, this.uid, raws);
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            if(!field.isIndexed()) {
+                continue;
+            }
+            long[][] entries = new long[raws.length][];
+            for (int j = 0; j < raws.length; j++) {
+                int off = layout.offsets(raws[j], 0, i)[i];
+                entries[j] = new long[]{field.rawValue2Uid(raws[j], off), uids[j]};
+            }
+            Arrays.sort(entries, Comparator.comparingLong(e -> e[0]));
+            long[] keys = new long[raws.length];
+            long[] values = new long[raws.length];
+            for (int j = 0; j < raws.length; j++) {
+                keys[j] = entries[j][0];
+                values[j] = entries[j][1];
+            }
+            field.insert(keys, values);
         }
-        return raw;
+        stats.onInsert(raws.length);
     }
 
-    private Map<String, Object> string2Entry(String[] values) throws Exception {
-        if(values.length != fields.size()) {
-            throw Error.InvalidValuesException;
-        }
-        Map<String, Object> entry = new HashMap<>();
+    /**
+     * kv 接口：key 是第一个建了索引的字段，按 key 的值直接在索引上查找，不解析语句、不规划 where，
+     * 也不把命中的 uid 先收集到 List 中。string 的索引项是哈希值，找到的行还要比较字段本身
+     */
+    int keyCol() throws Exception {
         for (int i = 0; i < fields.size(); i++) {
-            Field f = fields.get(i);
-            Object v = f.string2Value(values[i]);
-            entry.put(f.fieldName, v);
+            if (fields.get(i).isIndexed()) return i;
+        }
+        throw Error.TableNoIndexException;
+    }
+
+    // 第 col 个字段的编码等于 key 的可见的一行，没有时返回 null；uid 不为 null 时记下这一行的 uid
+    private byte[] lookup(long xid, int col, byte[] key, long[] uid) throws Exception {
+        Field fd = fields.get(col);
+        long k = fd.rawValue2Uid(key, 0);
+        byte[][] found = new byte[1][];
+        fd.scan(k, k, (kk, u) -> {
+            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, u);
+            if (raw == null || !layout.fieldEquals(raw, col, key)) {
+                return true;
+            }
+            found[0] = raw;
+            if (uid != null) uid[0] = u;
+            return false;
+        });
+        return found[0];
+    }
+
+    // 按 keys 的顺序输出每个 key 对应的一行；placeholder 时没有找到的 key 输出一个没有字段的行，保持和 keys 一一对应
+    void get(long xid, String[] keys, boolean placeholder, RowWriter out) throws Exception {
+        int col = keyCol();
+        Field fd = fields.get(col);
+        Projection proj = new Projection(new String[]{"*"}, Select.TYPED, out);
+        for (String key : keys) {
+            byte[] raw = lookup(xid, col, fd.value2Raw(key), null);
+            if (raw != null) {
+                proj.print(raw, 0, out);
+            } else if (placeholder) {
+                out.begin(0);
+                out.end();
+            }
+        }
+    }
+
+    /**
+     * 按 key 插入或者替换一行，返回是否替换了已有的行。
+     * 和 insert 一样没有唯一约束，并发地 put 同一个新的 key 时可能插入两行
+     */
+    boolean put(long xid, String[] values) throws Exception {
+        byte[] raw = layout.encode(values);
+        int col = keyCol();
+        int[] offs = layout.offsets(raw, 0, col);
+        byte[] key = Arrays.copyOfRange(raw, offs[col], offs[col + 1]);
+        long[] uid = new long[1];
+        while (true) {
+            byte[] old = lookup(xid, col, key, uid);
+            if (old == null) {
+                insert(xid, raw);
+                return false;
+            }
+            //先锁住这一行，lookup 之后它可能已经被别的事务删除或者改了 key 并提交，这时重新查找
+            old = ((TableManagerImpl) tbm).vm.readForUpdate(xid, uid[0]);
+            if (old == null || !layout.fieldEquals(old, col, key)) {
+                continue;
+            }
+            boolean sameKeys = true;
+            for (int i = 0; i < fields.size() && sameKeys; i++) {
+                sameKeys = !fields.get(i).isIndexed() || layout.key(old, i) == layout.key(raw, i);
+            }
+            if (replace(xid, uid[0], raw, sameKeys)) {
+                deadTuples.incrementAndGet();
+                stats.onUpdate(1);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 抽样统计：随机抽取最多 SAMPLE_PAGES 个数据页，按抽到的页中可见的行数推算整张表的行数，
+     * 并用抽到的行重建每个索引的 key 分布。
+     * @return 估计的行数
+     */
+    public long analyze() throws Exception {
+        int[] pages = ((TableManagerImpl)tbm).dm.segmentPages(uid);
+        int[] sample = pages;
+        if (pages.length > TableStats.SAMPLE_PAGES) {
+            //部分洗牌选出 SAMPLE_PAGES 页，再按页号排序，扫描时仍然是顺序读
+            int[] idx = Arrays.copyOf(pages, pages.length);
+            Random random = new Random();
+            for (int i = 0; i < TableStats.SAMPLE_PAGES; i++) {
+                int j = i + random.nextInt(idx.length - i);
+                int tmp = idx[i]; idx[i] = idx[j]; idx[j] = tmp;
+            }
+            sample = Arrays.copyOf(idx, TableStats.SAMPLE_PAGES);
+            Arrays.sort(sample);
+        }
+        KeyHistogram[] hists = new KeyHistogram[fields.size()];
+        for (int i = 0; i < hists.length; i++) {
+            if (fields.get(i).isIndexed()) {
+                hists[i] = new KeyHistogram();
+            }
+        }
+        long[] rows = new long[1];
+        ((TableManagerImpl)tbm).vm.scan(TransactionManagerImpl.SUPER_XID, sample, 0, sample.length, (u, raw) -> {
+            rows[0] ++;
+            for (int i = 0; i < hists.length; i++) {
+                if (hists[i] != null) {
+                    hists[i].add(fields.get(i).rawValue2Uid(raw.raw, raw.start + layout.offset(raw.raw, raw.start, i)));
+                }
+            }
+            return true;
+        });
+        long estimate = sample.length == 0 ? 0 : rows[0] * pages.length / sample.length;
+        for (int i = 0; i < hists.length; i++) {
+            if (hists[i] != null) {
+                hists[i].setSeen(estimate);
+                fields.get(i).histogram = hists[i];
+            }
+        }
+        stats.reset(estimate);
+        return estimate;
+    }
+
+
+    /**
+     * 回收这张表中已经死亡的行。
+     * vm 顺序扫描表所在的段：整行都已死亡时回收这一行的所有版本，否则只摘除链上已经死亡的旧版本。
+     * 索引只用来删除被回收的行的索引项。改了索引字段的 update 是 delete + insert，
+     * 所以链上所有版本的 key 都和链头相同。
+     * 手动的 vacuum 和 autovacuum 可能同时清理同一张表，这里串行执行
+     * @return 回收的行数
+     */
+    public synchronized int vacuum() throws Exception {
+        deadTuples.set(0);
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        return vm.vacuum(uid, vm.snapshotHorizon(), (head, data) -> {
+            for (int i = 0; i < fields.size(); i++) {
+                Field field = fields.get(i);
+                if(field.isIndexed()) {
+                    field.delete(field.rawValue2Uid(data.raw, data.start + layout.offset(data.raw, data.start, i)), head);
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * select 要输出的字段。输出时只解码选中的字段，最后一个选中字段之后的部分不再处理，
+     * 字段的偏移见 RowLayout
+     */
+    class Projection {
+        //选中的字段在 fields 中的下标，按输出顺序
+        int[] cols;
+        int last;
+        int format;
+        RowWriter out;
+
+        Projection(String[] names, int format, RowWriter out) throws Exception {
+            this.format = format;
+            this.out = out;
+            if (names.length == 1 && "*".equals(names[0])) {
+                cols = new int[fields.size()];
+                for (int i = 0; i < cols.length; i++) cols[i] = i;
+            } else {
+                cols = new int[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    cols[i] = fieldNo(names[i]);
+                }
+            }
+            last = 0;
+            for (int c : cols) last = Math.max(last, c);
+        }
+
+        // 输出 raw 中从 start 开始的一行
+        void print(byte[] raw, int start, RowWriter out) {
+            int[] offs = layout.offsets(raw, start, last);
+            out.begin(cols.length);
+            for (int c : cols) {
+                out.field(fields.get(c), raw, start + offs[c]);
+            }
+            out.end();
+        }
+    }
+
+    // 按顺序输出每一行，跳过前 skip 行，最多输出 remaining 行
+    class PrintSink implements RowSink {
+        Projection proj;
+        RowWriter out;
+        long skip, remaining = Long.MAX_VALUE;
+
+        PrintSink(Projection proj) {
+            this.proj = proj;
+            this.out = RowWriter.of(proj.out, proj.format);
+        }
+
+        PrintSink(Projection proj, long offset, long limit) {
+            this(proj);
+            this.skip = offset;
+            this.remaining = limit < 0 ? Long.MAX_VALUE : limit;
+        }
+
+        @Override
+        public void add(byte[] raw, int start) {
+            if (remaining == 0) {
+                return;
+            }
+            if (skip > 0) {
+                skip --;
+                return;
+            }
+            proj.print(raw, start, out);
+            remaining --;
+        }
+
+        @Override
+        public boolean done() {
+            return remaining == 0;
+        }
+
+        @Override
+        public void merge(RowSink right) {
+            //只有并行执行时才合并，这时两边的 out 都是各自新建的
+            ((RowWriter.Buffer)out).append((RowWriter.Buffer)((PrintSink)right).out);
+        }
+
+        @Override
+        public RowWriter result() {
+            return out;
         }
-        return entry;
     }
 
     /**
      * 解析Where条件，返回符合要求的uids
+     * 走索引时，候选行还需要满足残余条件的，这里先读出来检查一遍
+     * @param xid
      * @param where
      * @return
      * @throws Exception
      */
-    private List<Long> parseWhere(Where where) throws Exception{
-        long l0 = 0, r0 = 0, l1 = 0, r1 = 0;
-        boolean single = false;
-        Field fd = null;
+    private List<Long> parseWhere(long xid, Where where) throws Exception{
+        WherePlan plan = planWhere(where);
+        List<Long> uids = new ArrayList<>();
+        if (plan.isScan()) {
+            ((TableManagerImpl)tbm).vm.scan(xid, uid, (u, raw) -> {
+                if (plan.filter.match(raw)) {
+                    uids.add(u);
+                }
+                return true;
+            });
+            return uids;
+        }
+        if (plan.filter.isEmpty()) {
+            return plan.uids();
+        }
+        for (Long u : plan.uids()) {
+            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, u);
+            if (raw != null && plan.filter.match(raw)) {
+                uids.add(u);
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * where 的执行方式：
+     * uids 或 index 不为 null 时表示走索引，uids() 是候选行，读出之后还要用 filter 检查残余条件；
+     * 否则顺序扫描整张表，用 filter 过滤
+     */
+    class WherePlan {
+        List<Long> uids;
+        RowFilter filter;
+        //只用一个索引时，范围扫描推迟到真正需要 uids 时，这样按索引顺序读取前几行时不需要先取出所有的 uid
+        Term index;
+        //所有的条件，不使用 uids 时检查
+        RowFilter all;
+
+        boolean isScan() {
+            return uids == null && index == null;
+        }
+
+        List<Long> uids() throws Exception {
+            if (uids == null && index != null) {
+                uids = index.search();
+            }
+            return uids;
+        }
+    }
+
+    /**
+     * 按代价在几种执行方式中选择：
+     * 单个条件：索引范围扫描，或者顺序扫描；
+     * and：用其中一边的索引，另一边作为残余条件；两边都有索引时也可以求两个uid集合的交集
+     *      （同一个字段则直接求区间的交集）；或者顺序扫描；
+     * or： 两边都有索引时求并集并去重，或者顺序扫描；
+     * 没有where条件时总是顺序扫描。
+     * 代价模型和统计信息见 TableStats，从磁盘加载的表第一次查询时先 analyze。
+     * 索引列在一条版本链上不会变化（变化时会插入新的链头，见 update），所以走索引得到的行不需要再检查索引上的条件
+     */
+    WherePlan planWhere(Where where) throws Exception {
+        WherePlan plan = new WherePlan();
         if (where == null) {
-            for (Field field : fields) {
-                if (field.isIndexed()) {
-                    fd = field;
-                    break;
+            plan.filter = new RowFilter(true);
+            plan.all = plan.filter;
+            return plan;
+        }
+        ensureStats();
+        Term t1 = new Term(where.singleExp1);
+        Term t2 = "".equals(where.logicOp) ? null : new Term(where.singleExp2);
+        boolean and = t2 == null || "and".equals(where.logicOp);
+        if (t2 != null && and && t1.fd == t2.fd) {
+            //同一个字段上的 and 直接求区间的交集，变成单个条件
+            t1.left = Math.max(t1.left, t2.left);
+            t1.right = Math.min(t1.right, t2.right);
+            if (t1.left > t1.right) {
+                plan.uids = new ArrayList<>();
+                plan.filter = new RowFilter(true);
+                plan.all = new RowFilter(true, t1);
+                return plan;
+            }
+            t2 = null;
+        }
+
+        //默认顺序扫描，所有条件都在扫描时检查
+        double best = stats.seqScanCost(((TableManagerImpl)tbm).dm.segmentPages(uid).length);
+        plan.filter = t2 == null ? new RowFilter(true, t1) : new RowFilter(and, t1, t2);
+        plan.all = plan.filter;
+        Term[] terms = t2 == null ? new Term[]{t1} : new Term[]{t1, t2};
+
+        if (and) {
+            //用一个索引，其余条件作为残余条件
+            Term pick = null;
+            for (Term t : terms) {
+                if (!t.fd.isIndexed()) continue;
+                double rows = t.estimateRows();
+                double cost = stats.indexProbeCost(rows) + stats.fetchCost(rows);
+                if (cost < best) {
+                    best = cost;
+                    pick = t;
                 }
             }
-            //如果没有指定where条件，那么找到第一个索引即可
-            //指定最小值0，最大值MAX，只有一个条件single为true
-            l0 = 0;
-            r0 = Long.MAX_VALUE;
-            single = true;
-        } else {
-            for (Field field : fields) {
-                if (field.fieldName.equals(where.singleExp1.field)) {
-                    if (!field.isIndexed()) {
-                        throw Error.FieldNotIndexedException;
-                    }
-                    fd = field;
+            //两个索引求交集，只读取交集中的行
+            boolean intersect = false;
+            if (t2 != null && t1.fd.isIndexed() && t2.fd.isIndexed()) {
+                double r1 = t1.estimateRows(), r2 = t2.estimateRows();
+                double both = stats.rows() == 0 ? 0 : r1 * r2 / stats.rows();
+                double cost = stats.indexProbeCost(r1) + stats.indexProbeCost(r2) + stats.fetchCost(both);
+                if (cost < best) {
+                    intersect = true;
+                }
+            }
+            if (intersect) {
+                plan.uids = mergeUids(t1.search(), t2.search(), true);
+                plan.filter = new RowFilter(true);
+            } else if (pick != null) {
+                plan.index = pick;
+                plan.filter = t2 == null ? new RowFilter(true) : new RowFilter(true, pick == t1 ? t2 : t1);
+            }
+        } else if (t1.fd.isIndexed() && t2.fd.isIndexed()) {
+            double r1 = t1.estimateRows(), r2 = t2.estimateRows();
+            double either = Math.min(stats.rows(), r1 + r2);
+            double cost = stats.indexProbeCost(r1) + stats.indexProbeCost(r2) + stats.fetchCost(either);
+            if (cost < best) {
+                plan.uids = mergeUids(t1.search(), t2.search(), false);
+                plan.filter = new RowFilter(true);
+            }
+        }
+        return plan;
+    }
+
+    // 从磁盘加载的表第一次需要统计信息时先 analyze
+    void ensureStats() throws Exception {
+        if (!stats.analyzed) {
+            synchronized (stats) {
+                if (!stats.analyzed) {
+                    analyze();
+                }
+            }
+        }
+    }
+
+    // 按 plan 读取的代价
+    double accessCost(WherePlan plan, double rows) {
+        if (plan.isScan()) {
+            return stats.seqScanCost(((TableManagerImpl)tbm).dm.segmentPages(uid).length);
+        }
+        return stats.indexProbeCost(rows) + stats.fetchCost(rows);
+    }
+
+    /**
+     * 排序后归并：and 求交集，or 求并集，结果按uid递增且没有重复
+     */
+    static List<Long> mergeUids(List<Long> a, List<Long> b, boolean and) {
+        long[] x = sortedUids(a), y = sortedUids(b);
+        List<Long> res = new ArrayList<>();
+        int i = 0, j = 0;
+        while (i < x.length && j < y.length) {
+            if (x[i] == y[j]) {
+                res.add(x[i]);
+                i ++; j ++;
+            } else if (x[i] < y[j]) {
+                if (!and) res.add(x[i]);
+                i ++;
+            } else {
+                if (!and) res.add(y[j]);
+                j ++;
+            }
+        }
+        if (!and) {
+            for (; i < x.length; i++) res.add(x[i]);
+            for (; j < y.length; j++) res.add(y[j]);
+        }
+        return res;
+    }
+
+    // 排序并去重
+    private static long[] sortedUids(List<Long> uids) {
+        long[] arr = new long[uids.size()];
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = uids.get(i);
+        }
+        Arrays.sort(arr);
+        int n = 0;
+        for (int i = 0; i < arr.length; i++) {
+            if (n == 0 || arr[n-1] != arr[i]) {
+                arr[n ++] = arr[i];
+            }
+        }
+        return Arrays.copyOf(arr, n);
+    }
+
+    /**
+     * where 中的一个比较表达式，换算成字段 value2Uid 上的闭区间 [left, right]
+     */
+    class Term {
+        Field fd;
+        int fieldNo;
+        long left, right;
+
+        Term(SingleExpression exp) throws Exception {
+            for (int i = 0; i < fields.size(); i++) {
+                if (fields.get(i).fieldName.equals(exp.field)) {
+                    fd = fields.get(i);
+                    fieldNo = i;
                     break;
                 }
             }
             if (fd == null) {
                 throw Error.FieldNotFoundException;
             }
-            //计算
-            CalWhereRes res = calWhere(fd, where);
-            l0 = res.l0; r0 = res.r0;
-            l1 = res.l1; r1 = res.r1;
-            single = res.single;
+            FieldCalRes r = fd.calExp(exp);
+            left = r.left;
+            right = r.right;
+        }
+
+        // fd 上的所有 key
+        Term(Field fd, int fieldNo) {
+            this.fd = fd;
+            this.fieldNo = fieldNo;
+            left = Long.MIN_VALUE;
+            right = Long.MAX_VALUE;
         }
+
         //B+树的应用，就在这个地方！
-        List<Long> uids = fd.search(l0, r0);
-        if (!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+        List<Long> search() throws Exception {
+            return fd.search(left, right);
         }
-        return uids;
-    }
 
-    class CalWhereRes {
-        long l0, r0, l1, r1;
-        boolean single;
+        double estimateRows() {
+            return stats.estimateRows(fd, left, right);
+        }
     }
 
     /**
-     * 具体的where条件计算逻辑
-     * @param fd
-     * @param where
-     * @return
-     * @throws Exception
+     * 在一行的编码上直接计算若干个 Term 的 and 或者 or，没有 Term 时总是满足。
+     * 条件和走索引时一样换算成 value2Uid 上的区间，所以同一个查询有没有索引结果都相同
      */
-    private CalWhereRes calWhere(Field fd, Where where) throws Exception {
-        CalWhereRes res = new CalWhereRes();
-        switch (where.logicOp) {
-            case "":
-                res.single = true;
-                FieldCalRes r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                break;
-            case "or":
-                res.single = false;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left; res.r1 = r.right;
-                break;
-            case "and":
-            default:
-                throw Error.InvalidLogOpException;
+    class RowFilter {
+        boolean and;
+        Term[] terms;
+
+        RowFilter(boolean and, Term... terms) {
+            this.and = and;
+            this.terms = terms;
+        }
+
+        boolean isEmpty() {
+            return terms.length == 0;
+        }
+
+        boolean match(byte[] raw) {
+            return match(new SubArray(raw, 0, raw.length));
+        }
+
+        boolean match(SubArray raw) {
+            if (terms.length == 0) {
+                return true;
+            }
+            for (Term t : terms) {
+                int pos = raw.start + layout.offset(raw.raw, raw.start, t.fieldNo);
+                long v = t.fd.rawValue2Uid(raw.raw, pos);
+                boolean ok = v >= t.left && v <= t.right;
+                if (ok != and) {
+                    return ok;
+                }
+            }
+            return and;
         }
-        return res;
     }
 
     @Override
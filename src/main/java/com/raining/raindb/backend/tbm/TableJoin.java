@@ -0,0 +1,372 @@
+package com.raining.raindb.backend.tbm;
+
+import com.raining.raindb.backend.common.SubArray;
+import com.raining.raindb.backend.parser.statement.Select;
+import com.raining.raindb.backend.parser.statement.SingleExpression;
+import com.raining.raindb.backend.parser.statement.Where;
+import com.raining.raindb.common.Error;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 两张表的等值连接：select ... from a join b on a.x = b.y [where ...] [limit ...] [offset ...]，
+ * 输出的一行中 a 的字段在前。字段名在两张表中都有时需要写成 表名.字段名。
+ * where 中的每个条件只涉及一张表，能下推的分别交给两张表的 planWhere；or 的两边在不同的表上时不能下推，连接之后再检查。
+ * 两种执行方式按代价选择：
+ * 索引嵌套循环：一边的连接字段有索引时，逐行读取另一边，按连接字段的值在索引上找匹配的行；
+ * 哈希连接：估计行数少的一边建哈希表，扫描另一边时探测。
+ * 两边都用语句所在事务的 xid 读取，可见性和单表 select 相同。
+ * 连接字段的比较和 where 一样在 value2Uid 上进行，两边的字段类型必须相同
+ */
+class TableJoin {
+    //0 是 from 的表，1 是 join 的表
+    Table[] tables;
+    int[] keyCols = new int[2];
+    Select read;
+    //下推到每张表的条件，null 表示没有
+    Where[] wheres = new Where[2];
+    //or 的两边在不同的表上时，post[i] 是 tables[i] 上的那一边，连接之后检查
+    Table.RowFilter[] post;
+    //输出的字段，依次是所在的表和字段下标
+    int[] outSides, outCols;
+    //每张表最后一个输出的字段，没有时为 -1
+    int[] last = {-1, -1};
+    //结果写到 out 中，为 null 时每个 JoinSink 各自新建，见 RowWriter.of
+    RowWriter out;
+
+    TableJoin(Table left, Table right, Select read) throws Exception {
+        if (left == right || read.groupBy != null || read.orderBy != null) {
+            throw Error.InvalidJoinException;
+        }
+        for (String f : read.aggregates) {
+            if (f != null) throw Error.InvalidJoinException;
+        }
+        tables = new Table[]{left, right};
+        this.read = read;
+        int[] l = resolve(read.join.leftField), r = resolve(read.join.rightField);
+        if (l[0] == r[0]) {
+            throw Error.InvalidJoinException;
+        }
+        keyCols[l[0]] = l[1];
+        keyCols[r[0]] = r[1];
+        if (!keyField(0).fieldType.equals(keyField(1).fieldType)) {
+            throw Error.InvalidJoinException;
+        }
+        project(read.fields);
+        splitWhere(read.where);
+    }
+
+    private Field keyField(int side) {
+        return tables[side].fields.get(keyCols[side]);
+    }
+
+    // 字段所在的表和下标
+    private int[] resolve(String name) throws Exception {
+        int dot = name.indexOf('.');
+        if (dot >= 0) {
+            String table = name.substring(0, dot);
+            for (int s = 0; s < 2; s++) {
+                if (tables[s].name.equals(table)) {
+                    return new int[]{s, tables[s].fieldNo(name.substring(dot+1))};
+                }
+            }
+            throw Error.TableNotFoundException;
+        }
+        int[] res = null;
+        for (int s = 0; s < 2; s++) {
+            List<Field> fields = tables[s].fields;
+            for (int i = 0; i < fields.size(); i++) {
+                if (!fields.get(i).fieldName.equals(name)) continue;
+                if (res != null) {
+                    throw Error.InvalidJoinException;
+                }
+                res = new int[]{s, i};
+            }
+        }
+        if (res == null) {
+            throw Error.FieldNotFoundException;
+        }
+        return res;
+    }
+
+    private void project(String[] names) throws Exception {
+        if (names.length == 1 && "*".equals(names[0])) {
+            int n0 = tables[0].fields.size(), n1 = tables[1].fields.size();
+            outSides = new int[n0 + n1];
+            outCols = new int[n0 + n1];
+            for (int i = 0; i < n0 + n1; i++) {
+                outSides[i] = i < n0 ? 0 : 1;
+                outCols[i] = i < n0 ? i : i - n0;
+            }
+        } else {
+            outSides = new int[names.length];
+            outCols = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                int[] c = resolve(names[i]);
+                outSides[i] = c[0];
+                outCols[i] = c[1];
+            }
+        }
+        for (int i = 0; i < outSides.length; i++) {
+            last[outSides[i]] = Math.max(last[outSides[i]], outCols[i]);
+        }
+    }
+
+    // 去掉表名，变成所在的表上的条件
+    private SingleExpression local(SingleExpression exp, int[] c) {
+        SingleExpression res = new SingleExpression();
+        res.field = tables[c[0]].fields.get(c[1]).fieldName;
+        res.compareOp = exp.compareOp;
+        res.value = exp.value;
+        return res;
+    }
+
+    private static Where where(SingleExpression exp1, String logicOp, SingleExpression exp2) {
+        Where w = new Where();
+        w.singleExp1 = exp1;
+        w.logicOp = logicOp;
+        w.singleExp2 = exp2;
+        return w;
+    }
+
+    private void splitWhere(Where w) throws Exception {
+        if (w == null) {
+            return;
+        }
+        int[] c1 = resolve(w.singleExp1.field);
+        SingleExpression e1 = local(w.singleExp1, c1);
+        if ("".equals(w.logicOp)) {
+            wheres[c1[0]] = where(e1, "", null);
+            return;
+        }
+        int[] c2 = resolve(w.singleExp2.field);
+        SingleExpression e2 = local(w.singleExp2, c2);
+        if (c1[0] == c2[0]) {
+            wheres[c1[0]] = where(e1, w.logicOp, e2);
+        } else if ("and".equals(w.logicOp)) {
+            wheres[c1[0]] = where(e1, "", null);
+            wheres[c2[0]] = where(e2, "", null);
+        } else {
+            post = new Table.RowFilter[2];
+            post[c1[0]] = tables[c1[0]].new RowFilter(true, tables[c1[0]].new Term(e1));
+            post[c2[0]] = tables[c2[0]].new RowFilter(true, tables[c2[0]].new Term(e2));
+        }
+    }
+
+    // 下推到 side 的条件命中的行数
+    private double estimate(int side) throws Exception {
+        Table t = tables[side];
+        Where w = wheres[side];
+        if (w == null) {
+            return t.stats.rows();
+        }
+        double r1 = t.new Term(w.singleExp1).estimateRows();
+        if ("".equals(w.logicOp)) {
+            return r1;
+        }
+        double r2 = t.new Term(w.singleExp2).estimateRows();
+        return "and".equals(w.logicOp) ? Math.min(r1, r2) : Math.min(t.stats.rows(), r1 + r2);
+    }
+
+    // side 的连接字段上每个值平均的行数，没有样本时按唯一估计
+    private double rowsPerKey(int side) {
+        KeyHistogram h = keyField(side).histogram;
+        double n = h == null ? -1 : h.rowsPerKey();
+        return n < 0 ? 1 : n;
+    }
+
+    RowWriter read(long xid) throws Exception {
+        return read(xid, null);
+    }
+
+    // out 见 Table.read
+    RowWriter read(long xid, RowWriter out) throws Exception {
+        this.out = out;
+        Table.WherePlan[] plans = new Table.WherePlan[2];
+        double[] est = new double[2], access = new double[2];
+        for (int s = 0; s < 2; s++) {
+            tables[s].ensureStats();
+            plans[s] = tables[s].planWhere(wheres[s]);
+            est[s] = estimate(s);
+            access[s] = tables[s].accessCost(plans[s], est[s]);
+        }
+        //哈希连接两边各读一遍；索引嵌套循环读一遍外表，外表的每一行在内表的索引上查找一次
+        double best = access[0] + access[1];
+        int inner = -1;
+        for (int s = 0; s < 2; s++) {
+            if (!keyField(s).isIndexed()) continue;
+            int outer = 1 - s;
+            double perKey = rowsPerKey(s);
+            TableStats stats = tables[s].stats;
+            double cost = access[outer] + est[outer] * (stats.indexProbeCost(perKey) + stats.fetchCost(perKey));
+            if (cost < best) {
+                best = cost;
+                inner = s;
+            }
+        }
+        //有 limit 时需要保持行的顺序，不能并行
+        boolean limited = read.limit >= 0 || read.offset > 0 || out != null;
+        if (inner >= 0) {
+            int outer = 1 - inner;
+            Table.RowFilter filter = plans[inner].all;
+            return tables[outer].read(xid, plans[outer], () -> new IndexProbeSink(xid, outer, filter), limited).result();
+        }
+        int build = est[0] <= est[1] ? 0 : 1;
+        int probe = 1 - build;
+        Map<Long, List<byte[]>> rows = ((BuildSink)tables[build].read(xid, plans[build], () -> new BuildSink(build), false)).rows;
+        return tables[probe].read(xid, plans[probe], () -> new HashProbeSink(probe, rows), limited).result();
+    }
+
+    private long key(int side, byte[] raw, int start) {
+        RowLayout layout = tables[side].layout;
+        return keyField(side).rawValue2Uid(raw, start + layout.offset(raw, start, keyCols[side]));
+    }
+
+    /**
+     * side 上的一行和另一张表的一行 other 的连接字段是否相等。
+     * string 的 key 只是哈希值，key 相同时还要比较字段本身的编码
+     */
+    private boolean keyEquals(int side, byte[] raw, int start, byte[] other, int otherStart) {
+        int off = start + tables[side].layout.offset(raw, start, keyCols[side]);
+        int len = keyField(side).rawShift(raw, off);
+        return tables[1 - side].layout.fieldEquals(other, otherStart, keyCols[1 - side], raw, off, len);
+    }
+
+    // 哈希连接的建表一方：按连接字段的值收集行，行需要复制出来
+    class BuildSink implements RowSink {
+        int side;
+        Map<Long, List<byte[]>> rows = new HashMap<>();
+
+        BuildSink(int side) {
+            this.side = side;
+        }
+
+        @Override
+        public void add(byte[] raw, int start) {
+            byte[] row = Arrays.copyOfRange(raw, start, start + tables[side].layout.length(raw, start));
+            rows.computeIfAbsent(key(side, raw, start), k -> new ArrayList<>()).add(row);
+        }
+
+        @Override
+        public void merge(RowSink right) {
+            for (Map.Entry<Long, List<byte[]>> e : ((BuildSink)right).rows.entrySet()) {
+                rows.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).addAll(e.getValue());
+            }
+        }
+
+        @Override
+        public RowWriter result() {
+            return null;
+        }
+    }
+
+    // 输出连接后的行，跳过前 offset 行，最多输出 limit 行
+    abstract class JoinSink implements RowSink {
+        RowWriter out = RowWriter.of(TableJoin.this.out, read.format);
+        long skip = read.offset, remaining = read.limit < 0 ? Long.MAX_VALUE : read.limit;
+
+        void emit(byte[] a, int as, byte[] b, int bs) {
+            if (remaining == 0) {
+                return;
+            }
+            if (post != null && !post[0].match(new SubArray(a, as, a.length)) && !post[1].match(new SubArray(b, bs, b.length))) {
+                return;
+            }
+            if (skip > 0) {
+                skip --;
+                return;
+            }
+            int[] offs0 = last[0] >= 0 ? tables[0].layout.offsets(a, as, last[0]) : null;
+            int[] offs1 = last[1] >= 0 ? tables[1].layout.offsets(b, bs, last[1]) : null;
+            out.begin(outSides.length);
+            for (int i = 0; i < outSides.length; i++) {
+                int c = outCols[i];
+                if (outSides[i] == 0) {
+                    out.field(tables[0].fields.get(c), a, as + offs0[c]);
+                } else {
+                    out.field(tables[1].fields.get(c), b, bs + offs1[c]);
+                }
+            }
+            out.end();
+            remaining --;
+        }
+
+        // side 上的一行和另一张表的一行
+        void emit(int side, byte[] raw, int start, byte[] other, int otherStart) {
+            if (side == 0) {
+                emit(raw, start, other, otherStart);
+            } else {
+                emit(other, otherStart, raw, start);
+            }
+        }
+
+        @Override
+        public boolean done() {
+            return remaining == 0;
+        }
+
+        @Override
+        public void merge(RowSink right) {
+            //只有并行执行时才合并，这时两边的 out 都是各自新建的
+            ((RowWriter.Buffer)out).append((RowWriter.Buffer)((JoinSink)right).out);
+        }
+
+        @Override
+        public RowWriter result() {
+            return out;
+        }
+    }
+
+    // 逐行读取外表 outer，在另一张表连接字段的索引上查找，读出可见的、满足下推条件 filter 的行
+    class IndexProbeSink extends JoinSink {
+        long xid;
+        int outer;
+        Table.RowFilter filter;
+
+        IndexProbeSink(long xid, int outer, Table.RowFilter filter) {
+            this.xid = xid;
+            this.outer = outer;
+            this.filter = filter;
+        }
+
+        @Override
+        public void add(byte[] raw, int start) throws Exception {
+            long k = key(outer, raw, start);
+            Table inner = tables[1 - outer];
+            for (Long u : keyField(1 - outer).search(k, k)) {
+                byte[] row = ((TableManagerImpl)inner.tbm).vm.read(xid, u);
+                if (row == null || !keyEquals(outer, raw, start, row, 0) || !filter.match(row)) continue;
+                emit(outer, raw, start, row, 0);
+                if (done()) return;
+            }
+        }
+    }
+
+    // 扫描 probe 一方，在哈希表中找匹配的行
+    class HashProbeSink extends JoinSink {
+        int probe;
+        Map<Long, List<byte[]>> rows;
+
+        HashProbeSink(int probe, Map<Long, List<byte[]>> rows) {
+            this.probe = probe;
+            this.rows = rows;
+        }
+
+        @Override
+        public void add(byte[] raw, int start) {
+            List<byte[]> matched = rows.get(key(probe, raw, start));
+            if (matched == null) {
+                return;
+            }
+            for (byte[] row : matched) {
+                if (!keyEquals(probe, raw, start, row, 0)) continue;
+                emit(probe, raw, start, row, 0);
+                if (done()) return;
+            }
+        }
+    }
+}
@@ -5,6 +5,8 @@ import com.raining.raindb.backend.parser.statement.*;
 import com.raining.raindb.backend.util.Parser;
 import com.raining.raindb.backend.vm.VersionManager;
 
+import java.util.List;
+
 public interface TableManager {
 
     //由于 TableManager 已经是直接被最外层 Server 调用（MYDB 是 C/S 结构），
@@ -22,6 +24,34 @@ public interface TableManager {
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    //预编译语句先用 table 找到表，之后直接在这张表上执行，不再按名字查找。
+    //表结构变化（例如创建新表）时 schemaVersion 增加，之前找到的表需要重新查找
+    Table table(String tableName) throws Exception;
+    long schemaVersion();
+    byte[] insert(long xid, Table table, Insert insert) throws Exception;
+    byte[] read(long xid, Table table, Select select) throws Exception;
+    byte[] update(long xid, Table table, Update update) throws Exception;
+    byte[] delete(long xid, Table table, Delete delete) throws Exception;
+    //从服务端的 csv 文件批量导入，结果是 copy 行数
+    byte[] copy(long xid, Copy copy) throws Exception;
+
+    //嵌入式使用：select 的结果直接是每行一个 Object[]，不编码成字节，见 RowWriter
+    List<Object[]> rows(long xid, Table table, Select select) throws Exception;
+
+    //kv 接口：按 key 字段（第一个建了索引的字段）直接在索引上查找，不经过语句的解析，
+    //get 和 multiGet 的结果是二进制协议的结果集（见 transport.ResultSet），整行输出。
+    //multiGet 的每个 key 对应一行，没有找到的是一个没有字段的行。xid 为 0 时读最新提交的版本，不需要开启事务
+    byte[] get(long xid, Table table, String key) throws Exception;
+    byte[] multiGet(long xid, Table table, String[] keys) throws Exception;
+    //按 key 插入或者替换一整行
+    byte[] put(long xid, Table table, String[] values) throws Exception;
+
+    //游标：select 的结果由 Cursor.fetch 分批取出，游标关闭之前事务 xid 不能结束
+    Cursor cursor(long xid, Table table, Select select) throws Exception;
+
+    byte[] vacuum(Vacuum vacuum) throws Exception;
+    byte[] analyze(Analyze analyze) throws Exception;
+
     void close();
 
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
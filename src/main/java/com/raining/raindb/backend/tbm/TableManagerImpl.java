@@ -1,20 +1,33 @@
 package com.raining.raindb.backend.tbm;
 
 import com.raining.raindb.backend.dm.DataManager;
+import com.raining.raindb.backend.tm.TransactionManagerImpl;
 import com.raining.raindb.backend.parser.statement.*;
 import com.raining.raindb.backend.util.Parser;
 import com.raining.raindb.backend.vm.VersionManager;
 import com.raining.raindb.common.Error;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class TableManagerImpl implements TableManager{
 
+    // 一张表累计的死亡版本数超过这个值时，autovacuum 会清理它
+    static final int AUTOVACUUM_THRESHOLD = 1000;
+    // autovacuum 检查的间隔，单位秒
+    static final long AUTOVACUUM_INTERVAL = 10;
+
     VersionManager vm;
     DataManager dm;
     private Booter booter;
@@ -23,6 +36,17 @@ public class TableManagerImpl implements TableManager{
     // 事务表缓存，用于缓存每个事务修改过的表，键是事务ID，值是表对象列表
     private Map<Long, List<Table>> xidTableCache;
     private Lock lock;
+    private ScheduledExecutorService autovacuum;
+    // 所有表的并行 SELECT 共用，见 Table.read
+    ForkJoinPool scanPool;
+    // 每个事务对每张表可见行数的修改，提交时才计入 Table.liveRows
+    private Map<Long, Map<Table, Long>> rowDeltas = new ConcurrentHashMap<>();
+    // repeatable read 的事务看到的是快照，不能直接使用 liveRows
+    private Set<Long> snapshotXids = ConcurrentHashMap.newKeySet();
+    // 修改过行数的事务提交和读取 liveRows 互斥，这样读到的总是某一时刻已提交的行数
+    private Lock countLock = new ReentrantLock();
+    // 每次创建表时增加，见 TableManager.table
+    private volatile long schemaVersion;
 
     //初始化工作
 
@@ -34,6 +58,40 @@ public class TableManagerImpl implements TableManager{
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
         loadTables();
+        startAutovacuum();
+        scanPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    private void startAutovacuum() {
+        autovacuum = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "autovacuum");
+            t.setDaemon(true);
+            return t;
+        });
+        autovacuum.scheduleWithFixedDelay(() -> {
+            for (Table tb : tables()) {
+                try {
+                    if(tb.deadTuples.get() >= AUTOVACUUM_THRESHOLD) {
+                        tb.vacuum();
+                    }
+                    //修改足够多之后重新统计，让 planWhere 的估计跟上数据的变化
+                    if(tb.stats.needAnalyze()) {
+                        tb.analyze();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, AUTOVACUUM_INTERVAL, AUTOVACUUM_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    private List<Table> tables() {
+        lock.lock();
+        try {
+            return new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
     }
 
     private void loadTables() {
@@ -61,22 +119,73 @@ public class TableManagerImpl implements TableManager{
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead?1:0;
         res.xid = vm.begin(level);
+        if(level != 0) {
+            snapshotXids.add(res.xid);
+        }
         res.result = "begin".getBytes();
         return res;
     }
 
     @Override
     public byte[] commit(long xid) throws Exception {
-        vm.commit(xid);
+        snapshotXids.remove(xid);
+        Map<Table, Long> deltas = rowDeltas.remove(xid);
+        if(deltas == null) {
+            vm.commit(xid);
+            return "commit".getBytes();
+        }
+        countLock.lock();
+        try {
+            vm.commit(xid);
+            for (Map.Entry<Table, Long> e : deltas.entrySet()) {
+                if(e.getKey().liveRows >= 0) {
+                    e.getKey().liveRows += e.getValue();
+                }
+            }
+        } finally {
+            countLock.unlock();
+        }
         return "commit".getBytes();
     }
 
     @Override
     public byte[] abort(long xid) {
+        snapshotXids.remove(xid);
+        rowDeltas.remove(xid);
         vm.abort(xid);
         return "abort".getBytes();
     }
 
+    private void addRows(long xid, Table table, long delta) {
+        rowDeltas.computeIfAbsent(xid, k -> new HashMap<>()).merge(table, delta, Long::sum);
+    }
+
+    /**
+     * xid 能看到的 table 的行数：已提交的行数加上 xid 自己插入和删除的行数。
+     * 只对 read committed 的事务成立，repeatable read 时返回 -1。
+     * 从磁盘加载的表第一次使用时需要数一遍，期间修改过行数的事务不能提交
+     */
+    long countRows(long xid, Table table) throws Exception {
+        if(snapshotXids.contains(xid)) {
+            return -1;
+        }
+        long n;
+        countLock.lock();
+        try {
+            if(table.liveRows < 0) {
+                table.liveRows = table.countRows(TransactionManagerImpl.SUPER_XID);
+            }
+            n = table.liveRows;
+        } finally {
+            countLock.unlock();
+        }
+        Map<Table, Long> deltas = rowDeltas.get(xid);
+        if(deltas != null) {
+            n += deltas.getOrDefault(table, 0L);
+        }
+        return n;
+    }
+
     @Override
     public byte[] show(long xid) {
         lock.lock();
@@ -109,6 +218,7 @@ public class TableManagerImpl implements TableManager{
             Table table = Table.createTable(this, firstTableUid(), xid, create);
             updateFirstTableUid(table.uid);
             tableCache.put(create.tableName, table);
+            schemaVersion ++;
             if(!xidTableCache.containsKey(xid)) {
                 xidTableCache.put(xid, new ArrayList<>());
             }
@@ -120,53 +230,161 @@ public class TableManagerImpl implements TableManager{
     }
 
     @Override
-    public byte[] insert(long xid, Insert insert) throws Exception {
+    public Table table(String tableName) throws Exception {
         lock.lock();
-        Table table = tableCache.get(insert.tableName);
+        Table table = tableCache.get(tableName);
         lock.unlock();
         if(table == null) {
             throw Error.TableNotFoundException;
         }
+        return table;
+    }
+
+    @Override
+    public long schemaVersion() {
+        return schemaVersion;
+    }
+
+    @Override
+    public byte[] insert(long xid, Insert insert) throws Exception {
+        return insert(xid, table(insert.tableName), insert);
+    }
+
+    @Override
+    public byte[] insert(long xid, Table table, Insert insert) throws Exception {
         table.insert(xid, insert);
-        return "insert".getBytes();
+        addRows(xid, table, insert.rows);
+        return (insert.rows == 1 ? "insert" : "insert " + insert.rows).getBytes();
+    }
+
+    @Override
+    public byte[] copy(long xid, Copy copy) throws Exception {
+        Table table = table(copy.tableName);
+        //按批记录行数，中途出错时已经插入的行也要算进去
+        long count = table.copy(xid, copy.path, n -> addRows(xid, table, n));
+        return ("copy " + count).getBytes();
     }
 
     @Override
     public byte[] read(long xid, Select read) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(read.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
+        return read(xid, table(read.tableName), read);
+    }
+
+    @Override
+    public byte[] read(long xid, Table table, Select read) throws Exception {
+        if(read.join != null) {
+            return ((RowWriter.Encoded) new TableJoin(table, table(read.join.tableName), read).read(xid)).toBytes();
         }
-        return table.read(xid, read).getBytes();
+        return table.read(xid, read);
     }
 
     @Override
-    public byte[] update(long xid, Update update) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(update.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
+    public List<Object[]> rows(long xid, Table table, Select read) throws Exception {
+        //只在这次读取时使用 OBJECTS，同一个 Select 之后仍然可以交给 read
+        int format = read.format;
+        read.format = Select.OBJECTS;
+        RowWriter res;
+        try {
+            if(read.join != null) {
+                res = new TableJoin(table, table(read.join.tableName), read).read(xid);
+            } else {
+                res = table.read(xid, read, null);
+            }
+        } finally {
+            read.format = format;
+        }
+        return ((RowWriter.Objects)res).rows;
+    }
+
+    @Override
+    public byte[] get(long xid, Table table, String key) throws Exception {
+        RowWriter.Encoded out = RowWriter.encoder(Select.TYPED);
+        table.get(xid, new String[]{key}, false, out);
+        return out.toBytes();
+    }
+
+    @Override
+    public byte[] multiGet(long xid, Table table, String[] keys) throws Exception {
+        RowWriter.Encoded out = RowWriter.encoder(Select.TYPED);
+        table.get(xid, keys, true, out);
+        return out.toBytes();
+    }
+
+    @Override
+    public byte[] put(long xid, Table table, String[] values) throws Exception {
+        if(table.put(xid, values)) {
+            return "put update".getBytes();
+        }
+        addRows(xid, table, 1);
+        return "put insert".getBytes();
+    }
+
+    @Override
+    public Cursor cursor(long xid, Table table, Select read) throws Exception {
+        if(read.join != null) {
+            //连接的检查在这里完成，出错时不创建游标
+            TableJoin join = new TableJoin(table, table(read.join.tableName), read);
+            return new Cursor(read.format, out -> join.read(xid, out));
         }
+        return new Cursor(read.format, out -> table.read(xid, read, out));
+    }
+
+    @Override
+    public byte[] update(long xid, Update update) throws Exception {
+        return update(xid, table(update.tableName), update);
+    }
+
+    @Override
+    public byte[] update(long xid, Table table, Update update) throws Exception {
         int count = table.update(xid, update);
         return ("update " + count).getBytes();
     }
 
     @Override
     public byte[] delete(long xid, Delete delete) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(delete.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.TableNotFoundException;
-        }
+        return delete(xid, table(delete.tableName), delete);
+    }
+
+    @Override
+    public byte[] delete(long xid, Table table, Delete delete) throws Exception {
         int count = table.delete(xid, delete);
+        addRows(xid, table, -count);
         return ("delete " + count).getBytes();
     }
 
+    @Override
+    public byte[] vacuum(Vacuum vacuum) throws Exception {
+        List<Table> tbs;
+        if(vacuum.tableName == null) {
+            tbs = tables();
+        } else {
+            tbs = Collections.singletonList(table(vacuum.tableName));
+        }
+        int count = 0;
+        for (Table tb : tbs) {
+            count += tb.vacuum();
+        }
+        return ("vacuum " + count).getBytes();
+    }
+
+    @Override
+    public byte[] analyze(Analyze analyze) throws Exception {
+        List<Table> tbs;
+        if(analyze.tableName == null) {
+            tbs = tables();
+        } else {
+            tbs = Collections.singletonList(table(analyze.tableName));
+        }
+        long rows = 0;
+        for (Table tb : tbs) {
+            rows += tb.analyze();
+        }
+        return ("analyze " + rows).getBytes();
+    }
+
     public void close() {
+        autovacuum.shutdownNow();
+        scanPool.shutdownNow();
         vm.close();
         dm.close();
     }
@@ -0,0 +1,86 @@
+package com.raining.raindb.backend.tbm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一张表的统计信息和代价模型，供 Table.planWhere 在索引扫描、索引交集/并集和顺序扫描之间选择。
+ * rowCount 是可见行数的估计，由抽样的 analyze 计算，之后 insert 和 delete 增量维护；
+ * 每个索引上 key 的分布见 Field 中的 KeyHistogram。
+ * 代价的单位是顺序读一个数据页。
+ */
+public class TableStats {
+
+    //analyze 最多抽样的数据页数
+    static final int SAMPLE_PAGES = 64;
+    //自上次 analyze 以来的修改超过这个值，并且超过行数的 ANALYZE_RATIO 时，autovacuum 会重新 analyze
+    static final long ANALYZE_THRESHOLD = 500;
+    static final double ANALYZE_RATIO = 0.1;
+
+    //顺序扫描时读一页、处理一行（可见性判断和过滤）
+    static final double SEQ_PAGE_COST = 1.0;
+    static final double CPU_ROW_COST = 0.01;
+    //从根走到叶子，以及从叶子中取出一个 uid
+    static final double INDEX_STARTUP_COST = 2.0;
+    static final double INDEX_KEY_COST = 0.005;
+    //按 uid 读取一行，每一行都可能落在不同的页上
+    static final double FETCH_ROW_COST = 0.2;
+    //没有统计信息时的默认选择率
+    static final double DEFAULT_EQ_SEL = 0.005;
+    static final double DEFAULT_RANGE_SEL = 0.33;
+
+    AtomicLong rowCount = new AtomicLong();
+    AtomicLong changes = new AtomicLong();
+    //从磁盘加载的表在第一次查询时才 analyze，新建的表从 0 行开始增量维护即可
+    volatile boolean analyzed;
+
+    public void onInsert(int count) {
+        rowCount.addAndGet(count);
+        changes.addAndGet(count);
+    }
+
+    public void onDelete(int count) {
+        rowCount.addAndGet(-count);
+        changes.addAndGet(count);
+    }
+
+    public void onUpdate(int count) {
+        changes.addAndGet(count);
+    }
+
+    public void reset(long rows) {
+        rowCount.set(rows);
+        changes.set(0);
+        analyzed = true;
+    }
+
+    public boolean needAnalyze() {
+        long c = changes.get();
+        return c >= ANALYZE_THRESHOLD && c >= rowCount.get() * ANALYZE_RATIO;
+    }
+
+    public double rows() {
+        return Math.max(rowCount.get(), 0);
+    }
+
+    // field 上 [left, right] 这个区间命中的行数
+    public double estimateRows(Field fd, long left, long right) {
+        double sel = fd.histogram == null ? -1 : fd.histogram.selectivity(left, right);
+        if(sel < 0) {
+            sel = left == right ? DEFAULT_EQ_SEL : DEFAULT_RANGE_SEL;
+        }
+        return sel * rows();
+    }
+
+    public double seqScanCost(int pages) {
+        return pages * SEQ_PAGE_COST + rows() * CPU_ROW_COST;
+    }
+
+    // 在索引中找出 rows 个 uid，不读取数据
+    public double indexProbeCost(double rows) {
+        return INDEX_STARTUP_COST + rows * INDEX_KEY_COST;
+    }
+
+    public double fetchCost(double rows) {
+        return rows * FETCH_ROW_COST;
+    }
+}
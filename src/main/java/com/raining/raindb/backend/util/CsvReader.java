@@ -0,0 +1,77 @@
+package com.raining.raindb.backend.util;
+
+import com.raining.raindb.common.Error;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 逐行读取 csv：字段用逗号分隔，带逗号、引号或者换行的字段放在双引号中，字段中的双引号写成两个。
+ * 空行跳过
+ */
+public class CsvReader {
+    private Reader reader;
+    private int peeked = -2;
+
+    public CsvReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    // 下一行的字段，读完时返回 null
+    public String[] next() throws Exception {
+        int c;
+        while((c = read()) == '\r' || c == '\n') {
+        }
+        if(c == -1) {
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        while(true) {
+            if(quoted) {
+                if(c == -1) {
+                    throw Error.InvalidValuesException;
+                } else if(c == '"') {
+                    if(peek() == '"') {
+                        read();
+                        sb.append('"');
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    sb.append((char) c);
+                }
+            } else if(c == '"') {
+                quoted = true;
+            } else if(c == ',') {
+                values.add(sb.toString());
+                sb.setLength(0);
+            } else if(c == '\n' || c == '\r' || c == -1) {
+                values.add(sb.toString());
+                return values.toArray(new String[values.size()]);
+            } else {
+                sb.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    private int read() throws IOException {
+        if(peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return reader.read();
+    }
+
+    private int peek() throws IOException {
+        if(peeked == -2) {
+            peeked = reader.read();
+        }
+        return peeked;
+    }
+}
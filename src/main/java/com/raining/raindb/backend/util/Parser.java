@@ -25,6 +25,32 @@ public class Parser {
         return buffer.getInt();
     }
 
+    // 直接从 buf 的 offset 处解析，不需要先拷贝出来
+    public static int parseInt(byte[] buf, int offset) {
+        return ByteBuffer.wrap(buf, offset, 4).getInt();
+    }
+
+    public static long parseLong(byte[] buf, int offset) {
+        return ByteBuffer.wrap(buf, offset, 8).getLong();
+    }
+
+    public static short parseShort(byte[] buf, int offset) {
+        return ByteBuffer.wrap(buf, offset, 2).getShort();
+    }
+
+    // 直接写到 buf 的 offset 处，不另外分配数组
+    public static void putShort(byte[] buf, int offset, short value) {
+        ByteBuffer.wrap(buf, offset, 2).putShort(value);
+    }
+
+    public static void putInt(byte[] buf, int offset, int value) {
+        ByteBuffer.wrap(buf, offset, 4).putInt(value);
+    }
+
+    public static void putLong(byte[] buf, int offset, long value) {
+        ByteBuffer.wrap(buf, offset, 8).putLong(value);
+    }
+
     public static long parseLong(byte[] buf) {
         ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
         return buffer.getLong();
@@ -46,10 +72,16 @@ public class Parser {
     }
 
     public static long str2Uid(String key) {
+        byte[] raw = key.getBytes();
+        return str2Uid(raw, 0, raw.length);
+    }
+
+    // 同 str2Uid，直接对字符串编码后的字节 raw[start, end) 计算
+    public static long str2Uid(byte[] raw, int start, int end) {
         long seed = 13331;
         long res = 0;
-        for(byte b : key.getBytes()) {
-            res = res * seed + (long)b;
+        for(int i = start; i < end; i ++) {
+            res = res * seed + (long)raw[i];
         }
         return res;
     }
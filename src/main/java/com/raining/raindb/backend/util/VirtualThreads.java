@@ -0,0 +1,34 @@
+package com.raining.raindb.backend.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * JDK 21 的虚拟线程。源码仍然要能按 Java 8 编译，所以通过反射调用 Executors.newVirtualThreadPerTaskExecutor。
+ * 虚拟线程在 Transporter.receive 的 socket 读取、LockTable 中 CountDownLatch 的等待上阻塞时会让出载体线程，
+ * 大量空闲的连接只占用很少的内存。游标的 select 也在虚拟线程中执行，见 tbm.Cursor
+ */
+public class VirtualThreads {
+    private static final Method NEW_EXECUTOR = find();
+
+    private static Method find() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    // 每个任务一个虚拟线程的 ExecutorService，JDK 21 以下（或者 19、20 没有开启预览特性）时返回 null
+    public static ExecutorService newExecutor() {
+        if (NEW_EXECUTOR == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
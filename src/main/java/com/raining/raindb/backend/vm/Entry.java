@@ -3,6 +3,7 @@ package com.raining.raindb.backend.vm;
 import com.google.common.primitives.Bytes;
 import com.raining.raindb.backend.common.SubArray;
 import com.raining.raindb.backend.dm.dataItem.DataItem;
+import com.raining.raindb.backend.tm.TransactionManagerImpl;
 import com.raining.raindb.backend.util.Parser;
 
 import java.util.Arrays;
@@ -10,14 +11,17 @@ import java.util.Arrays;
 /**
  * VM向上层抽象出entry
  * entry结构：
- * [XMIN] [XMAX] [data]
- *  long    long
+ * [XMIN] [XMAX] [NEXT] [data]
+ *  long    long   long
+ * NEXT 为 update 产生的下一个版本的 uid，没有被 update 过则为 0。
+ * 同一行的多个版本通过 NEXT 串成一条版本链，链头的 uid 就是这一行对外的 uid。
  */
 public class Entry {
 
     private static final int OF_XMIN = 0;
     private static final int OF_XMAX = OF_XMIN + 8;
-    private static final int OF_DATA = OF_XMAX + 8;
+    private static final int OF_NEXT = OF_XMAX + 8;
+    private static final int OF_DATA = OF_NEXT + 8;
 
     private long uid;
     private DataItem dataItem;
@@ -42,7 +46,8 @@ public class Entry {
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
         byte[] xmin = Parser.long2Byte(xid);
         byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        byte[] next = new byte[8];
+        return Bytes.concat(xmin, xmax, next, data);
     }
 
     //release，引用数-1，减为0再release
@@ -82,7 +87,17 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_NEXT));
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    public long getNext() {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_NEXT, sa.start+OF_DATA));
         } finally {
             dataItem.rUnLock();
         }
@@ -91,13 +106,67 @@ public class Entry {
     public void setXmax(long xid) {
         dataItem.before();
         try {
-            SubArray sa = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start+OF_XMAX, 8);
+            writeLong(OF_XMAX, xid);
         } finally {
             dataItem.after(xid);
         }
     }
 
+    // update：xid 结束这个版本，并把新版本 next 挂到链上，两者在同一条日志里完成
+    public void setNextVersion(long xid, long next) {
+        dataItem.before();
+        try {
+            writeLong(OF_XMAX, xid);
+            writeLong(OF_NEXT, next);
+        } finally {
+            dataItem.after(xid);
+        }
+    }
+
+    // vacuum 摘除死亡版本时使用：只有 NEXT 仍为 expect 时才修改，返回是否修改成功
+    public boolean casNext(long expect, long next) {
+        dataItem.before();
+        if(getNext(dataItem.data()) != expect) {
+            dataItem.unBefore();
+            return false;
+        }
+        writeLong(OF_NEXT, next);
+        dataItem.after(TransactionManagerImpl.SUPER_XID);
+        return true;
+    }
+
+    //需要在 before() 和 after() 之间调用。顺序扫描会在页锁下拷贝整页，所以写页面时也持有页锁
+    private void writeLong(int of, long v) {
+        SubArray sa = dataItem.data();
+        dataItem.page().lock();
+        try {
+            System.arraycopy(Parser.long2Byte(v), 0, sa.raw, sa.start+of, 8);
+        } finally {
+            dataItem.page().unlock();
+        }
+    }
+
+    /*
+     * 下面几个方法直接解析 entry 的原始字节（DataItem 的数据部分），
+     * 用于顺序扫描时在页面拷贝上判断可见性，不需要加载 Entry
+     */
+
+    public static long getXmin(SubArray raw) {
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+OF_XMIN, raw.start+OF_XMAX));
+    }
+
+    public static long getXmax(SubArray raw) {
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+OF_XMAX, raw.start+OF_NEXT));
+    }
+
+    public static long getNext(SubArray raw) {
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+OF_NEXT, raw.start+OF_DATA));
+    }
+
+    public static SubArray data(SubArray raw) {
+        return new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
+    }
+
     public long getUid() {
         return uid;
     }
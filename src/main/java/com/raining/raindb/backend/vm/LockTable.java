@@ -3,6 +3,7 @@ package com.raining.raindb.backend.vm;
 import com.raining.raindb.common.Error;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,7 +15,7 @@ public class LockTable {
     private Map<Long, List<Long>> x2u;  // 某个XID已经获得的资源的UID列表
     private Map<Long, Long> u2x;        // UID被某个XID持有
     private Map<Long, List<Long>> wait; // 正在等待UID的XID列表
-    private Map<Long, Lock> waitLock;   // 正在等待资源的XID的锁
+    private Map<Long, CountDownLatch> waitLock;   // 正在等待资源的XID的锁，拿到资源时由释放资源的线程 countDown
     private Map<Long, Long> waitU;      // XID正在等待的UID
     private Lock lock;
 
@@ -31,8 +32,8 @@ public class LockTable {
      * 在每次出现等待的情况时，就尝试向图中增加一条边，并进行死锁检测。
      * 如果检测到死锁，就撤销这条边，不允许添加，并撤销该事务。
      */
-    // 不需要等待则返回null，否则返回锁对象或者会造成死锁则抛出异常
-    public Lock add(long xid, long uid) throws Exception {
+    // 不需要等待则返回null，否则返回需要 await 的锁对象，会造成死锁则抛出异常
+    public CountDownLatch add(long xid, long uid) throws Exception {
         lock.lock(); // 锁定全局锁
         try {
             // 检查x2u是否已经拥有这个资源
@@ -54,9 +55,9 @@ public class LockTable {
                 removeFromList(wait, uid, xid);
                 throw Error.DeadlockException; // 抛出死锁异常
             }
-            // 如果不存在死锁，为当前事务创建一个新的锁，并锁定它
-            Lock l = new ReentrantLock();
-            l.lock();
+            // 如果不存在死锁，为当前事务创建一个新的锁。
+            // 不能用 ReentrantLock：加锁的是等待的线程自己，它再次 lock 不会阻塞，而且别的线程也不能替它 unlock
+            CountDownLatch l = new CountDownLatch(1);
             waitLock.put(xid, l); // 将新的锁添加到等待锁列表中
             return l; // 返回新的锁
         } finally {
@@ -96,9 +97,11 @@ public class LockTable {
                 continue;
             } else {
                 u2x.put(uid, xid);
-                Lock lo = waitLock.remove(xid);
+                //事务结束时通过 x2u 释放它拿到的资源
+                putIntoList(x2u, xid, uid);
+                CountDownLatch lo = waitLock.remove(xid);
                 waitU.remove(xid);
-                lo.unlock();
+                lo.countDown();
                 break;
             }
         }
@@ -1,5 +1,6 @@
 package com.raining.raindb.backend.vm;
 
+import com.raining.raindb.backend.common.RawVisitor;
 import com.raining.raindb.backend.dm.DataManager;
 import com.raining.raindb.backend.tm.TransactionManager;
 
@@ -10,10 +11,38 @@ public interface VersionManager {
 
     byte[] read(long xid, long uid) throws Exception;
 
+    // 锁住 uid 这一行对 xid 可见的版本后读取它，锁一直持有到事务结束；该行对 xid 不可见时返回 null
+    byte[] readForUpdate(long xid, long uid) throws Exception;
+
     long insert(long xid, byte[] data) throws Exception;
 
+    // 插入到 segment 段中，表的每一行都以表的 uid 为段，这样才能被 scan 扫描到
+    long insert(long xid, long segment, byte[] data) throws Exception;
+
+    // 批量插入到 segment 段中，见 DataManager.insert(xid, segment, data)
+    long[] insert(long xid, long segment, byte[][] data) throws Exception;
+
     boolean delete(long xid, long uid) throws Exception;
 
+    // 为 uid 这一行生成一个新版本并挂到版本链上，返回新版本的 uid；该行对 xid 不可见时返回 0
+    long update(long xid, long uid, byte[] data) throws Exception;
+
+    // 顺序扫描 segment 段，对每个对 xid 可见的版本调用 visitor，data 为这个版本的内容
+    void scan(long xid, long segment, RawVisitor visitor) throws Exception;
+
+    // 同上，只扫描 pages[from, to) 这些页（见 DataManager.segmentPages），用于并行扫描
+    void scan(long xid, int[] pages, int from, int to, RawVisitor visitor) throws Exception;
+
+    // 当前最老的快照，XMAX 已提交且小于它的版本对所有事务都不可见
+    long snapshotHorizon();
+
+    // 回收 uid 这一行版本链上已经死亡的版本，整行都已死亡（或已被回收）时返回 true
+    boolean vacuum(long uid, long horizon) throws Exception;
+
+    // 顺序扫描 segment 段，回收其中的死亡版本，返回整行都被回收的行数。
+    // 回收一整行之前调用 freed（uid 是链头，data 是链头版本的内容），由上层删除它的索引项
+    int vacuum(long segment, long horizon, RawVisitor freed) throws Exception;
+
     long begin(int level);
 
     void commit(long xid) throws Exception;
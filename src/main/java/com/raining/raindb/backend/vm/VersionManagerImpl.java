@@ -1,14 +1,17 @@
 package com.raining.raindb.backend.vm;
 
 import com.raining.raindb.backend.common.AbstractCache;
+import com.raining.raindb.backend.common.RawVisitor;
+import com.raining.raindb.backend.common.SubArray;
 import com.raining.raindb.backend.dm.DataManager;
+import com.raining.raindb.backend.dm.DataManagerImpl;
 import com.raining.raindb.backend.tm.TransactionManager;
 import com.raining.raindb.backend.tm.TransactionManagerImpl;
 import com.raining.raindb.backend.util.Panic;
 import com.raining.raindb.common.Error;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -40,22 +43,12 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             throw t.err;
         }
 
-        Entry entry = null;
-        try {
-            entry = super.get(uid);
-        } catch(Exception e) {
-            if(e == Error.NullEntryException) {
-                return null;
-            } else {
-                throw e;
-            }
+        Entry entry = locateVisible(t, uid);
+        if(entry == null) {
+            return null;
         }
         try {
-            if(Visibility.isVisible(tm, t, entry)) {
-                return entry.data();
-            } else {
-                return null;
-            }
+            return entry.data();
         } finally {
             entry.release();
         }
@@ -64,6 +57,11 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, DataManagerImpl.SEGMENT_SHARED, data);
+    }
+
+    @Override
+    public long insert(long xid, long segment, byte[] data) throws Exception {
         lock.lock();
         Transaction t = activeTransaction.get(xid);
         lock.unlock();
@@ -73,7 +71,79 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
 
         byte[] raw = Entry.wrapEntryRaw(xid, data);
-        return dm.insert(xid, raw);
+        return dm.insert(xid, segment, raw);
+    }
+
+    @Override
+    public long[] insert(long xid, long segment, byte[][] data) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        byte[][] raws = new byte[data.length][];
+        for (int i = 0; i < data.length; i++) {
+            raws[i] = Entry.wrapEntryRaw(xid, data[i]);
+        }
+        return dm.insert(xid, segment, raws);
+    }
+
+    /**
+     * 顺序扫描：版本链上的每个版本都是一个独立的 entry，并且和链头在同一个段中，
+     * 对同一个事务，一条链上至多只有一个版本可见，所以直接按页面拷贝里的 XMIN、XMAX 判断即可，
+     * 传给 visitor 的 uid 是可见版本自己的 uid，delete 和 update 都可以直接使用它
+     */
+    @Override
+    public void scan(long xid, long segment, RawVisitor visitor) throws Exception {
+        int[] pages = dm.segmentPages(segment);
+        scan(xid, pages, 0, pages.length, visitor);
+    }
+
+    @Override
+    public void scan(long xid, int[] pages, int from, int to, RawVisitor visitor) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        dm.scan(pages, from, to, (uid, raw) -> {
+            if(!Visibility.isVisible(tm, t, Entry.getXmin(raw), Entry.getXmax(raw))) {
+                return true;
+            }
+            return visitor.visit(uid, Entry.data(raw));
+        });
+    }
+
+    /**
+     * 修改一行时，新的内容要根据加锁之后的版本生成：读已提交的事务等锁期间，
+     * 别的事务可能已经修改并提交了这一行，加锁之前读到的版本已经过时了
+     */
+    @Override
+    public byte[] readForUpdate(long xid, long uid) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        Entry entry = lockVisible(t, uid);
+        if(entry == null) {
+            return null;
+        }
+        try {
+            if(Visibility.isVersionSkip(tm, t, entry)) {
+                throw autoAbort(t);
+            }
+            return entry.data();
+        } finally {
+            entry.release();
+        }
     }
 
     @Override
@@ -85,51 +155,270 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if(t.err != null) {
             throw t.err;
         }
-        Entry entry = null;
+        Entry entry = lockVisible(t, uid);
+        if(entry == null) {
+            return false;
+        }
         try {
-            entry = super.get(uid);
-        } catch(Exception e) {
-            if(e == Error.NullEntryException) {
+            if(entry.getXmax() == xid) {
                 return false;
-            } else {
-                throw e;
             }
+
+            if(Visibility.isVersionSkip(tm, t, entry)) {
+                throw autoAbort(t);
+            }
+
+            entry.setXmax(xid);//删除操作
+            return true;
+
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * update 不再是 delete + insert：
+     * 新版本以 xid 为 XMIN 插入，旧版本的 XMAX 置为 xid，NEXT 指向新版本，
+     * 这样这一行对外的 uid（链头）保持不变，上层的索引不需要跟着修改。
+     */
+    @Override
+    public long update(long xid, long uid, byte[] data) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        Entry entry = lockVisible(t, uid);
+        if(entry == null) {
+            return 0;
         }
         try {
-            if(!Visibility.isVisible(tm, t, entry)) {
-                return false;
+            if(Visibility.isVersionSkip(tm, t, entry)) {
+                throw autoAbort(t);
             }
-            Lock l = null;
+
+            //新版本和旧版本放在同一个段中，这样顺序扫描能看到它
+            long newUid = dm.insert(xid, dm.segmentOf(entry.getUid()), Entry.wrapEntryRaw(xid, data));
+            entry.setNextVersion(xid, newUid);
+            return newUid;
+
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 沿着 uid 开始的版本链，找到对事务t可见的那个版本，找不到返回null
+     * 只有被 update 过（XMAX 不为 0）的版本才有 NEXT，所以链一般很短
+     */
+    private Entry locateVisible(Transaction t, long uid) throws Exception {
+        long head = uid;
+        while(uid != 0) {
+            Entry entry = null;
             try {
-                l = lt.add(xid, uid);
+                entry = super.get(uid);
             } catch(Exception e) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
+                if(e != Error.NullEntryException) {
+                    throw e;
+                }
+                if(uid == head) {
+                    return null;
+                }
+                //链中间的版本刚被vacuum回收，链头的NEXT已经被改过了，从链头重新找
+                uid = head;
+                continue;
             }
-            if(l != null) {
-                l.lock();
-                l.unlock();
+            if(Visibility.isVisible(tm, t, entry)) {
+                return entry;
             }
+            uid = entry.getNext();
+            entry.release();
+        }
+        return null;
+    }
 
-            if(entry.getXmax() == xid) {
-                return false;
+    /**
+     * 修改一行之前，先以当前可见的版本 uid 为资源加锁，拿到锁之后再重新定位可见版本。
+     * 等待期间这一行可能已经被别的事务修改并提交了，这时可见版本变成了链上更新的版本，需要对它重新加锁。
+     * 锁的是版本而不是链头，所以从索引（链头）和从顺序扫描（某个版本）进来的修改会在同一个版本上互斥
+     */
+    private Entry lockVisible(Transaction t, long uid) throws Exception {
+        while(true) {
+            Entry entry = locateVisible(t, uid);
+            if(entry == null) {
+                return null;
             }
+            long target = entry.getUid();
+            entry.release();
 
-            if(Visibility.isVersionSkip(tm, t, entry)) {
-                t.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
+            CountDownLatch l = null;
+            try {
+                l = lt.add(t.xid, target);
+            } catch(Exception e) {
+                throw autoAbort(t);
+            }
+            if(l != null) {
+                l.await();
             }
+            entry = locateVisible(t, uid);
+            if(entry == null || entry.getUid() == target) {
+                return entry;
+            }
+            entry.release();
+        }
+    }
 
-            entry.setXmax(xid);//删除操作
-            return true;
+    private Exception autoAbort(Transaction t) {
+        t.err = Error.ConcurrentUpdateException;
+        internAbort(t.xid, true);
+        t.autoAborted = true;
+        return t.err;
+    }
 
+    /**
+     * 读已提交的事务总是看到最新提交的数据，不影响 horizon；
+     * 可重复读的事务看不到自己开始之后以及快照中的事务所做的删除，
+     * 所以 horizon 取这些事务的 xid 和快照中 xid 的最小值
+     */
+    @Override
+    public long snapshotHorizon() {
+        lock.lock();
+        try {
+            long horizon = Long.MAX_VALUE;
+            for (Transaction t : activeTransaction.values()) {
+                if(t.level == 0) continue;
+                horizon = Math.min(horizon, t.xid);
+                for (Long x : t.snapshot.keySet()) {
+                    horizon = Math.min(horizon, x);
+                }
+            }
+            return horizon;
         } finally {
-            entry.release();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 版本链上的死亡版本分两种：
+     * 1. XMAX 已提交且早于 horizon 的旧版本，它们总是位于链的前部；
+     * 2. 由回滚事务 update 出来的版本，它们只会出现在链尾。
+     * 链头被索引引用，只有整条链都死亡时才一起回收，由上层删除索引项；
+     * 否则链头保留，把中间的死亡版本从链上摘掉后回收。
+     */
+    @Override
+    public boolean vacuum(long uid, long horizon) throws Exception {
+        return vacuumChain(uid, horizon, null);
+    }
+
+    // freed 不为 null 时，整条链回收之前用链头的内容调用 freed
+    private boolean vacuumChain(long uid, long horizon, RawVisitor freed) throws Exception {
+        List<Long> chain = new ArrayList<>();
+        List<Boolean> dead = new ArrayList<>();
+        byte[] head = null;
+        boolean allDead = true;
+        long next = uid;
+        while(next != 0) {
+            Entry entry = null;
+            try {
+                entry = super.get(next);
+            } catch(Exception e) {
+                if(e == Error.NullEntryException) {
+                    break;
+                }
+                throw e;
+            }
+            try {
+                boolean d = Visibility.isDead(tm, horizon, entry);
+                chain.add(next);
+                dead.add(d);
+                allDead &= d;
+                if(freed != null && head == null) {
+                    head = entry.data();
+                }
+                next = entry.getNext();
+            } finally {
+                entry.release();
+            }
+        }
+        if(chain.isEmpty()) {
+            return true;
+        }
+        if(allDead) {
+            if(freed != null) {
+                freed.visit(uid, new SubArray(head, 0, head.length));
+            }
+            for (Long u : chain) {
+                dm.free(u);
+            }
+            return true;
+        }
+
+        int kept = 0;
+        for (int i = 1; i <= chain.size(); i ++) {
+            if(i < chain.size() && dead.get(i)) continue;
+            if(i - kept > 1) {
+                long target = i < chain.size() ? chain.get(i) : 0;
+                Entry entry = super.get(chain.get(kept));
+                try {
+                    //并发的 update 可能刚修改了 NEXT，这时放弃本次回收
+                    if(entry.casNext(chain.get(kept+1), target)) {
+                        for (int j = kept+1; j < i; j ++) {
+                            dm.free(chain.get(j));
+                        }
+                    }
+                } finally {
+                    entry.release();
+                }
+            }
+            kept = i;
         }
+        return false;
+    }
+
+    /**
+     * 顺序扫描回收死亡版本，不经过索引，没有索引的表也能回收。
+     * update 产生的新版本和链头在同一个段中，被某个版本的 NEXT 指向的就不是链头，不能从它开始回收。
+     * 第一遍扫描记下可能需要处理的版本：已经死亡的，或者带有后续版本的；第二遍扫描再去掉被 NEXT 指向的。
+     * update 先插入新版本再挂到链上，第一遍读到上一个版本时新版本可能还没挂上；
+     * 但被记下的版本都已经死亡或者被 update 过，创建它的事务已经结束，第二遍扫描一定能看到它挂在链上
+     */
+    @Override
+    public int vacuum(long segment, long horizon, RawVisitor freed) throws Exception {
+        Set<Long> heads = new HashSet<>();
+        Set<Long> linked = new HashSet<>();
+        int[] pages = dm.segmentPages(segment);
+        dm.scan(pages, 0, pages.length, (uid, raw) -> {
+            long next = Entry.getNext(raw);
+            if(next != 0) {
+                linked.add(next);
+                heads.add(uid);
+            } else if(Visibility.isDead(tm, horizon, Entry.getXmin(raw), Entry.getXmax(raw))) {
+                heads.add(uid);
+            }
+            return true;
+        });
+        if(heads.isEmpty()) {
+            return 0;
+        }
+        //扫描期间段中可能增加了新的页，上一个版本可能在新的页中
+        pages = dm.segmentPages(segment);
+        dm.scan(pages, 0, pages.length, (uid, raw) -> {
+            long next = Entry.getNext(raw);
+            if(next != 0) {
+                linked.add(next);
+            }
+            return true;
+        });
+        heads.removeAll(linked);
+        int count = 0;
+        for (long uid : heads) {
+            if(vacuumChain(uid, horizon, freed)) {
+                count ++;
+            }
+        }
+        return count;
     }
 
     //begin() 开启一个事务，并初始化事务的结构，
@@ -167,11 +456,12 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             System.out.println(activeTransaction.keySet());
             Panic.panic(n);
         }
+        //先提交再释放锁：等锁的事务醒来后必须能看到这次提交
+        tm.commit(xid);
         lock.lock();
         activeTransaction.remove(xid);
         lock.unlock();
         lt.remove(xid);//检查死锁的数据结构
-        tm.commit(xid);
     }
 
     @Override
@@ -188,8 +478,8 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
         // 如果事务已经被自动中止，那么直接返回，不做任何处理
         if(t.autoAborted) return;
-        lt.remove(xid);
         tm.abort(xid);
+        lt.remove(xid);
     }
 
     public void releaseEntry(Entry entry) {
@@ -25,23 +25,40 @@ public class Visibility {
         }
     }
 
+    /**
+     * 判断e是否已经对所有事务都不可见，可以被vacuum回收
+     * horizon 为当前最老的快照，见 VersionManagerImpl.snapshotHorizon()
+     */
+    public static boolean isDead(TransactionManager tm, long horizon, Entry e) {
+        return isDead(tm, horizon, e.getXmin(), e.getXmax());
+    }
+
+    // 顺序扫描时直接用页面拷贝中的 XMIN 和 XMAX 判断
+    public static boolean isDead(TransactionManager tm, long horizon, long xmin, long xmax) {
+        //创建它的事务回滚了，谁都看不到
+        if(tm.isAborted(xmin)) return true;
+        //删除它的事务已经提交，并且早于所有活跃事务的快照
+        return xmax != 0 && xmax < horizon && tm.isCommitted(xmax);
+    }
+
     public static boolean isVisible(TransactionManager tm, Transaction t, Entry e) {
+        return isVisible(tm, t, e.getXmin(), e.getXmax());
+    }
+
+    // 顺序扫描时直接用页面拷贝中的 XMIN 和 XMAX 判断
+    public static boolean isVisible(TransactionManager tm, Transaction t, long xmin, long xmax) {
         if(t.level == 0) {
-            return readCommitted(tm, t, e);
+            return readCommitted(tm, t, xmin, xmax);
         } else {
-            return repeatableRead(tm, t, e);
+            return repeatableRead(tm, t, xmin, xmax);
         }
     }
 
 
     // 用来在读提交的隔离级别下，某个记录是否对事务t可见
-    private static boolean readCommitted(TransactionManager tm, Transaction t, Entry e) {
+    private static boolean readCommitted(TransactionManager tm, Transaction t, long xmin, long xmax) {
         // 获取事务的ID
         long xid = t.xid;
-        // 获取记录的创建版本号
-        long xmin = e.getXmin();
-        // 获取记录的删除版本号
-        long xmax = e.getXmax();
         // 如果记录的创建版本号等于事务的ID并且记录未被删除，则返回true
         if (xmin == xid && xmax == 0) return true;
 
@@ -62,11 +79,9 @@ public class Visibility {
         return false;
     }
 
-    private static boolean repeatableRead(TransactionManager tm, Transaction t, Entry e) {
+    private static boolean repeatableRead(TransactionManager tm, Transaction t, long xmin, long xmax) {
         //每个事务的active snap在事务启动时就初始化了，后续不会变化
         long xid = t.xid;
-        long xmin = e.getXmin();
-        long xmax = e.getXmax();
         //该版本是由当前事务创建，且未被删除
         if(xmin == xid && xmax == 0) return true;
 
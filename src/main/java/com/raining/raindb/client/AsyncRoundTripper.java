@@ -0,0 +1,101 @@
+package com.raining.raindb.client;
+
+import com.raining.raindb.common.Error;
+import com.raining.raindb.transport.Package;
+import com.raining.raindb.transport.Packager;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 流水线方式的 RoundTripper，需要协议版本 3（见 Packager）。
+ * 发送请求时不等待响应，只记下请求号和对应的 future；服务端按请求的顺序响应，
+ * 由一个读线程逐个接收，和最早的未完成请求对应。连接断开时所有未完成的请求以异常结束
+ */
+public class AsyncRoundTripper {
+    private Packager packager;
+    private Queue<Call> inflight = new ConcurrentLinkedQueue<>();
+    private int nextId;
+    private final Object sendLock = new Object();
+    private volatile Exception closed;
+
+    private static class Call {
+        int id;
+        CompletableFuture<Package> future = new CompletableFuture<>();
+    }
+
+    public AsyncRoundTripper(Packager packager) {
+        this.packager = packager;
+        Thread reader = new Thread(this::receive, "raindb-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * 请求号的分配和发送在 sendLock 内，保证发送的顺序就是 inflight 的顺序。
+     * 发送可能因为服务端暂停读取而阻塞，读线程不能等待 sendLock，否则双方都不再读取
+     */
+    public CompletableFuture<Package> roundTrip(Package pkg) {
+        Call c = new Call();
+        synchronized (sendLock) {
+            if (closed != null) {
+                c.future.completeExceptionally(closed);
+                return c.future;
+            }
+            c.id = nextId ++;
+            pkg.setId(c.id);
+            inflight.add(c);
+            try {
+                packager.send(pkg);
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+        if (closed != null) {
+            //加入 inflight 之前连接已经断开
+            fail(closed);
+        }
+        return c.future;
+    }
+
+    private void receive() {
+        while (true) {
+            Package pkg;
+            try {
+                pkg = packager.receive();
+            } catch (Exception e) {
+                fail(e);
+                return;
+            }
+            Call c = inflight.poll();
+            if (c == null || c.id != pkg.getId()) {
+                if (c != null) {
+                    c.future.completeExceptionally(Error.InvalidPkgDataException);
+                }
+                fail(Error.InvalidPkgDataException);
+                return;
+            }
+            c.future.complete(pkg);
+        }
+    }
+
+    private synchronized void fail(Exception e) {
+        if (closed == null) {
+            closed = e;
+        }
+        Call c;
+        while ((c = inflight.poll()) != null) {
+            c.future.completeExceptionally(closed);
+        }
+        try {
+            packager.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    public void close() throws Exception {
+        fail(new IOException("Connection closed"));
+    }
+}
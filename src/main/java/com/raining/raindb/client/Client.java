@@ -1,27 +1,198 @@
 package com.raining.raindb.client;
 
+import com.raining.raindb.common.Error;
+import com.raining.raindb.transport.BatchRequest;
+import com.raining.raindb.transport.Encoder;
+import com.raining.raindb.transport.KvRequest;
 import com.raining.raindb.transport.Package;
 import com.raining.raindb.transport.Packager;
+import com.raining.raindb.transport.ResultSet;
+import com.raining.raindb.transport.Transporter;
 
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 协议版本 3 时使用 AsyncRoundTripper，executeAsync 可以在一个连接上同时发出多条语句，
+ * 按发出的顺序执行；更早的版本只能一条一条执行，executeAsync 等到执行完成才返回
+ */
 public class Client {
     private RoundTripper rt;
+    private AsyncRoundTripper art;
+    private boolean typed;
+    private AtomicInteger cursors = new AtomicInteger();
+
+    // 连接 host:port，使用双方都支持的最高版本的协议
+    public static Client connect(String host, int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            return new Client(new Packager(Transporter.connect(socket), new Encoder()));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
 
     public Client(Packager packager) {
-        this.rt = new RoundTripper(packager);
+        this.typed = packager.getVersion() >= Transporter.BINARY;
+        if (packager.getVersion() >= Transporter.PIPELINE) {
+            this.art = new AsyncRoundTripper(packager);
+        } else {
+            this.rt = new RoundTripper(packager);
+        }
     }
 
+    // 返回文本形式的结果，二进制的结果集也转成和十六进制协议相同的文本
     public byte[] execute(byte[] stat) throws Exception {
-        Package pkg = new Package(stat, null);
-        Package resPkg = rt.roundTrip(pkg);
+        return text(send(stat));
+    }
+
+    // 带类型的 select 结果，只在二进制协议中可用；结果不是结果集时返回 null
+    public ResultSet query(byte[] stat) throws Exception {
+        return resultSet(send(stat));
+    }
+
+    // 逐行读取 select 的结果，每次从服务端取 fetchSize 行，需要二进制协议
+    public ResultCursor cursor(String select, int fetchSize) throws Exception {
+        if(!typed) {
+            throw Error.TypedResultUnsupportedException;
+        }
+        String name = "cursor" + cursors.incrementAndGet();
+        execute(("declare " + name + " cursor for " + select).getBytes());
+        return new ResultCursor(this, name, fetchSize);
+    }
+
+    // 按 key 读取一整行，没有找到时结果集是空的，需要二进制协议
+    public ResultSet get(String table, Object key) throws Exception {
+        return kv(KvRequest.GET, table, new Object[]{key});
+    }
+
+    // 结果集的每一行对应一个 key，没有找到的 key 对应一个没有字段的行
+    public ResultSet multiGet(String table, Object... keys) throws Exception {
+        return kv(KvRequest.MULTI_GET, table, keys);
+    }
+
+    // 按 key 插入或者替换一整行，values 按字段的顺序
+    public byte[] put(String table, Object... values) throws Exception {
+        return execute(kvRequest(KvRequest.PUT, table, values));
+    }
+
+    // 一组语句在同一个事务中执行，只需要一次往返，返回每条语句文本形式的结果
+    public List<byte[]> batch(String... stats) throws Exception {
+        return batchResults(send(new BatchRequest(BatchRequest.BATCH, "", stats).encode()));
+    }
+
+    // 在这个连接的会话中定义一个过程，语句中没有引号的 ? 是参数
+    public byte[] define(String name, String... stats) throws Exception {
+        return execute(new BatchRequest(BatchRequest.DEFINE, name, stats).encode());
+    }
+
+    // 执行定义好的过程，args 按 ? 出现的顺序
+    public List<byte[]> call(String name, Object... args) throws Exception {
+        return batchResults(send(new BatchRequest(BatchRequest.CALL, name, values(args)).encode()));
+    }
+
+    private static List<byte[]> batchResults(Package resPkg) throws Exception {
+        List<byte[]> results = new ArrayList<>();
+        for (Package p : BatchRequest.decodeResults(resPkg.getData())) {
+            results.add(text(p));
+        }
+        return results;
+    }
+
+    private ResultSet kv(byte op, String table, Object[] args) throws Exception {
+        if(!typed) {
+            throw Error.TypedResultUnsupportedException;
+        }
+        return resultSet(send(kvRequest(op, table, args)));
+    }
+
+    private static byte[] kvRequest(byte op, String table, Object[] args) {
+        return new KvRequest(op, table, values(args)).encode();
+    }
+
+    private static String[] values(Object[] args) {
+        String[] values = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            values[i] = String.valueOf(args[i]);
+        }
+        return values;
+    }
+
+    public CompletableFuture<byte[]> executeAsync(byte[] stat) {
+        return sendAsync(stat).thenApply(pkg -> {
+            try {
+                return text(pkg);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    public CompletableFuture<ResultSet> queryAsync(byte[] stat) {
+        return sendAsync(stat).thenApply(pkg -> {
+            try {
+                return resultSet(pkg);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private static byte[] text(Package resPkg) throws Exception {
+        if(resPkg.isTyped()) {
+            return ResultSet.decode(resPkg.getData()).toString().getBytes();
+        }
+        return resPkg.getData();
+    }
+
+    private static ResultSet resultSet(Package resPkg) throws Exception {
+        return resPkg.isTyped() ? ResultSet.decode(resPkg.getData()) : null;
+    }
+
+    private Package send(byte[] stat) throws Exception {
+        if(art != null) {
+            try {
+                return sendAsync(stat).get();
+            } catch (ExecutionException e) {
+                throw (Exception) e.getCause();
+            }
+        }
+        Package resPkg = rt.roundTrip(new Package(stat, null));
         if(resPkg.getErr() != null) {
             throw resPkg.getErr();
         }
-        return resPkg.getData();
+        return resPkg;
+    }
+
+    // 语句出错时 future 以服务端返回的异常结束
+    private CompletableFuture<Package> sendAsync(byte[] stat) {
+        if(art == null) {
+            CompletableFuture<Package> f = new CompletableFuture<>();
+            try {
+                f.complete(send(stat));
+            } catch (Exception e) {
+                f.completeExceptionally(e);
+            }
+            return f;
+        }
+        return art.roundTrip(new Package(stat, null)).thenApply(resPkg -> {
+            if(resPkg.getErr() != null) {
+                throw new CompletionException(resPkg.getErr());
+            }
+            return resPkg;
+        });
     }
 
     public void close() {
         try {
-            rt.close();
+            if(art != null) art.close(); else rt.close();
         } catch (Exception e) {
         }
     }
@@ -0,0 +1,263 @@
+package com.raining.raindb.client;
+
+import com.raining.raindb.common.Error;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 客户端连接池，多个线程共享到同一个服务端的连接。
+ * 空闲的连接放在 idle 中，最后归还的最先借出，这样借出的连接总是最近用过的，多余的连接会一直空闲，直到被回收。
+ * permits 限制同时借出的连接数，没有空闲连接时才新建；新建连接前都要通过 reserve 占一个名额，所以连接数不超过 maxSize。
+ * 借出时最多等待 borrowTimeout 毫秒。
+ * 空闲超过 VALIDATE_AFTER 的连接借出前先执行 VALIDATION 检查，失败的连接关闭后换下一个。
+ * 后台线程定期关闭空闲超过 idleTimeout 的连接，并保持至少 minSize 个连接。
+ * 连接对应服务端的一个会话，归还时不能有没有结束的事务、打开的游标，断开或者状态不确定的连接用 invalidate 丢弃
+ */
+public class ConnectionPool implements AutoCloseable {
+    // 空闲超过这个时间（毫秒）的连接借出前需要检查
+    static final long VALIDATE_AFTER = 1000;
+    static final String VALIDATION = "show";
+
+    private String host;
+    private int port;
+    private int minSize, maxSize;
+    private long idleTimeout, borrowTimeout;
+    private Semaphore permits;
+    private ScheduledExecutorService evictor;
+    // 以下由 this 保护
+    private Deque<Idle> idle = new ArrayDeque<>();
+    // 空闲的和借出的连接数
+    private int size;
+    private boolean closed;
+
+    private static class Idle {
+        Client client;
+        long since;
+
+        Idle(Client client) {
+            this.client = client;
+            this.since = System.currentTimeMillis();
+        }
+    }
+
+    public ConnectionPool(String host, int port, int minSize, int maxSize, long idleTimeout, long borrowTimeout) throws Exception {
+        if (minSize < 0 || maxSize <= 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("minSize: " + minSize + ", maxSize: " + maxSize);
+        }
+        this.host = host;
+        this.port = port;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.borrowTimeout = borrowTimeout;
+        this.permits = new Semaphore(maxSize, true);
+        fill();
+        long period = Math.max(idleTimeout / 2, 10);
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "raindb-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Client borrow() throws Exception {
+        if (isClosed()) {
+            throw Error.PoolClosedException;
+        }
+        long deadline = System.currentTimeMillis() + borrowTimeout;
+        if (!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+            throw Error.PoolTimeoutException;
+        }
+        try {
+            while (true) {
+                Idle i;
+                synchronized (this) {
+                    while (true) {
+                        if (closed) {
+                            throw Error.PoolClosedException;
+                        }
+                        i = idle.pollFirst();
+                        if (i != null || reserve()) {
+                            break;
+                        }
+                        //fill 正在新建的连接占了最后的名额，等它放进 idle
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            throw Error.PoolTimeoutException;
+                        }
+                        wait(wait);
+                    }
+                }
+                if (i == null) {
+                    return connect();
+                }
+                if (System.currentTimeMillis() - i.since < VALIDATE_AFTER || validate(i.client)) {
+                    return i.client;
+                }
+                discard(i.client);
+            }
+        } catch (Exception e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void release(Client client) {
+        boolean close;
+        synchronized (this) {
+            close = closed;
+            if (!close) {
+                idle.addFirst(new Idle(client));
+            } else {
+                size --;
+            }
+            notifyAll();
+        }
+        if (close) {
+            client.close();
+        }
+        permits.release();
+    }
+
+    // 丢弃借出的连接，之后需要时会新建
+    public void invalidate(Client client) {
+        discard(client);
+        permits.release();
+    }
+
+    // 借出一个连接执行一条语句，出错的语句不影响连接，连接本身出错时丢弃
+    public byte[] execute(byte[] stat) throws Exception {
+        Client c = borrow();
+        try {
+            byte[] res = c.execute(stat);
+            release(c);
+            return res;
+        } catch (Exception e) {
+            if (validate(c)) release(c); else invalidate(c);
+            throw e;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int idleSize() {
+        return idle.size();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        List<Idle> all;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            all = new ArrayList<>(idle);
+            size -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        evictor.shutdown();
+        for (Idle i : all) {
+            i.client.close();
+        }
+    }
+
+    private Client connect() throws Exception {
+        try {
+            return Client.connect(host, port);
+        } catch (Exception e) {
+            synchronized (this) {
+                size --;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private boolean validate(Client client) {
+        try {
+            client.execute(VALIDATION.getBytes());
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void discard(Client client) {
+        synchronized (this) {
+            size --;
+            notifyAll();
+        }
+        client.close();
+    }
+
+    // 关闭空闲太久的连接，最早归还的在队尾
+    private void evict() {
+        List<Idle> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            while (size > minSize && !idle.isEmpty() && now - idle.peekLast().since >= idleTimeout) {
+                expired.add(idle.pollLast());
+                size --;
+            }
+            notifyAll();
+        }
+        for (Idle i : expired) {
+            i.client.close();
+        }
+        try {
+            fill();
+        } catch (Exception e) {
+            //服务端暂时不可用，下次再试
+        }
+    }
+
+    // 连接数不足 minSize 时新建空闲的连接
+    private void fill() throws Exception {
+        while (true) {
+            synchronized (this) {
+                if (closed || size >= minSize || !reserve()) {
+                    return;
+                }
+            }
+            Client c = connect();
+            boolean close;
+            synchronized (this) {
+                close = closed;
+                if (!close) {
+                    idle.addFirst(new Idle(c));
+                } else {
+                    size --;
+                }
+                notifyAll();
+            }
+            if (close) {
+                c.close();
+            }
+        }
+    }
+
+    // 为新建的连接占一个名额，调用时持有 this
+    private boolean reserve() {
+        if (size >= maxSize) {
+            return false;
+        }
+        size ++;
+        return true;
+    }
+}
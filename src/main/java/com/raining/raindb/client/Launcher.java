@@ -1,21 +1,11 @@
 package com.raining.raindb.client;
 
-import com.raining.raindb.transport.Encoder;
-import com.raining.raindb.transport.Packager;
-import com.raining.raindb.transport.Transporter;
-
 import java.io.IOException;
-import java.net.Socket;
 import java.net.UnknownHostException;
 
 public class Launcher {
     public static void main(String[] args) throws UnknownHostException, IOException {
-        Socket socket = new Socket("127.0.0.1", 9988);
-        Encoder e = new Encoder();
-        Transporter t = new Transporter(socket);
-        Packager packager = new Packager(t, e);
-
-        Client client = new Client(packager);
+        Client client = Client.connect("127.0.0.1", 9988);
         Shell shell = new Shell(client);
         shell.run();
     }
@@ -0,0 +1,76 @@
+package com.raining.raindb.client;
+
+import com.raining.raindb.transport.ResultSet;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 客户端的游标：服务端 declare 一个游标，每次 fetch fetchSize 行，逐行返回。
+ * 处理当前这一批时已经发出下一批的 fetch，内存中最多有两批结果。
+ * 某一批少于 fetchSize 行时已经取完，自动关闭服务端的游标
+ */
+public class ResultCursor implements Iterator<Object[]>, AutoCloseable {
+    private Client client;
+    private String name;
+    private int fetchSize;
+    private ResultSet batch;
+    private int pos;
+    private CompletableFuture<ResultSet> next;
+    private boolean closed;
+
+    ResultCursor(Client client, String name, int fetchSize) {
+        this.client = client;
+        this.name = name;
+        this.fetchSize = fetchSize;
+        this.next = fetch();
+    }
+
+    private CompletableFuture<ResultSet> fetch() {
+        return client.queryAsync(("fetch " + fetchSize + " from " + name).getBytes());
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (batch == null || pos == batch.size()) {
+            if (next == null) {
+                return false;
+            }
+            try {
+                batch = next.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            pos = 0;
+            if (batch.size() < fetchSize) {
+                next = null;
+                close();
+            } else {
+                next = fetch();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Object[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return batch.row(pos ++);
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        next = null;
+        client.executeAsync(("close " + name).getBytes());
+    }
+}
@@ -29,6 +29,9 @@ public class Error {
     public static final Exception InvalidValuesException = new RuntimeException("Invalid values!");
     public static final Exception DuplicatedTableException = new RuntimeException("Duplicated table!");
     public static final Exception TableNotFoundException = new RuntimeException("Table not found!");
+    public static final Exception InvalidAggregateException = new RuntimeException("Invalid aggregate!");
+    public static final Exception InvalidJoinException = new RuntimeException("Invalid join!");
+    public static final Exception ImportPathException = new RuntimeException("File is outside the import directory!");
 
     // parser
     public static final Exception InvalidCommandException = new RuntimeException("Invalid command!");
@@ -40,7 +43,23 @@ public class Error {
     // server
     public static final Exception NestedTransactionException = new RuntimeException("Nested transaction not supported!");
     public static final Exception NoTransactionException = new RuntimeException("Not in transaction!");
+    public static final Exception PreparedNotFoundException = new RuntimeException("Prepared statement not found!");
+    public static final Exception CursorNotFoundException = new RuntimeException("Cursor not found!");
+    public static final Exception DuplicatedCursorException = new RuntimeException("Duplicated cursor!");
+    public static final Exception TooManyCursorsException = new RuntimeException("Too many open cursors!");
+    public static final Exception InvalidBatchException = new RuntimeException("Statement not allowed in batch!");
+    public static final Exception ProcedureNotFoundException = new RuntimeException("Procedure not found!");
+
+    // client
+    public static final Exception TypedResultUnsupportedException = new RuntimeException("Typed results need the binary protocol!");
+    public static final Exception PoolTimeoutException = new RuntimeException("Connection pool timeout!");
+    public static final Exception PoolClosedException = new RuntimeException("Connection pool closed!");
+
+    // embedded
+    public static final Exception DatabaseClosedException = new RuntimeException("Database is closed!");
+    public static final Exception EmbeddedUnsupportedException = new RuntimeException("Statement not supported in embedded mode!");
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
+    public static final Exception VirtualThreadUnsupportedException = new RuntimeException("Virtual threads need JDK 21!");
 }
\ No newline at end of file
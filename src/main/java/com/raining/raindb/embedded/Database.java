@@ -0,0 +1,61 @@
+package com.raining.raindb.embedded;
+
+import com.raining.raindb.backend.Launcher;
+import com.raining.raindb.backend.dm.DataManager;
+import com.raining.raindb.backend.tbm.TableManager;
+import com.raining.raindb.backend.tm.TransactionManager;
+import com.raining.raindb.backend.vm.VersionManager;
+import com.raining.raindb.common.Error;
+
+/**
+ * 嵌入式数据库：在当前进程中打开数据库，和 Launcher 一样创建 TM、DM、VM、TBM，但不启动服务端。
+ * 语句由 Session 直接交给 TableManager 执行，select 的结果就是 Java 对象，没有编码和网络传输。
+ * Session 和服务端的会话一样只能由一个线程使用，多个线程各自打开自己的 Session；
+ * close 之前应当先关闭所有的 Session，没有结束的事务在 Session 关闭时回滚
+ */
+public class Database implements AutoCloseable {
+    private TableManager tbm;
+    private volatile boolean closed;
+
+    private Database(TableManager tbm) {
+        this.tbm = tbm;
+    }
+
+    public static Database create(String path) {
+        return create(path, Launcher.DEFALUT_MEM);
+    }
+
+    public static Database create(String path, long mem) {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        return new Database(TableManager.create(path, vm, dm));
+    }
+
+    public static Database open(String path) {
+        return open(path, Launcher.DEFALUT_MEM);
+    }
+
+    public static Database open(String path, long mem) {
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        return new Database(TableManager.open(path, vm, dm));
+    }
+
+    public Session session() throws Exception {
+        if (closed) {
+            throw Error.DatabaseClosedException;
+        }
+        return new Session(tbm);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        tbm.close();
+    }
+}
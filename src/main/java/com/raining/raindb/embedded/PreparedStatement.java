@@ -0,0 +1,46 @@
+package com.raining.raindb.embedded;
+
+import com.raining.raindb.backend.parser.statement.Select;
+import com.raining.raindb.backend.server.Prepared;
+import com.raining.raindb.common.Error;
+import com.raining.raindb.transport.ResultSet;
+
+/**
+ * 嵌入式的预编译语句，属于创建它的 Session，在 Session 的事务中执行。
+ * 参数按 ? 出现的顺序绑定，每个参数用 String.valueOf 转成值，直接放进解析好的语句，
+ * 所以字符串中的空格、引号不需要转义
+ */
+public class PreparedStatement {
+    private Session session;
+    private Prepared prepared;
+
+    PreparedStatement(Session session, Prepared prepared) {
+        this.session = session;
+        this.prepared = prepared;
+    }
+
+    public int params() {
+        return prepared.params();
+    }
+
+    public String execute(Object... args) throws Exception {
+        Object stat = prepared.bind(values(args));
+        return new String(session.execute(stat, prepared.table(session.tbm())));
+    }
+
+    public ResultSet query(Object... args) throws Exception {
+        Object stat = prepared.bind(values(args));
+        if (!(stat instanceof Select)) {
+            throw Error.InvalidCommandException;
+        }
+        return session.query((Select) stat, prepared.table(session.tbm()));
+    }
+
+    private static String[] values(Object[] args) {
+        String[] values = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            values[i] = String.valueOf(args[i]);
+        }
+        return values;
+    }
+}
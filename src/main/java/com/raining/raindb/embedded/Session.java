@@ -0,0 +1,162 @@
+package com.raining.raindb.embedded;
+
+import com.raining.raindb.backend.parser.Parser;
+import com.raining.raindb.backend.parser.statement.*;
+import com.raining.raindb.backend.server.Prepared;
+import com.raining.raindb.backend.tbm.BeginRes;
+import com.raining.raindb.backend.tbm.Table;
+import com.raining.raindb.backend.tbm.TableManager;
+import com.raining.raindb.common.Error;
+import com.raining.raindb.transport.ResultSet;
+
+/**
+ * 嵌入式的会话，对应服务端的 Executor，但没有游标、服务端的预编译语句这些协议层的命令。
+ * execute 返回和服务端相同的文本结果；query 只用于 select，结果的每一行直接由记录解码成 Integer、Long、String，
+ * 不经过文本或者结果集的编码。不在事务中时每条语句在自己的事务中执行，成功时提交，出错时回滚
+ */
+public class Session implements AutoCloseable {
+    private TableManager tbm;
+    private long xid;
+
+    Session(TableManager tbm) {
+        this.tbm = tbm;
+    }
+
+    public void begin() throws Exception {
+        begin(false);
+    }
+
+    public void begin(boolean repeatableRead) throws Exception {
+        Begin begin = new Begin();
+        begin.isRepeatableRead = repeatableRead;
+        begin(begin);
+    }
+
+    public void commit() throws Exception {
+        if (xid == 0) {
+            throw Error.NoTransactionException;
+        }
+        try {
+            tbm.commit(xid);
+        } finally {
+            xid = 0;
+        }
+    }
+
+    public void abort() throws Exception {
+        if (xid == 0) {
+            throw Error.NoTransactionException;
+        }
+        tbm.abort(xid);
+        xid = 0;
+    }
+
+    public boolean inTransaction() {
+        return xid != 0;
+    }
+
+    public String execute(String sql) throws Exception {
+        Object stat = Parser.Parse(sql.getBytes());
+        if (stat instanceof Begin) {
+            return new String(begin((Begin) stat));
+        } else if (stat instanceof Commit) {
+            commit();
+            return "commit";
+        } else if (stat instanceof Abort) {
+            abort();
+            return "abort";
+        } else if (stat instanceof Vacuum) {
+            return new String(tbm.vacuum((Vacuum) stat));
+        } else if (stat instanceof Analyze) {
+            return new String(tbm.analyze((Analyze) stat));
+        }
+        return new String(execute(stat, null));
+    }
+
+    public ResultSet query(String sql) throws Exception {
+        Object stat = Parser.Parse(sql.getBytes());
+        if (!(stat instanceof Select)) {
+            throw Error.InvalidCommandException;
+        }
+        return query((Select) stat, null);
+    }
+
+    // 语句中没有引号的 ? 是参数，见 PreparedStatement
+    public PreparedStatement prepare(String sql) throws Exception {
+        Object stat = Parser.Parse(sql.getBytes());
+        if (!(stat instanceof Select || stat instanceof Insert || stat instanceof Update || stat instanceof Delete)) {
+            throw Error.InvalidCommandException;
+        }
+        return new PreparedStatement(this, new Prepared(tbm, stat));
+    }
+
+    // 回滚没有结束的事务
+    @Override
+    public void close() {
+        if (xid != 0) {
+            tbm.abort(xid);
+            xid = 0;
+        }
+    }
+
+    TableManager tbm() {
+        return tbm;
+    }
+
+    private byte[] begin(Begin begin) throws Exception {
+        if (xid != 0) {
+            throw Error.NestedTransactionException;
+        }
+        BeginRes r = tbm.begin(begin);
+        xid = r.xid;
+        return r.result;
+    }
+
+    // table 不为 null 时是已经找到的表
+    byte[] execute(Object stat, Table table) throws Exception {
+        return run(xid -> {
+            if (stat instanceof Show) {
+                return tbm.show(xid);
+            } else if (stat instanceof Create) {
+                return tbm.create(xid, (Create) stat);
+            } else if (stat instanceof Select) {
+                return table == null ? tbm.read(xid, (Select) stat) : tbm.read(xid, table, (Select) stat);
+            } else if (stat instanceof Insert) {
+                return table == null ? tbm.insert(xid, (Insert) stat) : tbm.insert(xid, table, (Insert) stat);
+            } else if (stat instanceof Delete) {
+                return table == null ? tbm.delete(xid, (Delete) stat) : tbm.delete(xid, table, (Delete) stat);
+            } else if (stat instanceof Update) {
+                return table == null ? tbm.update(xid, (Update) stat) : tbm.update(xid, table, (Update) stat);
+            } else if (stat instanceof Copy) {
+                return tbm.copy(xid, (Copy) stat);
+            }
+            throw Error.EmbeddedUnsupportedException;
+        });
+    }
+
+    ResultSet query(Select select, Table table) throws Exception {
+        Table t = table == null ? tbm.table(select.tableName) : table;
+        return new ResultSet(run(xid -> tbm.rows(xid, t, select)));
+    }
+
+    private interface Work<T> {
+        T run(long xid) throws Exception;
+    }
+
+    // 在当前事务中执行，不在事务中时使用临时的事务
+    private <T> T run(Work<T> work) throws Exception {
+        if (xid != 0) {
+            return work.run(xid);
+        }
+        long tmp = tbm.begin(new Begin()).xid;
+        T res;
+        try {
+            res = work.run(tmp);
+        } catch (Exception e) {
+            tbm.abort(tmp);
+            throw e;
+        }
+        tbm.commit(tmp);
+        return res;
+    }
+}
@@ -0,0 +1,76 @@
+package com.raining.raindb.transport;
+
+import com.raining.raindb.common.Error;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量执行：一条请求中的多条语句在同一个事务中执行，只有一个响应。
+ * BATCH 直接带着语句；DEFINE 在会话中定义一个过程（一组带占位符的语句），之后 CALL 只需要过程名和参数，
+ * 参数按占位符出现的顺序依次分给每条语句。请求的编码和 KvRequest 相同，name 放在表名的位置。
+ * 响应是 [语句数 int]，之后每条语句的结果是 [类型 byte][长度 int][数据]，类型见 Encoder
+ */
+public class BatchRequest {
+    public static final byte BATCH = 4;
+    public static final byte DEFINE = 5;
+    public static final byte CALL = 6;
+
+    public byte op;
+    public String name;
+    // BATCH 和 DEFINE 是语句，CALL 是参数
+    public String[] args;
+
+    public BatchRequest(byte op, String name, String[] args) {
+        this.op = op;
+        this.name = name;
+        this.args = args;
+    }
+
+    public static boolean isBatch(byte[] data) {
+        return data.length > 0 && data[0] >= BATCH && data[0] <= CALL;
+    }
+
+    public byte[] encode() {
+        return new KvRequest(op, name, args).encode();
+    }
+
+    public static BatchRequest decode(byte[] data) throws Exception {
+        KvRequest r = KvRequest.decode(data);
+        return new BatchRequest(r.op, r.table, r.args);
+    }
+
+    // 每条语句的结果，typed 的是二进制的结果集
+    public static byte[] encodeResults(List<byte[]> results, List<Boolean> typed) {
+        int size = 4;
+        for (byte[] r : results) {
+            size += 5 + r.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            byte[] r = results.get(i);
+            buf.put((byte) (typed.get(i) ? 2 : 0)).putInt(r.length).put(r);
+        }
+        return buf.array();
+    }
+
+    public static List<Package> decodeResults(byte[] data) throws Exception {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        try {
+            int n = buf.getInt();
+            List<Package> results = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                boolean typed = buf.get() == 2;
+                byte[] r = new byte[buf.getInt()];
+                buf.get(r);
+                results.add(new Package(r, null, typed));
+            }
+            return results;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw Error.InvalidPkgDataException;
+        }
+    }
+}
@@ -5,6 +5,9 @@ import com.raining.raindb.common.Error;
 
 import java.util.Arrays;
 
+/**
+ * Package 的编码：第一个字节 0 表示数据，1 表示错误信息，2 表示二进制的结果集（只在二进制协议中出现）
+ */
 public class Encoder {
 
     public byte[] encode(Package pkg) {
@@ -16,7 +19,7 @@ public class Encoder {
             }
             return Bytes.concat(new byte[]{1}, msg.getBytes());
         } else {
-            return Bytes.concat(new byte[]{0}, pkg.getData());
+            return Bytes.concat(new byte[]{(byte) (pkg.isTyped() ? 2 : 0)}, pkg.getData());
         }
     }
 
@@ -28,6 +31,8 @@ public class Encoder {
             return new Package(Arrays.copyOfRange(data, 1, data.length), null);
         } else if (data[0] == 1) {
             return new Package(null, new RuntimeException(new String(Arrays.copyOfRange(data, 1, data.length))));
+        } else if (data[0] == 2) {
+            return new Package(Arrays.copyOfRange(data, 1, data.length), null, true);
         } else {
             throw Error.InvalidPkgDataException;
         }
@@ -0,0 +1,72 @@
+package com.raining.raindb.transport;
+
+import com.raining.raindb.common.Error;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * kv 命令：不经过 SQL 解析，按 key 读写一行，放在请求的数据中发送，见 TableManager.get。
+ * 编码是 [操作 byte][表名][参数个数 short][参数]...，表名和每个参数都是 [长度 int][字节]。
+ * 操作的值都小于空格，语句不会以这样的字节开头，服务端由第一个字节区分
+ */
+public class KvRequest {
+    public static final byte GET = 1;
+    public static final byte MULTI_GET = 2;
+    public static final byte PUT = 3;
+
+    public byte op;
+    public String table;
+    // get 是一个 key，multiGet 是多个 key，put 是按字段顺序的一整行
+    public String[] args;
+
+    public KvRequest(byte op, String table, String[] args) {
+        this.op = op;
+        this.table = table;
+        this.args = args;
+    }
+
+    public static boolean isKv(byte[] data) {
+        return data.length > 0 && data[0] >= GET && data[0] <= PUT;
+    }
+
+    public byte[] encode() {
+        byte[] name = table.getBytes();
+        byte[][] values = new byte[args.length][];
+        int size = 1 + 4 + name.length + 2;
+        for (int i = 0; i < args.length; i++) {
+            values[i] = args[i].getBytes();
+            size += 4 + values[i].length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(op).putInt(name.length).put(name).putShort((short) args.length);
+        for (byte[] v : values) {
+            buf.putInt(v.length).put(v);
+        }
+        return buf.array();
+    }
+
+    public static KvRequest decode(byte[] data) throws Exception {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        try {
+            byte op = buf.get();
+            String table = string(buf);
+            String[] args = new String[buf.getShort()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = string(buf);
+            }
+            if (buf.hasRemaining() || (op == GET && args.length != 1)) {
+                throw Error.InvalidPkgDataException;
+            }
+            return new KvRequest(op, table, args);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw Error.InvalidPkgDataException;
+        }
+    }
+
+    private static String string(ByteBuffer buf) {
+        byte[] s = new byte[buf.getInt()];
+        buf.get(s);
+        return new String(s);
+    }
+}
@@ -3,12 +3,22 @@ package com.raining.raindb.transport;
 public class Package {
     byte[] data;
     Exception err;
+    // data 是二进制的结果集，见 ResultSet
+    boolean typed;
+    // 请求号，响应使用请求的请求号，见 Packager
+    int id;
 
     public Package(byte[] data, Exception err) {
         this.data = data;
         this.err = err;
     }
 
+    public Package(byte[] data, Exception err, boolean typed) {
+        this.data = data;
+        this.err = err;
+        this.typed = typed;
+    }
+
     public byte[] getData() {
         return data;
     }
@@ -16,4 +26,16 @@ public class Package {
     public Exception getErr() {
         return err;
     }
+
+    public boolean isTyped() {
+        return typed;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
 }
@@ -1,8 +1,15 @@
 package com.raining.raindb.transport;
 
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import com.raining.raindb.common.Error;
+
+import java.util.Arrays;
+
 /**
  * Packager 则是 Encoder 和 Transporter 的结合体，
- * 直接对外提供 send 和 receive 方法
+ * 直接对外提供 send 和 receive 方法。
+ * 协议版本 3 时编码后的数据前是 4 字节的请求号，服务端按收到的顺序执行和响应，响应带着请求的请求号
  */
 public class Packager {
     private Transporter transporter;
@@ -15,12 +22,27 @@ public class Packager {
 
     public void send(Package pkg) throws Exception {
         byte[] data = encoder.encode(pkg);
+        if (transporter.getVersion() >= Transporter.PIPELINE) {
+            data = Bytes.concat(Ints.toByteArray(pkg.getId()), data);
+        }
         transporter.send(data);
     }
 
     public Package receive() throws Exception {
         byte[] data = transporter.receive();
-        return encoder.decode(data);
+        if (transporter.getVersion() < Transporter.PIPELINE) {
+            return encoder.decode(data);
+        }
+        if (data.length < 4) {
+            throw Error.InvalidPkgDataException;
+        }
+        Package pkg = encoder.decode(Arrays.copyOfRange(data, 4, data.length));
+        pkg.setId(Ints.fromByteArray(data));
+        return pkg;
+    }
+
+    public int getVersion() {
+        return transporter.getVersion();
     }
 
     public void close() throws Exception {
@@ -0,0 +1,88 @@
+package com.raining.raindb.transport;
+
+import com.raining.raindb.common.Error;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 二进制协议中 select 的结果：依次排列的行，每行是 [列数 short]，之后每个值是 [类型 byte][值]。
+ * int32、int64 按大端编码，string 是 [长度 int][字节]，NULL 只有类型。
+ * 解码后 int32 是 Integer，int64 是 Long，string 是 String，NULL 是 null
+ */
+public class ResultSet {
+    public static final byte NULL = 0;
+    public static final byte INT32 = 1;
+    public static final byte INT64 = 2;
+    public static final byte STRING = 3;
+
+    private List<Object[]> rows;
+
+    // 已经是 Java 对象的行，嵌入式的查询结果不需要编码
+    public ResultSet(List<Object[]> rows) {
+        this.rows = rows;
+    }
+
+    public static ResultSet decode(byte[] data) throws Exception {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        List<Object[]> rows = new ArrayList<>();
+        try {
+            while (buf.hasRemaining()) {
+                Object[] row = new Object[buf.getShort()];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = value(buf);
+                }
+                rows.add(row);
+            }
+        } catch (BufferUnderflowException e) {
+            throw Error.InvalidPkgDataException;
+        }
+        return new ResultSet(rows);
+    }
+
+    private static Object value(ByteBuffer buf) throws Exception {
+        switch (buf.get()) {
+            case NULL:
+                return null;
+            case INT32:
+                return buf.getInt();
+            case INT64:
+                return buf.getLong();
+            case STRING:
+                byte[] s = new byte[buf.getInt()];
+                buf.get(s);
+                return new String(s);
+            default:
+                throw Error.InvalidPkgDataException;
+        }
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    public Object[] row(int i) {
+        return rows.get(i);
+    }
+
+    public List<Object[]> rows() {
+        return rows;
+    }
+
+    // 和文本协议相同的格式，每行是 [v1, v2]
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Object[] row : rows) {
+            sb.append("[");
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(row[i]);
+            }
+            sb.append("]\n");
+        }
+        return sb.toString();
+    }
+}
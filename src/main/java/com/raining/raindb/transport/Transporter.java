@@ -1,47 +1,135 @@
 package com.raining.raindb.transport;
 
+import com.raining.raindb.common.Error;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.Arrays;
 
 /**
- * 编码之后的信息会通过 Transporter 类，写入输出流发送出去。
- * 为了避免特殊字符造成问题，这里会将数据转成十六进制字符串（Hex String），
- * 并为信息末尾加上换行符。这样在发送和接收数据时，
- * 就可以很简单地使用 BufferedReader 和 Writer 来直接按行读写了
+ * 编码之后的信息会通过 Transporter 类，写入输出流发送出去。协议有三个版本：
+ * 版本 1 是最早的协议，数据转成十六进制字符串（Hex String），末尾加上换行符，按行读写；
+ * 版本 2 是二进制协议，每条信息是 [长度 int][数据]，不需要编码，select 的结果是带类型的 ResultSet；
+ * 版本 3 在版本 2 的每条信息的数据前加上请求号（见 Packager），客户端可以不等响应连续发送多条语句。
+ * 使用二进制协议的客户端连接后先发送 HELLO 和自己支持的最高版本，服务端回复 HELLO 和双方都支持的版本。
+ * 十六进制的行不会以 0 开头，服务端由第一个字节区分，不握手的旧客户端仍然使用版本 1
  */
 public class Transporter {
+    public static final int HEX = 1;
+    public static final int BINARY = 2;
+    public static final int PIPELINE = 3;
+    public static final int VERSION = PIPELINE;
+    public static final byte[] HELLO = {0, 'R', 'D', 'B'};
+    // 一条信息的最大长度
+    public static final int MAX_FRAME = 1 << 30;
+
     private Socket socket;
-    private BufferedReader reader;
-    private BufferedWriter writer;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private int version;
 
     public Transporter(Socket socket) throws IOException {
+        this(socket, HEX);
+    }
+
+    private Transporter(Socket socket, int version) throws IOException {
         this.socket = socket;
-        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.version = version;
+    }
+
+    // 客户端：协商协议版本
+    public static Transporter connect(Socket socket) throws IOException {
+        return connect(socket, VERSION);
+    }
+
+    // 客户端：最高使用 version 版本的协议
+    public static Transporter connect(Socket socket, int version) throws IOException {
+        Transporter t = new Transporter(socket, HEX);
+        t.out.write(HELLO);
+        t.out.write(version);
+        t.out.flush();
+        t.version = t.readHello();
+        return t;
+    }
+
+    // 服务端：第一个字节是 0 时回应握手，否则是旧的客户端
+    public static Transporter accept(Socket socket) throws IOException {
+        Transporter t = new Transporter(socket, HEX);
+        t.in.mark(1);
+        int b = t.in.read();
+        t.in.reset();
+        if (b == 0) {
+            t.version = Math.min(t.readHello(), VERSION);
+            t.out.write(HELLO);
+            t.out.write(t.version);
+            t.out.flush();
+        }
+        return t;
+    }
+
+    private int readHello() throws IOException {
+        byte[] hello = new byte[HELLO.length];
+        in.readFully(hello);
+        int v = in.read();
+        if (!Arrays.equals(hello, HELLO) || v < HEX) {
+            throw new IOException("Invalid handshake");
+        }
+        return v;
+    }
+
+    public int getVersion() {
+        return version;
     }
 
     //向客户端发消息
     public void send(byte[] data) throws Exception {
-        String raw = hexEncode(data);
-        writer.write(raw);
-        writer.flush();
+        if (version == HEX) {
+            out.write(hexEncode(data).getBytes());
+        } else {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+        out.flush();
     }
 
     //从客户端接受消息
     public byte[] receive() throws Exception {
-        String line = reader.readLine();
-        if (line == null) {
-            close();
+        if (version == HEX) {
+            String line = readLine();
+            if (line == null) {
+                close();
+                throw new EOFException();
+            }
+            return hexDecode(line);
+        }
+        int n = in.readInt();
+        if (n < 0 || n > MAX_FRAME) {
+            throw Error.InvalidPkgDataException;
+        }
+        byte[] data = new byte[n];
+        in.readFully(data);
+        return data;
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString();
+            }
+            line.write(b);
         }
-        return hexDecode(line);
+        return line.toString();
     }
 
     public void close() throws IOException {
-        writer.close();
-        reader.close();
+        out.close();
+        in.close();
         socket.close();
     }
 
@@ -6,6 +6,10 @@ import com.raining.raindb.backend.tm.TransactionManagerImpl;
 import com.raining.raindb.backend.util.Parser;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
 public class DataManagerTest {
 
     @Test
@@ -23,4 +27,48 @@ public class DataManagerTest {
             e.printStackTrace();
         }
     }
+
+    @Test
+    public void testSegmentScan() throws Exception {
+        String path = "/home/rain/coding/RainDB/db_test/dm_scan_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 100 * 8192, tm);
+
+        // 两个段交替插入，各自占用不同的页
+        List<Long> seg1 = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            seg1.add(dm.insert(TransactionManagerImpl.SUPER_XID, 1, Parser.int2Byte(i)));
+            dm.insert(TransactionManagerImpl.SUPER_XID, 2, Parser.long2Byte(i));
+        }
+        assert dm.segmentOf(seg1.get(0)) == 1;
+        dm.free(seg1.get(5));
+
+        List<Long> uids = new ArrayList<>();
+        dm.scan(1, (uid, data) -> {
+            assert data.end - data.start == 4;
+            assert Parser.parseInt(data.raw, data.start) == seg1.indexOf(uid);
+            uids.add(uid);
+            return true;
+        });
+        assert uids.size() == 1999 && !uids.contains(seg1.get(5));
+        dm.close();
+
+        // 重新打开之后，段信息从页头恢复
+        dm = DataManager.open(path, 100 * 8192, tm);
+        int[] count = new int[1];
+        dm.scan(1, (uid, data) -> {
+            count[0]++;
+            return count[0] < 10;
+        });
+        assert count[0] == 10;
+        uids.clear();
+        dm.scan(1, (uid, data) -> uids.add(uid));
+        assert uids.size() == 1999;
+        dm.close();
+        tm.close();
+
+        assert new File(path + ".db").delete();
+        assert new File(path + ".log").delete();
+        assert new File(path + ".xid").delete();
+    }
 }
@@ -1,6 +1,9 @@
 package com.raining.raindb.backend.im;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 import com.raining.raindb.backend.dm.DataManager;
@@ -28,8 +31,173 @@ public class BPlusTreeTest {
             assert uids.get(0) == i;
         }
 
+        // 倒序遍历经过所有分裂出来的叶子
+        List<Long> desc = new ArrayList<>();
+        tree.scanDesc(100, 5000, (key, uid) -> desc.add(key));
+        assert desc.size() == 4901;
+        for(int i = 0; i < desc.size(); i ++) {
+            assert desc.get(i) == 5000-i;
+        }
+        long[] max = new long[1];
+        tree.scanDesc(Long.MIN_VALUE, Long.MAX_VALUE, (key, uid) -> { max[0] = key; return false; });
+        assert max[0] == lim-1;
+
         assert new File("/home/rain/coding/RainDB/db_test/TestTreeSingle.db").delete();
         assert new File("/home/rain/coding/RainDB/db_test/TestTreeSingle.log").delete();
         assert new File("/home/rain/coding/RainDB/db_test/TestTreeSingle.xid").delete();
     }
+
+    @Test
+    public void testTreeDelete() throws Exception {
+        TransactionManager tm = TransactionManager.create("/home/rain/coding/RainDB/db_test/TestTreeDelete");
+        DataManager dm = DataManager.create("/home/rain/coding/RainDB/db_test/TestTreeDelete", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 10000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+        // 删掉大部分，触发合并与重新分配
+        for(int i = 0; i < lim; i ++) {
+            if(i % 7 != 0) {
+                assert tree.delete(i, i);
+            }
+        }
+        assert !tree.delete(1, 1);
+
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            if(i % 7 == 0) {
+                assert uids.size() == 1 && uids.get(0) == i;
+            } else {
+                assert uids.isEmpty();
+            }
+        }
+        List<Long> all = tree.searchRange(0, Long.MAX_VALUE);
+        assert all.size() == (lim+6)/7;
+        for(int i = 0; i < all.size(); i ++) {
+            assert all.get(i) == i*7;
+        }
+        // 合并之后左指针仍然连成一条链
+        List<Long> desc = new ArrayList<>();
+        tree.scanDesc(0, Long.MAX_VALUE, (key, uid) -> desc.add(uid));
+        Collections.reverse(desc);
+        assert desc.equals(all);
+
+        // 全部删除后再插入，树仍然可用
+        for(int i = 0; i < lim; i += 7) {
+            assert tree.delete(i, i);
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).isEmpty();
+        for(int i = 0; i < 1000; i ++) {
+            tree.insert(i, i);
+        }
+        for(int i = 0; i < 1000; i ++) {
+            List<Long> uids = tree.search(i);
+            assert uids.size() == 1 && uids.get(0) == i;
+        }
+
+        tree.close();
+        dm.close();
+        tm.close();
+        assert new File("/home/rain/coding/RainDB/db_test/TestTreeDelete.db").delete();
+        assert new File("/home/rain/coding/RainDB/db_test/TestTreeDelete.log").delete();
+        assert new File("/home/rain/coding/RainDB/db_test/TestTreeDelete.xid").delete();
+    }
+
+    @Test
+    public void testTreeBatch() throws Exception {
+        TransactionManager tm = TransactionManager.create("/home/rain/coding/RainDB/db_test/TestTreeBatch");
+        DataManager dm = DataManager.create("/home/rain/coding/RainDB/db_test/TestTreeBatch", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 先逐项插入奇数，再批量插入偶数和重复的 key，批量插入的段会穿插在已有的项之间
+        int lim = 10000;
+        for(int i = 1; i < lim; i += 2) {
+            tree.insert(i, i);
+        }
+        int n = lim/2 + lim/10;
+        long[] keys = new long[n];
+        long[] uids = new long[n];
+        int k = 0;
+        for(int i = 0; i < lim; i += 2) {
+            keys[k] = i;
+            uids[k ++] = i;
+            if(i % 10 == 0) {
+                keys[k] = i;
+                uids[k ++] = i + lim;
+            }
+        }
+        tree.insert(keys, uids);
+
+        for(int i = 0; i < lim; i ++) {
+            List<Long> found = tree.search(i);
+            assert found.size() == (i % 10 == 0 ? 2 : 1);
+            assert found.contains((long)i);
+        }
+        List<Long> desc = new ArrayList<>();
+        tree.scanDesc(0, Long.MAX_VALUE, (key, uid) -> desc.add(key));
+        assert desc.size() == lim + lim/10;
+        for(int i = 1; i < desc.size(); i ++) {
+            assert desc.get(i) <= desc.get(i-1);
+        }
+
+        tree.close();
+        dm.close();
+        tm.close();
+        assert new File("/home/rain/coding/RainDB/db_test/TestTreeBatch.db").delete();
+        assert new File("/home/rain/coding/RainDB/db_test/TestTreeBatch.log").delete();
+        assert new File("/home/rain/coding/RainDB/db_test/TestTreeBatch.xid").delete();
+    }
+
+    @Test
+    public void testScanWhileDeleting() throws Exception {
+        TransactionManager tm = TransactionManager.create("/home/rain/coding/RainDB/db_test/TestScanDelete");
+        DataManager dm = DataManager.create("/home/rain/coding/RainDB/db_test/TestScanDelete", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 每个 key 有两项，一个叶子放不下所有相同的 key 也没关系
+        int lim = 5000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+            tree.insert(i, i + lim);
+        }
+        // visitor 不在锁中调用：在 visitor 中删除，触发合并与重新分配，每一项仍然只访问一次
+        List<Long> seen = new ArrayList<>();
+        tree.scan(0, Long.MAX_VALUE, (key, uid) -> {
+            seen.add(uid);
+            assert tree.delete(key, uid);
+            return true;
+        });
+        assert seen.size() == lim*2;
+        assert new HashSet<>(seen).size() == lim*2;
+        assert tree.searchRange(0, Long.MAX_VALUE).isEmpty();
+
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+        List<Long> desc = new ArrayList<>();
+        tree.scanDesc(0, Long.MAX_VALUE, (key, uid) -> {
+            desc.add(key);
+            assert tree.delete(key, uid);
+            return true;
+        });
+        assert desc.size() == lim;
+        for(int i = 0; i < lim; i ++) {
+            assert desc.get(i) == lim-1-i;
+        }
+
+        tree.close();
+        dm.close();
+        tm.close();
+        assert new File("/home/rain/coding/RainDB/db_test/TestScanDelete.db").delete();
+        assert new File("/home/rain/coding/RainDB/db_test/TestScanDelete.log").delete();
+        assert new File("/home/rain/coding/RainDB/db_test/TestScanDelete.xid").delete();
+    }
 }
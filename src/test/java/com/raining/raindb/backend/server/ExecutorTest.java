@@ -1,12 +1,23 @@
 package com.raining.raindb.backend.server;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
 import java.util.concurrent.CountDownLatch;
 
 import com.raining.raindb.backend.dm.DataManager;
+import com.raining.raindb.backend.parser.Parser;
+import com.raining.raindb.backend.parser.statement.Begin;
+import com.raining.raindb.backend.parser.statement.Select;
+import com.raining.raindb.backend.tbm.Table;
 import com.raining.raindb.backend.tbm.TableManager;
 import com.raining.raindb.backend.tm.TransactionManager;
 import com.raining.raindb.backend.vm.VersionManager;
+import com.raining.raindb.common.Error;
+import com.raining.raindb.transport.BatchRequest;
+import com.raining.raindb.transport.KvRequest;
+import com.raining.raindb.transport.Package;
+import com.raining.raindb.transport.ResultSet;
 import org.junit.Test;
 
 public class ExecutorTest {
@@ -74,4 +85,739 @@ public class ExecutorTest {
         new File(path + ".log").delete();
         new File(path + ".xid").delete();
     }
+
+    @Test
+    public void testScanSelect() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table scan_table id int32, age int32 (index id)".getBytes());
+        int lim = 20000;
+        for (int i = 1; i <= lim; i++) {
+            exe.execute(("insert into scan_table values " + i + " " + i % 100).getBytes());
+        }
+        // 没有where和where字段没有索引时顺序扫描，页数足够多时并行扫描
+        String all = new String(exe.execute("select * from scan_table".getBytes()));
+        String[] rows = all.split("\n");
+        assert rows.length == lim;
+        for (int i = 0; i < lim; i++) {
+            assert rows[i].equals("[" + (i+1) + ", " + (i+1) % 100 + "]");
+        }
+        String some = new String(exe.execute("select * from scan_table where age = 7".getBytes()));
+        assert some.split("\n").length == lim / 100;
+        // 走索引命中的行很多时并行读取
+        String range = new String(exe.execute("select * from scan_table where id > 10000".getBytes()));
+        rows = range.split("\n");
+        assert rows.length == lim - 10000 && rows[0].equals("[10001, 1]");
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testWhereAndOr() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table ao id int32, age int32, tag int32 (index id age)".getBytes());
+        for (int i = 1; i <= 100; i++) {
+            exe.execute(("insert into ao values " + i + " " + i % 10 + " " + i % 7).getBytes());
+        }
+        // 两边都有索引：交集
+        assert count(exe, "select * from ao where id > 50 and age = 3") == 5;
+        // 同一个索引上的区间重叠：并集去重
+        assert count(exe, "select * from ao where id < 60 or id > 40") == 100;
+        assert count(exe, "select * from ao where id = 1 or age = 1") == 10;
+        // 只有一边有索引：另一边作为残余条件
+        assert count(exe, "select * from ao where id < 50 and tag = 0") == 7;
+        // or 的一边没有索引：顺序扫描
+        assert count(exe, "select * from ao where tag = 0 or id = 1") == 15;
+        assert new String(exe.execute("delete from ao where age = 5 and tag = 5".getBytes())).equals("delete 2");
+        assert count(exe, "select * from ao where age = 5") == 8;
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testAnalyze() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table sk id int32, age int32 (index id age)".getBytes());
+        // age 严重倾斜：绝大部分行是 0
+        for (int i = 1; i <= 3000; i++) {
+            exe.execute(("insert into sk values " + i + " " + (i % 100 == 0 ? i : 0)).getBytes());
+        }
+        exe.execute("delete from sk where id > 2900".getBytes());
+        // 页数不超过抽样页数时是精确统计
+        assert new String(exe.execute("analyze sk".getBytes())).equals("analyze 2900");
+        assert new String(exe.execute("analyze".getBytes())).startsWith("analyze ");
+        // 选择率高的走顺序扫描，低的走索引，结果都一样
+        assert count(exe, "select * from sk where age = 0") == 2871;
+        assert count(exe, "select * from sk where age = 500") == 1;
+        assert count(exe, "select * from sk where age = 0 and id < 100") == 99;
+        assert count(exe, "select * from sk where age > 0 or id < 10") == 38;
+        assert count(exe, "select * from sk where id > 10 and id < 20") == 9;
+        assert count(exe, "select * from sk where id > 20 and id < 10") == 0;
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table pj a int32, s string, b int64, t string (index a)".getBytes());
+        exe.execute("insert into pj values 1 x 10 yy".getBytes());
+        exe.execute("insert into pj values 2 xyz 20 y".getBytes());
+        assert new String(exe.execute("select * from pj".getBytes())).equals("[1, x, 10, yy]\n[2, xyz, 20, y]\n");
+        assert new String(exe.execute("select b from pj".getBytes())).equals("[10]\n[20]\n");
+        // string 后面的字段偏移随行变化，输出顺序按 select 中的顺序
+        assert new String(exe.execute("select t, a from pj where a = 2".getBytes())).equals("[y, 2]\n");
+        // 改变 string 的长度后，后面字段的偏移跟着变化
+        exe.execute("update pj set s = longer where a = 1".getBytes());
+        assert new String(exe.execute("select t, s, b from pj where a = 1".getBytes())).equals("[yy, longer, 10]\n");
+        try {
+            exe.execute("select c from pj".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.FieldNotFoundException;
+        }
+        // 同一个 Select 按对象读过之后仍然可以按文本读
+        Select sel = (Select) Parser.Parse("select a, t from pj where a = 2".getBytes());
+        long xid = exe.tbm.begin(new Begin()).xid;
+        Table pj = exe.tbm.table("pj");
+        assert exe.tbm.rows(xid, pj, sel).get(0)[1].equals("y");
+        assert new String(exe.tbm.read(xid, pj, sel)).equals("[2, y]\n");
+        exe.tbm.commit(xid);
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table ag id int32, name string, v int64 (index id)".getBytes());
+        assert new String(exe.execute("select count(*), min(id), sum(v) from ag".getBytes())).equals("[0, null, null]\n");
+        for (int i = 1; i <= 500; i++) {
+            exe.execute(("insert into ag values " + i + " n" + i % 10 + " " + i * 2).getBytes());
+        }
+        exe.execute("delete from ag where id > 400".getBytes());
+        assert new String(exe.execute("select count(*), min(id), max(id) from ag".getBytes())).equals("[400, 1, 400]\n");
+        assert new String(exe.execute("select sum(v), min(name), max(name) from ag".getBytes())).equals("[160400, n0, n9]\n");
+        assert new String(exe.execute("select count(id), max(v) from ag where id < 11".getBytes())).equals("[10, 20]\n");
+        // 事务内的修改只对自己可见，abort 后计数不变
+        exe.execute("begin".getBytes());
+        exe.execute("insert into ag values 1000 x 1".getBytes());
+        assert new String(exe.execute("select count(*), max(id) from ag".getBytes())).equals("[401, 1000]\n");
+        exe.execute("abort".getBytes());
+        assert new String(exe.execute("select count(*), max(id) from ag".getBytes())).equals("[400, 400]\n");
+        exe.tbm.close();
+
+        // 重新打开后计数需要重新统计
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        exe = new Executor(TableManager.open(path, vm, dm));
+        assert new String(exe.execute("select count(*) from ag".getBytes())).equals("[400]\n");
+        exe.execute("delete from ag where id < 101".getBytes());
+        assert new String(exe.execute("select count(*), min(id) from ag".getBytes())).equals("[300, 101]\n");
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testGroupBy() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table gb id int32, k int64, name string (index id)".getBytes());
+        for (int i = 0; i < 10000; i++) {
+            exe.execute(("insert into gb values " + i + " " + i % 1000 + " s" + i % 300).getBytes());
+        }
+        String small = new String(exe.execute("select name, count(*), min(id) from gb where id < 600 group by name".getBytes()));
+        // 预算只够很少的分组，迫使分组溢出到临时文件后再重新聚合
+        System.setProperty("raindb.groupMemory", "2048");
+        try {
+            String[] rows = new String(exe.execute("select k, count(*), sum(id), max(name) from gb group by k".getBytes())).split("\n");
+            assert rows.length == 1000;
+            Set<String> seen = new HashSet<>();
+            for (String row : rows) {
+                String[] cols = row.substring(1, row.length() - 1).split(", ");
+                long k = Long.parseLong(cols[0]);
+                assert cols[1].equals("10");
+                assert Long.parseLong(cols[2]) == 10 * k + 1000 * 45;
+                assert seen.add(cols[0]);
+            }
+            assert new HashSet<>(Arrays.asList(small.split("\n"))).equals(
+                    new HashSet<>(Arrays.asList(new String(exe.execute("select name, count(*), min(id) from gb where id < 600 group by name".getBytes())).split("\n"))));
+        } finally {
+            System.clearProperty("raindb.groupMemory");
+        }
+        assert small.split("\n").length == 300 && small.contains("[s7, 2, 7]\n");
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testOrderBy() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table ob id int32, v int64, name string (index id)".getBytes());
+        int n = 5000;
+        for (int i = 0; i < n; i++) {
+            // v 是 0..n-1 的一个排列
+            exe.execute(("insert into ob values " + i + " " + (i * 7919L % n) + " s" + i).getBytes());
+        }
+        // 索引上按顺序读取，读够就停止
+        assert new String(exe.execute("select id from ob order by id limit 3 offset 10".getBytes())).equals("[10]\n[11]\n[12]\n");
+        assert new String(exe.execute("select id from ob where id > 100 limit 2".getBytes())).equals("[101]\n[102]\n");
+        // 倒序走索引
+        assert new String(exe.execute("select id from ob order by id desc limit 2".getBytes())).equals("[4999]\n[4998]\n");
+        assert new String(exe.execute("select id from ob where id < 100 order by id desc limit 2".getBytes())).equals("[99]\n[98]\n");
+        // 没有索引：top-N 堆
+        assert new String(exe.execute("select v, id from ob order by v desc limit 2".getBytes())).equals("[4999, 2321]\n[4998, 4642]\n");
+        // 没有 limit 时全部排序，预算很小时分段写到临时文件再归并
+        System.setProperty("raindb.sortMemory", "4096");
+        try {
+            String[] rows = new String(exe.execute("select v from ob where id > 99 order by v".getBytes())).split("\n");
+            assert rows.length == n - 100;
+            for (int i = 1; i < rows.length; i++) {
+                assert Long.parseLong(rows[i-1].substring(1, rows[i-1].length()-1)) < Long.parseLong(rows[i].substring(1, rows[i].length()-1));
+            }
+            assert new String(exe.execute("select name from ob order by name offset 4998".getBytes())).equals("[s998]\n[s999]\n");
+        } finally {
+            System.clearProperty("raindb.sortMemory");
+        }
+        // max 从最大的 key 倒着找第一个可见的行
+        exe.execute("delete from ob where id > 4997".getBytes());
+        assert new String(exe.execute("select max(id) from ob".getBytes())).equals("[4997]\n");
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testJoin() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table users id int32, name string, age int32 (index id)".getBytes());
+        exe.execute("create table orders oid int32, uid int32, amount int64 (index oid)".getBytes());
+        for (int i = 0; i < 2000; i++) {
+            exe.execute(("insert into users values " + i + " u" + i + " " + (i * 2)).getBytes());
+        }
+        for (int i = 0; i < 1000; i++) {
+            // uid 大于等于 2000 的订单没有对应的用户
+            exe.execute(("insert into orders values " + i + " " + (i * 3 % 2500) + " " + (i * 10)).getBytes());
+        }
+        // 外表只有几行，在 users.id 的索引上查找
+        String res = new String(exe.execute("select orders.oid, users.name from orders join users on orders.uid = users.id where orders.oid < 4".getBytes()));
+        assert new HashSet<>(Arrays.asList(res.split("\n"))).equals(new HashSet<>(Arrays.asList("[0, u0]", "[1, u3]", "[2, u6]", "[3, u9]")));
+        // age 上没有索引：哈希连接
+        assert count(exe, "select oid from orders join users on uid = age") == 500;
+        // 两张表上的条件分别下推
+        assert new String(exe.execute("select oid, name from orders join users on uid = id where name = u3 and oid > 0".getBytes())).equals("[1, u3]\n");
+        // or 的两边在不同的表上，连接之后检查
+        assert count(exe, "select oid from orders join users on uid = id where oid < 5 or users.id = 1500") == 6;
+        assert count(exe, "select oid from orders join users on uid = id limit 3") == 3;
+        assert new String(exe.execute("select * from orders join users on uid = id where oid = 5".getBytes())).equals("[5, 15, 50, 15, u15, 30]\n");
+        // 两张表都有 id 字段时必须写表名
+        exe.execute("create table tags id int32, tag string (index tag)".getBytes());
+        exe.execute("insert into tags values 3 hot".getBytes());
+        try {
+            exe.execute("select id, tag from users join tags on users.id = tags.id".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.InvalidJoinException;
+        }
+        assert new String(exe.execute("select users.id, name, tag from users join tags on users.id = tags.id".getBytes())).equals("[3, u3, hot]\n");
+
+        // 两个 string 的哈希值相同，索引和哈希表中 key 相同，连接时还要比较字段本身
+        exe.execute("create table ja a int32, s string (index a s)".getBytes());
+        exe.execute("create table jb b int32, t string (index b)".getBytes());
+        exe.execute("create table jc c int32, u string (index c)".getBytes());
+        exe.execute("insert into ja values 1 PPPPPPPPPPPP".getBytes());
+        exe.execute("insert into jb values (2, 'aYAF;QKPOER@'), (3, PPPPPPPPPPPP)".getBytes());
+        exe.execute("insert into jc values 4 'aYAF;QKPOER@'".getBytes());
+        assert new String(exe.execute("select a, b from jb join ja on t = s".getBytes())).equals("[1, 3]\n");
+        assert new String(exe.execute("select b, c from jb join jc on t = u".getBytes())).equals("[2, 4]\n");
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testPrepare() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table kv k int32, v string (index k)".getBytes());
+        assert new String(exe.execute("prepare put as insert into kv values ? ?".getBytes())).equals("prepare put");
+        for (int i = 0; i < 100; i++) {
+            exe.execute(("execute put " + i + " v" + i).getBytes());
+        }
+        exe.execute("prepare get as select v from kv where k = ?".getBytes());
+        assert new String(exe.execute("execute get 42".getBytes())).equals("[v42]\n");
+        assert new String(exe.execute("execute get 7".getBytes())).equals("[v7]\n");
+        exe.execute("prepare set as update kv set v = ? where k = ?".getBytes());
+        assert new String(exe.execute("execute set new 7".getBytes())).equals("update 1");
+        assert new String(exe.execute("execute get 7".getBytes())).equals("[new]\n");
+        // 引号中的 ? 是普通的值
+        exe.execute("prepare q as insert into kv values ? '?'".getBytes());
+        exe.execute("execute q 1000".getBytes());
+        assert new String(exe.execute("execute get 1000".getBytes())).equals("[?]\n");
+        // 在事务中执行
+        exe.execute("prepare del as delete from kv where k < ?".getBytes());
+        exe.execute("begin".getBytes());
+        assert new String(exe.execute("execute del 10".getBytes())).equals("delete 10");
+        exe.execute("abort".getBytes());
+        assert count(exe, "select k from kv where k < 10") == 10;
+        // 创建新表之后重新查找，语句仍然可用
+        exe.execute("create table other id int32 (index id)".getBytes());
+        assert new String(exe.execute("execute get 42".getBytes())).equals("[v42]\n");
+        try {
+            exe.execute("execute get 1 2".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.InvalidValuesException;
+        }
+        try {
+            exe.execute("prepare bad as select * from missing".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.TableNotFoundException;
+        }
+        exe.execute("deallocate get".getBytes());
+        try {
+            exe.execute("execute get 42".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.PreparedNotFoundException;
+        }
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table c id int32, v int32 (index id)".getBytes());
+        exe.execute("begin".getBytes());
+        for (int i = 0; i < 1000; i++) {
+            exe.execute(("insert into c values " + i + " " + i % 7).getBytes());
+        }
+        exe.execute("commit".getBytes());
+        // 按索引的顺序分批取出，最后一批不足时已经取完
+        assert new String(exe.execute("declare a cursor for select id from c where id < 5000 order by id".getBytes())).equals("declare a");
+        int next = 0;
+        for (int n : new int[]{300, 300, 300, 100, 0}) {
+            String res = new String(exe.execute("fetch 300 from a".getBytes()));
+            assert (res.isEmpty() ? 0 : res.split("\n").length) == n;
+            for (String line : res.isEmpty() ? new String[0] : res.split("\n")) {
+                assert line.equals("[" + next++ + "]");
+            }
+        }
+        try {
+            exe.execute("declare a cursor for select * from c".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.DuplicatedCursorException;
+        }
+        assert new String(exe.execute("close a".getBytes())).equals("close a");
+        // 按索引倒序、有 limit 的游标边扫描边输出，停在扫描中间时别的会话仍然可以删除行、合并节点
+        exe.execute("declare d cursor for select id from c order by id desc limit 600".getBytes());
+        next = 999;
+        for (String line : new String(exe.execute("fetch 100 from d".getBytes())).split("\n")) {
+            assert line.equals("[" + next-- + "]");
+        }
+        Executor other = new Executor(exe.tbm);
+        assert new String(other.execute("delete from c where id < 500".getBytes())).equals("delete 500");
+        String rest = new String(exe.execute("fetch 1000 from d".getBytes()));
+        for (String line : rest.split("\n")) {
+            assert line.equals("[" + next-- + "]");
+        }
+        assert next == 499;
+        exe.execute("close d".getBytes());
+        exe.execute("begin".getBytes());
+        for (int i = 0; i < 500; i++) {
+            exe.execute(("insert into c values " + i + " " + i % 7).getBytes());
+        }
+        exe.execute("commit".getBytes());
+        // 排序和聚合
+        exe.execute("declare s cursor for select id, v from c order by v desc".getBytes());
+        assert count(exe, "fetch 400 from s") == 400;
+        assert count(exe, "fetch 400 from s") == 400;
+        assert count(exe, "fetch 400 from s") == 200;
+        exe.execute("declare g cursor for select v, count(*) from c group by v".getBytes());
+        assert count(exe, "fetch 3 from g") == 3;
+        assert count(exe, "fetch g") == 4;
+        // 没有取完就关闭
+        exe.execute("declare sc cursor for select * from c".getBytes());
+        assert count(exe, "fetch 1 from sc") == 1;
+        exe.execute("close sc".getBytes());
+        try {
+            exe.execute("fetch sc".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.CursorNotFoundException;
+        }
+        // 事务中的游标在事务结束时关闭
+        exe.execute("begin".getBytes());
+        exe.execute("declare t cursor for select id from c".getBytes());
+        assert count(exe, "fetch 10 from t") == 10;
+        exe.execute("commit".getBytes());
+        try {
+            exe.execute("fetch t".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.CursorNotFoundException;
+        }
+        // 一个会话中还没有取完的游标数有上限，上面取完的 s 和 g 不算
+        for (int i = 0; i < Executor.MAX_CURSORS; i++) {
+            exe.execute(("declare m" + i + " cursor for select id from c").getBytes());
+        }
+        try {
+            exe.execute("declare more cursor for select id from c".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.TooManyCursorsException;
+        }
+        exe.execute("close m0".getBytes());
+        assert count(exe, "fetch 2 from m1") == 2;
+        exe.execute("declare x cursor for select * from c".getBytes());
+        exe.close();
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testVacuum() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table vi id int32, name string (index id name)".getBytes());
+        exe.execute("create table vh id int32, v int32 (index)".getBytes());
+        for (int i = 0; i < 100; i++) {
+            exe.execute(("insert into vi values " + i + " n" + i).getBytes());
+            exe.execute(("insert into vh values " + i + " " + i).getBytes());
+        }
+        // 改了索引字段的 update 是 delete + insert，旧的行和删除的行一起回收；vh 的 update 在版本链上
+        exe.execute("update vi set name = m where id < 10".getBytes());
+        exe.execute("delete from vi where id > 89".getBytes());
+        exe.execute("update vh set v = 0 where id < 10".getBytes());
+        exe.execute("delete from vh where id > 89".getBytes());
+        assert new String(exe.execute("vacuum vi".getBytes())).equals("vacuum 20");
+        // 没有索引的表也能回收
+        assert new String(exe.execute("vacuum vh".getBytes())).equals("vacuum 10");
+        assert new String(exe.execute("vacuum".getBytes())).equals("vacuum 0");
+        assert count(exe, "select * from vi") == 90 && count(exe, "select * from vh") == 90;
+        assert count(exe, "select id from vi where name = m") == 10;
+        assert count(exe, "select id from vh where v = 0") == 10;
+        assert count(exe, "select id from vi where id > 80") == 9;
+
+        exe.execute("delete from vi where id < 10".getBytes());
+        exe.execute("delete from vh where id < 10".getBytes());
+        assert new String(exe.execute("vacuum".getBytes())).equals("vacuum 20");
+        assert count(exe, "select id from vi where name = m") == 0;
+        assert count(exe, "select id from vi where name = n5") == 0;
+        assert count(exe, "select id from vh where v = 0") == 0;
+        assert new String(exe.execute("select count(*) from vh".getBytes())).equals("[80]\n");
+        // 回收的空间可以继续使用
+        exe.execute("insert into vi values 5 n5".getBytes());
+        assert new String(exe.execute("select id from vi where name = n5".getBytes())).equals("[5]\n");
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testConcurrentUpdate() throws Exception {
+        Executor exe = testCreate();
+        try {
+            exe.execute("create table cu id int32, a int32, b int32 (index id)".getBytes());
+            exe.execute("insert into cu values 1 0 0".getBytes());
+            // 读已提交：第二个事务等到第一个提交后，在它提交的版本上修改另一个字段
+            exe.execute("begin".getBytes());
+            exe.execute("update cu set a = 1 where id = 1".getBytes());
+            Executor other = new Executor(exe.tbm);
+            Exception[] err = new Exception[1];
+            Thread t = new Thread(() -> {
+                try {
+                    other.execute("update cu set b = 2 where id = 1".getBytes());
+                } catch (Exception e) {
+                    err[0] = e;
+                }
+            });
+            t.start();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (t.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            exe.execute("commit".getBytes());
+            t.join();
+            assert err[0] == null;
+            assert new String(exe.execute("select a from cu where id = 1".getBytes())).equals("[1]\n");
+            assert new String(exe.execute("select b from cu where id = 1".getBytes())).equals("[2]\n");
+        } finally {
+            exe.tbm.close();
+            new File(path + ".db").delete();
+            new File(path + ".bt").delete();
+            new File(path + ".log").delete();
+            new File(path + ".xid").delete();
+        }
+    }
+
+    private int count(Executor exe, String sql) throws Exception {
+        String res = new String(exe.execute(sql.getBytes()));
+        return res.isEmpty() ? 0 : res.split("\n").length;
+    }
+
+    @Test
+    public void testKv() throws Exception {
+        Executor exe = testCreate();
+        exe.setTyped(true);
+        exe.execute("create table kv k string, v int32, w int32 (index k w)".getBytes());
+        for (int i = 0; i < 500; i++) {
+            assert new String(kv(exe, KvRequest.PUT, "kv", "key " + i, "" + i, "0")).equals("put insert");
+        }
+        ResultSet rs = ResultSet.decode(kv(exe, KvRequest.GET, "kv", "key 42"));
+        assert exe.isResultTyped();
+        assert rs.size() == 1 && rs.row(0)[0].equals("key 42") && rs.row(0)[1].equals(42);
+        assert ResultSet.decode(kv(exe, KvRequest.GET, "kv", "key")).size() == 0;
+        // 索引列不变时挂到版本链上，变化时重新插入，都不会多出行
+        assert new String(kv(exe, KvRequest.PUT, "kv", "key 1", "100", "0")).equals("put update");
+        assert new String(kv(exe, KvRequest.PUT, "kv", "key 2", "200", "1")).equals("put update");
+        rs = ResultSet.decode(kv(exe, KvRequest.MULTI_GET, "kv", "key 1", "none", "key 2"));
+        assert rs.size() == 3 && rs.row(0)[1].equals(100) && rs.row(1).length == 0 && rs.row(2)[2].equals(1);
+        exe.setTyped(false);
+        assert count(exe, "select * from kv where w = 1") == 1;
+        assert count(exe, "select * from kv") == 500;
+        try {
+            kv(exe, KvRequest.GET, "kv", "key 1");
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.TypedResultUnsupportedException;
+        }
+        exe.setTyped(true);
+        // 在事务中使用当前事务，回滚后看不到
+        exe.execute("begin".getBytes());
+        kv(exe, KvRequest.PUT, "kv", "key 3", "300", "0");
+        assert ResultSet.decode(kv(exe, KvRequest.GET, "kv", "key 3")).row(0)[1].equals(300);
+        exe.execute("abort".getBytes());
+        assert ResultSet.decode(kv(exe, KvRequest.GET, "kv", "key 3")).row(0)[1].equals(3);
+        try {
+            kv(exe, KvRequest.GET, "missing", "1");
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.TableNotFoundException;
+        }
+        // put 找到的行在加锁之前被删除并提交了，应当插入而不是报告 update
+        exe.execute("begin".getBytes());
+        exe.execute("delete from kv where k = 'key 4'".getBytes());
+        Executor other = new Executor(exe.tbm);
+        byte[][] put = new byte[1][];
+        Thread t = new Thread(() -> {
+            try {
+                put[0] = kv(other, KvRequest.PUT, "kv", "key 4", "400", "0");
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (t.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        exe.execute("commit".getBytes());
+        t.join();
+        assert new String(put[0]).equals("put insert");
+        assert ResultSet.decode(kv(exe, KvRequest.GET, "kv", "key 4")).row(0)[1].equals(400);
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    private byte[] kv(Executor exe, byte op, String table, String... args) throws Exception {
+        return exe.execute(new KvRequest(op, table, args).encode());
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table ord id int32, qty int32 (index id)".getBytes());
+        List<Package> res = batch(exe, BatchRequest.BATCH, "", "insert into ord values 1 10", "insert into ord values 2 20", "select * from ord");
+        assert res.size() == 3 && new String(res.get(2).getData()).equals("[1, 10]\n[2, 20]\n");
+        // 出错时整个批次回滚
+        try {
+            batch(exe, BatchRequest.BATCH, "", "insert into ord values 3 30", "select * from missing");
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.TableNotFoundException;
+        }
+        assert count(exe, "select * from ord") == 2;
+        try {
+            batch(exe, BatchRequest.BATCH, "", "begin", "insert into ord values 3 30");
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.InvalidBatchException;
+        }
+        // 过程：参数按 ? 的顺序分给每条语句
+        batch(exe, BatchRequest.DEFINE, "neworder", "insert into ord values ? ?", "update ord set qty = ? where id = ?", "select qty from ord where id = ?");
+        res = batch(exe, BatchRequest.CALL, "neworder", "5", "50", "55", "5", "5");
+        assert new String(res.get(2).getData()).equals("[55]\n");
+        try {
+            batch(exe, BatchRequest.CALL, "neworder", "6", "60");
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.InvalidValuesException;
+        }
+        try {
+            batch(exe, BatchRequest.CALL, "none");
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.ProcedureNotFoundException;
+        }
+        // 在事务中使用当前事务
+        exe.execute("begin".getBytes());
+        batch(exe, BatchRequest.CALL, "neworder", "7", "70", "77", "7", "7");
+        assert count(exe, "select * from ord where id = 7") == 1;
+        exe.execute("abort".getBytes());
+        assert count(exe, "select * from ord") == 3;
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testBulkInsert() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table bulk id int32, name string, v int64 (index id name)".getBytes());
+        assert new String(exe.execute("insert into bulk values (1, 'a', 10), (2, 'b b', 20), (3, ?, 30)".getBytes())).equals("insert 3");
+        assert new String(exe.execute("insert into bulk values 4 d 40".getBytes())).equals("insert");
+        try {
+            exe.execute("insert into bulk values (5, 'e', 50), (6, 'f')".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.InvalidValuesException;
+        }
+        assert new String(exe.execute("select name from bulk where id = 2".getBytes())).equals("[b b]\n");
+        assert new String(exe.execute("select id from bulk where name = '?'".getBytes())).equals("[3]\n");
+
+        // 没有设置导入目录时不能 copy
+        File csv = new File(path + ".csv");
+        try {
+            exe.execute(("copy bulk from '" + csv.getPath() + "'").getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.ImportPathException;
+        }
+        System.setProperty("raindb.importDir", csv.getParent());
+        try {
+            // 乱序的 key，超过一个批次，叶子需要分裂
+            List<Integer> ids = new ArrayList<>();
+            for (int i = 100; i < 6100; i++) {
+                ids.add(i);
+            }
+            Collections.shuffle(ids, new Random(7));
+            StringBuilder sb = new StringBuilder();
+            for (int id : ids) {
+                sb.append(id).append(',').append(id % 3 == 0 ? "\"n, \"\"" + id + "\"\"\"" : "n" + id).append(',').append(id * 2L).append('\n');
+            }
+            sb.append("\n7000,\"two\nlines\",1\n");
+            Files.write(csv.toPath(), sb.toString().getBytes());
+            assert new String(exe.execute(("copy bulk from '" + csv.getName() + "'").getBytes())).equals("copy 6001");
+            assert new String(exe.execute("select count(*) from bulk".getBytes())).equals("[6005]\n");
+            assert new String(exe.execute("select name from bulk where id = 300".getBytes())).equals("[n, \"300\"]\n");
+            assert new String(exe.execute("select v from bulk where id = 7000".getBytes())).equals("[1]\n");
+            for (int id = 100; id < 6100; id += 97) {
+                assert new String(exe.execute(("select v from bulk where id = " + id).getBytes())).equals("[" + id * 2L + "]\n");
+            }
+            assert new String(exe.execute("select id from bulk where name = 'n101'".getBytes())).equals("[101]\n");
+            assert count(exe, "select id from bulk where id > 1000 and id < 2001") == 1000;
+
+            // 在事务中导入，回滚后看不到
+            exe.execute("begin".getBytes());
+            exe.execute(("copy bulk from '" + csv.getPath() + "'").getBytes());
+            exe.execute("abort".getBytes());
+            assert new String(exe.execute("select count(*) from bulk".getBytes())).equals("[6005]\n");
+            assert count(exe, "select id from bulk where id = 500") == 1;
+            try {
+                exe.execute(("copy bulk from '" + path + ".none'").getBytes());
+                assert false;
+            } catch (Exception e) {
+                assert e == Error.FileNotExistsException;
+            }
+            // 第一批插入之后出错，提交后已经插入的那一批也要计入 count(*)
+            StringBuilder bad = new StringBuilder();
+            for (int i = 0; i < 4096; i++) {
+                bad.append(10000 + i).append(",b,").append(i).append('\n');
+            }
+            bad.append("20000,b\n");
+            Files.write(csv.toPath(), bad.toString().getBytes());
+            exe.execute("begin".getBytes());
+            try {
+                exe.execute(("copy bulk from '" + csv.getName() + "'").getBytes());
+                assert false;
+            } catch (Exception e) {
+                assert e == Error.InvalidValuesException;
+            }
+            exe.execute("commit".getBytes());
+            assert new String(exe.execute("select count(*) from bulk".getBytes())).equals("[" + (6005 + 4096) + "]\n");
+            assert count(exe, "select id from bulk where id > 9999") == 4096;
+            // 导入目录之外的文件
+            for (String p : new String[]{"/etc/passwd", "../" + csv.getName(), csv.getParent() + "/../db_test/../" + csv.getName()}) {
+                try {
+                    exe.execute(("copy bulk from '" + p + "'").getBytes());
+                    assert false;
+                } catch (Exception e) {
+                    assert e == Error.ImportPathException;
+                }
+            }
+        } finally {
+            System.clearProperty("raindb.importDir");
+            csv.delete();
+        }
+
+        exe.tbm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    private List<Package> batch(Executor exe, byte op, String name, String... args) throws Exception {
+        byte[] res = exe.execute(new BatchRequest(op, name, args).encode());
+        return op == BatchRequest.DEFINE ? null : BatchRequest.decodeResults(res);
+    }
 }
@@ -0,0 +1,554 @@
+package com.raining.raindb.backend.server;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import com.raining.raindb.backend.dm.DataManager;
+import com.raining.raindb.backend.tbm.TableManager;
+import com.raining.raindb.backend.tm.TransactionManager;
+import com.raining.raindb.backend.util.VirtualThreads;
+import com.raining.raindb.backend.vm.VersionManager;
+import com.raining.raindb.client.Client;
+import com.raining.raindb.client.ConnectionPool;
+import com.raining.raindb.client.ResultCursor;
+import com.raining.raindb.common.Error;
+import com.raining.raindb.transport.Encoder;
+import com.raining.raindb.transport.Package;
+import com.raining.raindb.transport.Packager;
+import com.raining.raindb.transport.ResultSet;
+import com.raining.raindb.transport.Transporter;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ServerTest {
+    String path = "/home/rain/coding/RainDB/db_test/server_test_db";
+    int port = 9989;
+    // t 中的行数，id 为 0 到 n-1，v = id * 2
+    int n = 200;
+
+    private TableManager tbm;
+    private NioServer server;
+    // startVirtual 启动的服务端
+    private Server blocking;
+    private Thread st;
+
+    // 使用 version 版本的协议，HEX 时是不握手的旧客户端
+    private Client connect(int version) throws Exception {
+        Socket socket = new Socket("127.0.0.1", port);
+        Transporter t = version == Transporter.HEX ? new Transporter(socket) : Transporter.connect(socket, version);
+        return new Client(new Packager(t, new Encoder()));
+    }
+
+    private TableManager create() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, (1 << 20) * 64, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        return tbm = TableManager.create(path, vm, dm);
+    }
+
+    // 在新建的数据库上启动服务端，返回一个旧版本的客户端
+    private Client start() throws Exception {
+        server = new NioServer(port, create());
+        st = new Thread(() -> {
+            try {
+                server.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        st.start();
+        return connectWhenReady();
+    }
+
+    // 每个连接一个虚拟线程的服务端，JDK 21 以下时跳过
+    private Client startVirtual() throws Exception {
+        Assume.assumeTrue(VirtualThreads.newExecutor() != null);
+        blocking = new Server(port, create());
+        st = new Thread(() -> blocking.startVirtual());
+        st.start();
+        return connectWhenReady();
+    }
+
+    private Client connectWhenReady() throws Exception {
+        for (int i = 0; ; i++) {
+            try {
+                return connect(Transporter.HEX);
+            } catch (Exception e) {
+                if (i == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // 关闭服务端，删除数据库文件，测试失败时也要执行
+    private void stop() throws Exception {
+        try {
+            if (server != null) {
+                server.close();
+                st.join();
+            }
+            if (blocking != null) {
+                blocking.close();
+                st.join();
+            }
+            if (tbm != null) {
+                tbm.close();
+            }
+        } finally {
+            server = null;
+            blocking = null;
+            tbm = null;
+            new File(path + ".db").delete();
+            new File(path + ".bt").delete();
+            new File(path + ".log").delete();
+            new File(path + ".xid").delete();
+        }
+    }
+
+    // 建表 t 并插入 n 行
+    private void fill(Client c) throws Exception {
+        c.execute("create table t id int32, v int32 (index id)".getBytes());
+        StringBuilder sb = new StringBuilder("insert into t values ");
+        for (int i = 0; i < n; i++) {
+            sb.append(i == 0 ? "" : ", ").append('(').append(i).append(", ").append(i * 2).append(')');
+        }
+        c.execute(sb.toString().getBytes());
+    }
+
+    // 每 10 毫秒检查一次 cond，最多等 millis 毫秒
+    private static boolean waitFor(BooleanSupplier cond, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!cond.getAsBoolean()) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    @Test
+    public void testManyConnections() throws Exception {
+        try {
+            Client admin = start();
+            assert new String(admin.execute("create table t id int32, v int32 (index id)".getBytes())).equals("create t");
+
+            // 比线程池大得多的连接数，全部连接同时保持打开
+            CountDownLatch connected = new CountDownLatch(n), done = new CountDownLatch(n);
+            AtomicInteger ok = new AtomicInteger();
+            for (int i = 0; i < n; i++) {
+                final int id = i;
+                new Thread(() -> {
+                    Client c = null;
+                    try {
+                        //各个版本的客户端同时使用
+                        c = connect(id % 3 + 1);
+                        connected.countDown();
+                        connected.await();
+                        c.execute("begin".getBytes());
+                        c.execute(("insert into t values " + id + " " + id * 2).getBytes());
+                        c.execute("commit".getBytes());
+                        if (new String(c.execute(("select v from t where id = " + id).getBytes())).equals("[" + id * 2 + "]\n")) {
+                            ok.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        if (c != null) c.close();
+                        done.countDown();
+                    }
+                }).start();
+            }
+            done.await();
+            assert ok.get() == n;
+            // 出错的语句返回错误，连接仍然可用
+            try {
+                admin.execute("select * from missing".getBytes());
+                assert false;
+            } catch (Exception e) {
+                assert "Table not found!".equals(e.getMessage());
+            }
+            assert new String(admin.execute("select count(*) from t".getBytes())).equals("[" + n + "]\n");
+            admin.close();
+        } finally {
+            stop();
+        }
+    }
+
+    @Test
+    public void testBinaryProtocol() throws Exception {
+        try {
+            Client admin = start();
+            fill(admin);
+            // 二进制协议：带类型的结果集，出错和非 select 的语句与文本协议相同
+            Client bc = connect(Transporter.BINARY);
+            assert new String(bc.execute("create table s name string, n int64 (index n)".getBytes())).equals("create s");
+            bc.execute("insert into s values \"a b, c]\" 5000000000".getBytes());
+            bc.execute("insert into s values x 7".getBytes());
+            ResultSet rs = bc.query("select * from s where n > 0 order by n".getBytes());
+            assert rs.size() == 2;
+            assert rs.row(0)[0].equals("x") && rs.row(0)[1].equals(7L);
+            assert rs.row(1)[0].equals("a b, c]") && rs.row(1)[1].equals(5000000000L);
+            rs = bc.query("select v, id from t where id = 7".getBytes());
+            assert rs.row(0)[0].equals(14) && rs.row(0)[1].equals(7);
+            rs = bc.query("select count(*), max(v) from t where id > 100000".getBytes());
+            assert rs.row(0)[0].equals(0L) && rs.row(0)[1] == null;
+            assert new String(bc.execute("select count(*) from t".getBytes())).equals("[" + n + "]\n");
+            assert bc.query("select * from t limit 0".getBytes()).size() == 0;
+            assert bc.query("begin".getBytes()) == null;
+            try {
+                bc.query("select * from missing".getBytes());
+                assert false;
+            } catch (Exception e) {
+                assert "Table not found!".equals(e.getMessage());
+            }
+            bc.execute("abort".getBytes());
+            bc.close();
+            admin.close();
+        } finally {
+            stop();
+        }
+    }
+
+    @Test
+    public void testKv() throws Exception {
+        try {
+            Client admin = start();
+            Client bc = connect(Transporter.BINARY);
+            bc.execute("create table s name string, n int64 (index n)".getBytes());
+            bc.execute("insert into s values x 7".getBytes());
+            // kv 命令：key 是第一个建了索引的字段
+            assert bc.get("s", 7).row(0)[0].equals("x");
+            assert bc.get("s", 8).size() == 0;
+            assert new String(bc.put("s", "y", 7)).equals("put update");
+            assert new String(bc.put("s", "z", 8)).equals("put insert");
+            ResultSet rs = bc.multiGet("s", 8, 9, 7);
+            assert rs.size() == 3 && rs.row(0)[0].equals("z") && rs.row(1).length == 0 && rs.row(2)[0].equals("y");
+            bc.close();
+            try {
+                admin.get("s", 7);
+                assert false;
+            } catch (Exception e) {
+                assert e == Error.TypedResultUnsupportedException;
+            }
+            admin.close();
+        } finally {
+            stop();
+        }
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        try {
+            Client admin = start();
+            Client bc = connect(Transporter.BINARY);
+            bc.execute("create table s name string, n int64 (index n)".getBytes());
+            bc.execute("insert into s values x 7".getBytes());
+            // 批量执行：一次往返，同一个事务
+            List<byte[]> br = bc.batch("insert into s values b 9", "select name from s where n = 9");
+            assert new String(br.get(1)).equals("[b]\n");
+            bc.define("add", "insert into s values ? ?", "select count(*) from s");
+            assert new String(bc.call("add", "c d", 10).get(1)).equals("[3]\n");
+            bc.close();
+            admin.close();
+        } finally {
+            stop();
+        }
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+        try {
+            Client admin = start();
+            fill(admin);
+            // 流水线：一个连接上不等响应发出所有语句，响应和请求一一对应，出错的语句不影响后面的语句
+            Client pc = connect(Transporter.PIPELINE);
+            List<CompletableFuture<byte[]>> fs = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                fs.add(pc.executeAsync(("select v from t where id = " + i).getBytes()));
+            }
+            CompletableFuture<byte[]> bad = pc.executeAsync("select * from missing".getBytes());
+            CompletableFuture<ResultSet> after = pc.queryAsync("select count(*) from t".getBytes());
+            for (int i = 0; i < n; i++) {
+                assert new String(fs.get(i).get()).equals("[" + i * 2 + "]\n");
+            }
+            try {
+                bad.get();
+                assert false;
+            } catch (ExecutionException e) {
+                assert "Table not found!".equals(e.getCause().getMessage());
+            }
+            assert after.get().row(0)[0].equals((long) n);
+            assert new String(pc.execute("select v from t where id = 3".getBytes())).equals("[6]\n");
+            pc.close();
+            admin.close();
+        } finally {
+            stop();
+        }
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        try {
+            Client admin = start();
+            fill(admin);
+            // 游标：每次从服务端取 7 行，逐行读取
+            Client cc = connect(Transporter.PIPELINE);
+            int rows = 0;
+            try (ResultCursor cur = cc.cursor("select id, v from t", 7)) {
+                while (cur.hasNext()) {
+                    Object[] r = cur.next();
+                    assert r[1].equals((Integer) r[0] * 2);
+                    rows ++;
+                }
+            }
+            assert rows == n;
+            ResultCursor early = cc.cursor("select id from t order by id", 5);
+            assert early.next()[0].equals(0);
+            early.close();
+            assert new String(cc.execute("select v from t where id = 1".getBytes())).equals("[2]\n");
+            cc.close();
+            try {
+                admin.cursor("select * from t", 10);
+                assert false;
+            } catch (Exception e) {
+                assert e == Error.TypedResultUnsupportedException;
+            }
+            admin.close();
+        } finally {
+            stop();
+        }
+    }
+
+    @Test
+    public void testConnectionPool() throws Exception {
+        try {
+            Client admin = start();
+            fill(admin);
+            // 连接池：20 个线程共享最多 4 个连接
+            ConnectionPool pool = new ConnectionPool("127.0.0.1", port, 1, 4, 200, 2000);
+            assert pool.size() == 1;
+            CountDownLatch pooled = new CountDownLatch(20);
+            AtomicInteger pooledOk = new AtomicInteger();
+            for (int i = 0; i < 20; i++) {
+                new Thread(() -> {
+                    try {
+                        for (int j = 0; j < 20; j++) {
+                            if (new String(pool.execute("select v from t where id = 5".getBytes())).equals("[10]\n")) {
+                                pooledOk.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        pooled.countDown();
+                    }
+                }).start();
+            }
+            pooled.await();
+            assert pooledOk.get() == 400;
+            assert pool.size() <= 4;
+            // 借完之后等待超时
+            List<Client> borrowed = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                borrowed.add(pool.borrow());
+            }
+            long start = System.currentTimeMillis();
+            try {
+                pool.borrow();
+                assert false;
+            } catch (Exception e) {
+                assert e == Error.PoolTimeoutException;
+                assert System.currentTimeMillis() - start >= 2000;
+            }
+            for (Client c : borrowed) {
+                pool.release(c);
+            }
+            pool.close();
+
+            // 断开的连接借出前被检查出来，换成新的连接。这个池不回收空闲的连接，
+            // 连接空闲超过 ConnectionPool.VALIDATE_AFTER（1 秒）后借出前才检查
+            ConnectionPool kept = new ConnectionPool("127.0.0.1", port, 1, 4, 60000, 2000);
+            borrowed.clear();
+            for (int i = 0; i < 4; i++) {
+                borrowed.add(kept.borrow());
+            }
+            borrowed.get(0).close();
+            for (Client c : borrowed) {
+                kept.release(c);
+            }
+            long released = System.currentTimeMillis();
+            assert waitFor(() -> System.currentTimeMillis() - released > 1000, 5000);
+            borrowed.clear();
+            for (int i = 0; i < 4; i++) {
+                borrowed.add(kept.borrow());
+                assert new String(borrowed.get(i).execute("select v from t where id = 5".getBytes())).equals("[10]\n");
+            }
+            for (Client c : borrowed) {
+                kept.release(c);
+            }
+            assert kept.size() == 4;
+            kept.close();
+
+            // 归还之后空闲的连接被回收，只保留 minSize 个
+            ConnectionPool small = new ConnectionPool("127.0.0.1", port, 1, 4, 200, 2000);
+            List<Client> cs = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                cs.add(small.borrow());
+            }
+            for (Client c : cs) {
+                small.release(c);
+            }
+            assert small.idleSize() == 3;
+            assert waitFor(() -> small.size() == 1 && small.idleSize() == 1, 5000);
+            small.close();
+            try {
+                small.borrow();
+                assert false;
+            } catch (Exception e) {
+                assert e == Error.PoolClosedException;
+            }
+            admin.close();
+        } finally {
+            stop();
+        }
+    }
+
+    @Test
+    public void testHalfClose() throws Exception {
+        try {
+            Client admin = start();
+            // 客户端发完请求后关闭写的一端，等服务端全部执行完才开始读。
+            // 响应比 socket 的缓冲区大得多，也要全部发送后才关闭连接
+            admin.execute("create table w id int32, s string (index id)".getBytes());
+            StringBuilder wide = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                wide.append('w');
+            }
+            for (int i = 0; i < 100; i++) {
+                admin.execute(("insert into w values " + i + " " + wide).getBytes());
+            }
+            byte[] all = admin.execute("select * from w".getBytes());
+            Socket half = new Socket();
+            half.setReceiveBufferSize(4096);
+            half.connect(new InetSocketAddress("127.0.0.1", port));
+            Transporter ht = new Transporter(half);
+            Encoder enc = new Encoder();
+            long before = server.completedStatements();
+            for (int i = 0; i < 50; i++) {
+                ht.send(enc.encode(new Package("select * from w".getBytes(), null)));
+            }
+            half.shutdownOutput();
+            assert waitFor(() -> server.completedStatements() >= before + 50, 10000);
+            for (int i = 0; i < 50; i++) {
+                assert Arrays.equals(enc.decode(ht.receive()).getData(), all);
+            }
+            ht.close();
+            admin.close();
+        } finally {
+            stop();
+        }
+    }
+
+    @Test
+    public void testLockWaitsDoNotStarveWorkers() throws Exception {
+        List<Client> clients = new ArrayList<>();
+        try {
+            Client a = start();
+            clients.add(a);
+            a.execute("create table l id int32, v int32 (index id)".getBytes());
+            a.execute("insert into l values 1 0".getBytes());
+            a.execute("begin".getBytes());
+            a.execute("update l set v = 1 where id = 1".getBytes());
+
+            // 比工作线程多的会话都在等 a 持有的行锁，a 的 commit 仍然要能执行
+            int waiters = NioServer.WORKERS + 4;
+            CountDownLatch done = new CountDownLatch(waiters);
+            AtomicInteger ok = new AtomicInteger();
+            for (int i = 0; i < waiters; i++) {
+                Client c = Client.connect("127.0.0.1", port);
+                clients.add(c);
+                new Thread(() -> {
+                    try {
+                        if (new String(c.execute("update l set v = 2 where id = 1".getBytes())).equals("update 1")) {
+                            ok.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            CompletableFuture<byte[]> commit = CompletableFuture.supplyAsync(() -> {
+                try {
+                    Thread.sleep(500);
+                    return a.execute("commit".getBytes());
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+            assert new String(commit.get(30, TimeUnit.SECONDS)).equals("commit");
+            assert done.await(30, TimeUnit.SECONDS);
+            assert ok.get() == waiters;
+        } finally {
+            for (Client c : clients) {
+                c.close();
+            }
+            stop();
+        }
+    }
+
+    @Test
+    public void testVirtual() throws Exception {
+        List<Client> clients = new ArrayList<>();
+        try {
+            Client a = startVirtual();
+            clients.add(a);
+            a.execute("create table l id int32, v int32 (index id)".getBytes());
+            a.execute("insert into l values 1 0".getBytes());
+            a.execute("begin".getBytes());
+            a.execute("update l set v = 1 where id = 1".getBytes());
+
+            // 每个连接一个虚拟线程，大量会话同时等待行锁
+            int waiters = 200;
+            CountDownLatch done = new CountDownLatch(waiters);
+            AtomicInteger ok = new AtomicInteger();
+            for (int i = 0; i < waiters; i++) {
+                Client c = connect(i % 3 + 1);
+                clients.add(c);
+                new Thread(() -> {
+                    try {
+                        if (new String(c.execute("update l set v = 2 where id = 1".getBytes())).equals("update 1")) {
+                            ok.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            assert new String(a.execute("commit".getBytes())).equals("commit");
+            assert done.await(30, TimeUnit.SECONDS);
+            assert ok.get() == waiters;
+            assert new String(a.execute("select v from l where id = 1".getBytes())).equals("[2]\n");
+        } finally {
+            for (Client c : clients) {
+                c.close();
+            }
+            stop();
+        }
+    }
+}
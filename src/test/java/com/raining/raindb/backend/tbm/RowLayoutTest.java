@@ -0,0 +1,85 @@
+package com.raining.raindb.backend.tbm;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RowLayoutTest {
+    private static RowLayout layout(String... types) {
+        Field[] fields = new Field[types.length];
+        for (int i = 0; i < types.length; i++) {
+            fields[i] = new Field(null, "f" + i, types[i], 0);
+        }
+        return new RowLayout(Arrays.asList(fields));
+    }
+
+    private static void check(RowLayout layout, byte[] raw, int start, String[] values) {
+        int[] offs = layout.offsets(raw, start, values.length - 1);
+        for (int i = 0; i < values.length; i++) {
+            Field f = layout.fields[i];
+            int off = layout.offset(raw, start, i);
+            assert offs[i] == off;
+            if (f.fixedSize() < 0) {
+                assert values[i].equals(f.rawString(raw, start + off));
+            } else {
+                assert Long.parseLong(values[i]) == f.rawValue2Uid(raw, start + off);
+            }
+            byte[] v = f.value2Raw(values[i]);
+            assert layout.fieldEquals(raw, start, i, v, 0, v.length);
+        }
+        assert start + layout.length(raw, start) == raw.length;
+        assert offs[values.length] <= layout.length(raw, start);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        RowLayout layout = layout("string", "int32", "int64", "string", "string", "int32");
+        String[] values = {"hello", "-7", "1234567890123", "", "raindb", "42"};
+        byte[] raw = layout.encode(values);
+        check(layout, raw, 0, values);
+
+        //一行放在一段更大的字节中间
+        byte[] padded = new byte[raw.length + 5];
+        System.arraycopy(raw, 0, padded, 5, raw.length);
+        check(layout, padded, 5, values);
+
+        RowLayout fixed = layout("int32", "int64");
+        String[] nums = {"1", "2"};
+        byte[] r = fixed.encode(nums);
+        assert r.length == 12;
+        check(fixed, r, 0, nums);
+    }
+
+    @Test
+    public void testFieldEquals() throws Exception {
+        RowLayout layout = layout("int64", "string", "int32");
+        byte[] raw = layout.encode(new String[]{"9", "abc", "3"});
+        assert layout.fieldEquals(raw, 1, layout.fields[1].value2Raw("abc"));
+        assert !layout.fieldEquals(raw, 1, layout.fields[1].value2Raw("abd"));
+        assert !layout.fieldEquals(raw, 1, layout.fields[1].value2Raw("abcd"));
+        assert layout.fieldEquals(raw, 0, layout.fields[0].value2Raw("9"));
+        assert !layout.fieldEquals(raw, 2, layout.fields[2].value2Raw("4"));
+        assert layout.key(raw, 2) == 3;
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        RowLayout layout = layout("string", "int32", "string", "string");
+        String[] values = {"a", "1", "bb", "ccc"};
+        byte[] raw = layout.encode(values);
+
+        //变长，后面的 string 跟着移动
+        values[0] = "longer value";
+        raw = layout.replace(raw, 0, layout.fields[0].value2Raw(values[0]));
+        check(layout, raw, 0, values);
+
+        values[2] = "";
+        raw = layout.replace(raw, 2, layout.fields[2].value2Raw(values[2]));
+        check(layout, raw, 0, values);
+
+        values[1] = "-100";
+        raw = layout.replace(raw, 1, layout.fields[1].value2Raw(values[1]));
+        check(layout, raw, 0, values);
+        assert Arrays.equals(raw, layout.encode(values));
+    }
+}
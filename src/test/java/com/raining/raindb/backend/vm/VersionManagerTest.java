@@ -2,8 +2,11 @@ package com.raining.raindb.backend.vm;
 
 import com.raining.raindb.backend.dm.DataManager;
 import com.raining.raindb.backend.tm.TransactionManager;
+import com.raining.raindb.backend.tm.TransactionManagerImpl;
 import org.junit.Test;
 
+import java.io.File;
+
 public class VersionManagerTest {
 
     @Test
@@ -33,4 +36,51 @@ public class VersionManagerTest {
         }
 
     }
+
+    @Test
+    public void testUpdateChain() throws Exception {
+        String path = "/home/rain/coding/RainDB/db_test/vm_update_test";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 100 * 8192, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+
+        try {
+            long xid = vm.begin(0);
+            long uid = vm.insert(xid, new byte[]{1});
+            vm.commit(xid);
+
+            long reader = vm.begin(1);
+            long writer = vm.begin(0);
+            long newUid = vm.update(writer, uid, new byte[]{2});
+            assert newUid != 0 && newUid != uid;
+            assert vm.read(writer, uid)[0] == 2;
+            vm.commit(writer);
+
+            // 可重复读的事务仍然看到旧版本，新事务通过链头 uid 看到新版本
+            assert vm.read(reader, uid)[0] == 1;
+            vm.commit(reader);
+            long xid2 = vm.begin(0);
+            assert vm.read(xid2, uid)[0] == 2;
+            assert vm.update(xid2, uid, new byte[]{3}) != 0;
+            vm.commit(xid2);
+
+            // 中间的版本已经死亡，vacuum 把它从链上摘掉，链头仍然能读到最新版本
+            assert !vm.vacuum(uid, vm.snapshotHorizon());
+            assert dm.read(newUid) == null;
+            assert vm.read(TransactionManagerImpl.SUPER_XID, uid)[0] == 3;
+
+            long xid3 = vm.begin(0);
+            assert vm.delete(xid3, uid);
+            assert vm.read(xid3, uid) == null;
+            vm.commit(xid3);
+            assert vm.vacuum(uid, vm.snapshotHorizon());
+            assert dm.read(uid) == null;
+        } finally {
+            dm.close();
+            tm.close();
+            new File(path + ".db").delete();
+            new File(path + ".log").delete();
+            new File(path + ".xid").delete();
+        }
+    }
 }
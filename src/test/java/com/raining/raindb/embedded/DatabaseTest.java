@@ -0,0 +1,84 @@
+package com.raining.raindb.embedded;
+
+import com.raining.raindb.common.Error;
+import com.raining.raindb.transport.ResultSet;
+import org.junit.Test;
+
+import java.io.File;
+
+public class DatabaseTest {
+    String path = "/home/rain/coding/RainDB/db_test/embedded_test_db";
+
+    @Test
+    public void testEmbedded() throws Exception {
+        Database db = Database.create(path);
+        try {
+            Session s = db.session();
+            s.execute("create table em id int32, name string, v int64 (index id)");
+            PreparedStatement insert = s.prepare("insert into em values ? ? ?");
+            assert insert.params() == 3;
+            s.begin();
+            for (int i = 0; i < 100; i++) {
+                insert.execute(i, "name " + i, (long) i * 10);
+            }
+            s.commit();
+
+            // 行直接是 Java 对象，字符串中的空格不需要转义
+            ResultSet rs = s.query("select id, name, v from em where id < 3");
+            assert rs.size() == 3;
+            assert rs.row(1)[0].equals(1);
+            assert rs.row(1)[1].equals("name 1");
+            assert rs.row(1)[2].equals(10L);
+            assert rs.toString().equals(s.execute("select id, name, v from em where id < 3"));
+
+            PreparedStatement find = s.prepare("select name from em where id = ?");
+            assert find.query(42).row(0)[0].equals("name 42");
+            assert s.query("select count(*), sum(v) from em").row(0)[1].equals(49500L);
+            assert s.query("select id from em order by id desc limit 2 offset 1").row(0)[0].equals(98);
+            assert s.query("select id from em where id > 100000").size() == 0;
+
+            // 事务回滚后看不到插入的行
+            s.begin();
+            insert.execute(1000, "x", 0);
+            assert find.query(1000).size() == 1;
+            s.abort();
+            assert find.query(1000).size() == 0;
+
+            // 出错的语句回滚自己的临时事务，不影响会话
+            try {
+                s.query("select nothing from em");
+                assert false;
+            } catch (Exception e) {
+            }
+            assert !s.inTransaction();
+            try {
+                s.execute("fetch c");
+                assert false;
+            } catch (Exception e) {
+                assert e == Error.EmbeddedUnsupportedException;
+            }
+            s.close();
+            db.close();
+
+            // 重新打开之后数据还在
+            db = Database.open(path);
+            s = db.session();
+            assert s.query("select count(*) from em").row(0)[0].equals(100L);
+            s.close();
+            db.close();
+            try {
+                db.session();
+                assert false;
+            } catch (Exception e) {
+                assert e == Error.DatabaseClosedException;
+            }
+        } finally {
+            // 失败时也要删除文件，否则下一次 create 会因为文件已存在而失败
+            db.close();
+            new File(path + ".db").delete();
+            new File(path + ".bt").delete();
+            new File(path + ".log").delete();
+            new File(path + ".xid").delete();
+        }
+    }
+}